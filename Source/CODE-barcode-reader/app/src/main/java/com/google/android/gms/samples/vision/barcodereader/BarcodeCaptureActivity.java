@@ -25,6 +25,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.os.Build;
 import android.os.Bundle;
@@ -42,15 +43,19 @@ import android.widget.Toast;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.samples.vision.barcodereader.ui.camera.BatteryDeviceStateProvider;
 import com.google.android.gms.samples.vision.barcodereader.ui.camera.CameraSource;
 import com.google.android.gms.samples.vision.barcodereader.ui.camera.CameraSourcePreview;
 
 import com.google.android.gms.samples.vision.barcodereader.ui.camera.GraphicOverlay;
+import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.MultiProcessor;
 import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
+import com.google.android.gms.vision.text.TextRecognizer;
 
 import java.io.IOException;
+import java.util.Deque;
 
 /**
  * Activity for the multi-tracker app.  This app detects barcodes and displays the value with the
@@ -66,13 +71,69 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
     // permission request codes need to be < 256
     private static final int RC_HANDLE_CAMERA_PERM = 2;
 
+    // upper bound on concurrent barcode decodes; each worker holds its own detector and buffer.
+    private static final int MAX_DETECTOR_WORKERS = 3;
+
+    // the camera the scan screen runs on; also used to open it ahead of time from the main screen.
+    static final int CAMERA_FACING = CameraSource.CAMERA_FACING_BACK;
+    static final int CAMERA_API = CameraSource.CAMERA_API_1;
+
+    // books are held up in the middle of the screen, so only that band is searched for barcodes.
+    private static final RectF SCAN_WINDOW = new RectF(0.1f, 0.3f, 0.9f, 0.7f);
+
+    // frames are first searched at half resolution; every fifth empty frame still gets a full
+    // resolution pass so that small or distant barcodes are not missed.
+    private static final int COARSE_DETECTION_FACTOR = 2;
+    private static final int COARSE_DETECTION_MAX_EMPTY_FRAMES = 5;
+
+    // the camera is asked for up to MAX_FPS, and the rate frames are taken at drops to what the
+    // decoder sustains on this device, but never below MIN_ADAPTIVE_FPS.
+    private static final float MAX_FPS = 15.0f;
+    private static final float MIN_ADAPTIVE_FPS = 5.0f;
+
+    // how long the camera is kept open after the activity is paused, so that coming back to it
+    // soon after resumes the preview straight away.
+    private static final long CAMERA_SUSPEND_GRACE_MILLIS = 3000;
+
+    // frames blurrier or shakier than this are not worth decoding.  Sharpness is a Laplacian
+    // variance and motion a mean luma difference (0-255); see CameraSource.getFrameQualityStats().
+    private static final float MIN_FRAME_SHARPNESS = 40.0f;
+    private static final float MAX_FRAME_MOTION = 16.0f;
+
+    // frames whose 16x16 grid of block mean lumas differs from the last detected frame's by at
+    // most this on average (0-255) are not detected again, e.g. while a book is held still.
+    private static final float MAX_DUPLICATE_FRAME_DIFFERENCE = 2.0f;
+
+    // a barcode is only shown, and can only be picked, once CONSENSUS_VOTES of its last
+    // CONSENSUS_HISTORY valid reads agree on its value, so that single misreads are dropped.
+    private static final int CONSENSUS_VOTES = 3;
+    private static final int CONSENSUS_HISTORY = 5;
+
+    // small or distant barcodes are zoomed in on, up to this ratio, rather than searched for in
+    // a larger preview.
+    private static final float MAX_AUTO_ZOOM = 3.0f;
+
+    // after this many frames in a row worth decoding have found nothing, a full resolution
+    // picture is taken and the scan window decoded from it instead.
+    private static final int STILL_CAPTURE_FAILED_FRAMES = 30;
+
+    // unless the flash was asked for, the torch comes on by itself once the scan window's median
+    // luma (0-255) stays below the first, and goes off once it stays above the second.
+    private static final int AUTO_TORCH_DARK_LUMA = 40;
+    private static final int AUTO_TORCH_BRIGHT_LUMA = 170;
+
     // constants used to pass extra data in the intent
     public static final String AutoFocus = "AutoFocus";
     public static final String UseFlash = "UseFlash";
+    public static final String ShowMetrics = "ShowMetrics";
     public static final String BarcodeObject = "Barcode";
 
     private CameraSource mCameraSource;
     private CameraSourcePreview mPreview;
+
+    // the camera source is created once the detectors are ready, which may be after onResume.
+    private boolean mResumed;
+    private boolean mDestroyed;
     private GraphicOverlay<BarcodeGraphic> mGraphicOverlay;
 
     // helper objects for detecting taps and pinches.
@@ -94,11 +155,16 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
         boolean autoFocus = getIntent().getBooleanExtra(AutoFocus, false);
         boolean useFlash = getIntent().getBooleanExtra(UseFlash, false);
 
+        // frame counts and stage latencies are shown over the preview in debug builds by default,
+        // for tuning on the device at hand.
+        mGraphicOverlay.setDebugOverlayEnabled(
+                getIntent().getBooleanExtra(ShowMetrics, BuildConfig.DEBUG));
+
         // Check for the camera permission before accessing the camera.  If the
         // permission is not granted yet, request permission.
         int rc = ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA);
         if (rc == PackageManager.PERMISSION_GRANTED) {
-            createCameraSource(autoFocus, useFlash);
+            loadCameraSource(autoFocus, useFlash);
         } else {
             requestCameraPermission();
         }
@@ -154,25 +220,54 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
     }
 
     /**
-     * Creates and starts the camera.  Note that this uses a higher resolution in comparison
-     * to other detection examples to enable the barcode detector to detect small barcodes
-     * at long distances.
+     * Takes the barcode detectors from {@link ScannerStartup} without blocking the UI thread, then
+     * creates the camera source, and starts it if the activity is showing by then.
+     */
+    private void loadCameraSource(final boolean autoFocus, final boolean useFlash) {
+        ScannerStartup.get(this).takeDetectors(getDetectorCount(),
+                new ScannerStartup.DetectorsCallback() {
+                    @Override
+                    public void onDetectorsReady(Deque<BarcodeDetector> detectors) {
+                        if (mDestroyed) {
+                            while (!detectors.isEmpty()) {
+                                detectors.pop().release();
+                            }
+                            return;
+                        }
+                        createCameraSource(autoFocus, useFlash, detectors);
+                        if (mResumed) {
+                            startCameraSource();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Creates the camera.  Note that this uses a higher resolution in comparison to other
+     * detection examples, and zooms in on barcodes that are small in the frame, to enable the
+     * barcode detector to detect small barcodes at long distances.
      *
      * Suppressing InlinedApi since there is a check that the minimum version is met before using
      * the constant.
      */
     @SuppressLint("InlinedApi")
-    private void createCameraSource(boolean autoFocus, boolean useFlash) {
-        Context context = getApplicationContext();
+    private void createCameraSource(boolean autoFocus, boolean useFlash,
+                                    final Deque<BarcodeDetector> detectors) {
+        final Context context = getApplicationContext();
 
         // A barcode detector is created to track barcodes.  An associated multi-processor instance
-        // is set to receive the barcode detection results, track the barcodes, and maintain
-        // graphics for each barcode on screen.  The factory is used by the multi-processor to
-        // create a separate tracker instance for each barcode.
-        BarcodeDetector barcodeDetector = new BarcodeDetector.Builder(context).build();
+        // receives the barcode detection results, tracks the barcodes, and maintains graphics for
+        // each barcode on screen.  The factory is used by the multi-processor to create a separate
+        // tracker instance for each barcode.  The camera source hands results to the
+        // multi-processor itself, so that decodes running on several workers arrive in order, and
+        // only once several frames agree on a barcode's value.  The detectors are usually built
+        // and initialized already, while the main screen was up.
+        final ScannerStartup startup = ScannerStartup.get(context);
+        BarcodeDetector barcodeDetector = detectors.pop();
         BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(mGraphicOverlay, this);
-        barcodeDetector.setProcessor(
-                new MultiProcessor.Builder<>(barcodeFactory).build());
+        Detector.Processor<Barcode> barcodeProcessor = new BarcodeConsensusProcessor(
+                new MultiProcessor.Builder<>(barcodeFactory).build(),
+                CONSENSUS_VOTES, CONSENSUS_HISTORY);
 
         if (!barcodeDetector.isOperational()) {
             // Note: The first time that an app using the barcode or face API is installed on a
@@ -199,11 +294,58 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
 
         // Creates and starts the camera.  Note that this uses a higher resolution in comparison
         // to other detection examples to enable the barcode detector to detect small barcodes
-        // at long distances.
+        // at long distances.  Resolution calibration then settles on the size that this device
+        // decodes best at, which is used from the first start after that.
+        BarcodeDetectionMapper mapper = new BarcodeDetectionMapper();
         CameraSource.Builder builder = new CameraSource.Builder(getApplicationContext(), barcodeDetector)
-                .setFacing(CameraSource.CAMERA_FACING_BACK)
+                .setFacing(CAMERA_FACING)
+                .setCameraApi(CAMERA_API)
                 .setRequestedPreviewSize(1600, 1024)
-                .setRequestedFps(15.0f);
+                .setRequestedFps(MAX_FPS)
+                .setResolutionCalibration(true)
+                .setSuspendGracePeriod(CAMERA_SUSPEND_GRACE_MILLIS)
+                .setProcessor(barcodeProcessor)
+                .setDetectionMapper(mapper)
+                .setAutoZoom(mapper, MAX_AUTO_ZOOM)
+                .setItemFocus(mapper)
+                .setScanWindow(SCAN_WINDOW)
+                .setCoarseDetection(COARSE_DETECTION_FACTOR, COARSE_DETECTION_MAX_EMPTY_FRAMES)
+                .setAdaptiveFrameRate(MIN_ADAPTIVE_FPS, true)
+                .setFrameQualityGate(MIN_FRAME_SHARPNESS, MAX_FRAME_MOTION)
+                .setDuplicateFrameSuppression(MAX_DUPLICATE_FRAME_DIFFERENCE)
+                .setQualityControl(new BatteryDeviceStateProvider(context));
+
+        // Time to first decode is measured from when the user asked to scan, if they did so from
+        // the main screen, and from now otherwise.
+        long scanRequestNanos = startup.takeScanRequestNanos();
+        builder = builder.setScanRequestTime(
+                (scanRequestNanos != 0) ? scanRequestNanos : System.nanoTime());
+
+        builder = builder.setDetectorWorkers(getDetectorWorkerCount(),
+                new CameraSource.DetectorFactory() {
+                    @Override
+                    public Detector<?> create() {
+                        return detectors.pop();
+                    }
+                });
+
+        // Worn books may still have a legible ISBN line, which is read from the same frames as
+        // the barcodes and reported as the barcode it stands for.
+        builder = builder.addFanOutDetector(new CameraSource.DetectorFactory() {
+            @Override
+            public Detector<?> create() {
+                return new IsbnTextDetector(new TextRecognizer.Builder(context).build());
+            }
+        });
+
+        // Barcodes too fine for the preview to resolve are looked for in a picture instead.
+        builder = builder.setStillCaptureEscalation(STILL_CAPTURE_FAILED_FRAMES,
+                new CameraSource.DetectorFactory() {
+                    @Override
+                    public Detector<?> create() {
+                        return detectors.pop();
+                    }
+                });
 
         // make sure that auto focus is an available option
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
@@ -211,9 +353,36 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
                     autoFocus ? Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE : null);
         }
 
-        mCameraSource = builder
-                .setFlashMode(useFlash ? Camera.Parameters.FLASH_MODE_TORCH : null)
-                .build();
+        if (useFlash) {
+            builder = builder.setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
+        } else {
+            builder = builder.setAutoTorch(AUTO_TORCH_DARK_LUMA, AUTO_TORCH_BRIGHT_LUMA);
+        }
+        mCameraSource = builder.build();
+
+        // Nothing should be left over, unless the detector count and the builder disagree.
+        while (!detectors.isEmpty()) {
+            detectors.pop().release();
+        }
+    }
+
+    /**
+     * Returns the number of barcode detectors the camera source is built with, which are all
+     * prewarmed: the main detector, which the first detection worker uses, one for each further
+     * worker, and one for still pictures on devices that can decode them.
+     */
+    static int getDetectorCount() {
+        int stillDetectors =
+                (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1) ? 1 : 0;
+        return getDetectorWorkerCount() + stillDetectors;
+    }
+
+    /**
+     * Returns the number of detection workers to run: up to half of the available cores.
+     */
+    static int getDetectorWorkerCount() {
+        return Math.min(MAX_DETECTOR_WORKERS,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
     }
 
     /**
@@ -222,17 +391,25 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
         startCameraSource();
     }
 
     /**
-     * Stops the camera.
+     * Suspends the camera, or stops it if the activity is finishing.
      */
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
         if (mPreview != null) {
-            mPreview.stop();
+            if (isFinishing()) {
+                mPreview.stop();
+            } else {
+                // Keep the camera open for a while, in case this is only a dialog or a quick
+                // switch to another app.
+                mPreview.suspend();
+            }
         }
     }
 
@@ -243,6 +420,7 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mDestroyed = true;
         if (mPreview != null) {
             mPreview.release();
         }
@@ -279,7 +457,7 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
             // we have permission, so create the camerasource
             boolean autoFocus = getIntent().getBooleanExtra(AutoFocus,false);
             boolean useFlash = getIntent().getBooleanExtra(UseFlash, false);
-            createCameraSource(autoFocus, useFlash);
+            loadCameraSource(autoFocus, useFlash);
             return;
         }
 
@@ -306,8 +484,7 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
      */
     private void startCameraSource() throws SecurityException {
         // check that the device has play services available.
-        int code = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(
-                getApplicationContext());
+        int code = ScannerStartup.get(this).checkAvailability();
         if (code != ConnectionResult.SUCCESS) {
             Dialog dlg =
                     GoogleApiAvailability.getInstance().getErrorDialog(this, code, RC_HANDLE_GMS);
@@ -425,7 +602,9 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
          */
         @Override
         public void onScaleEnd(ScaleGestureDetector detector) {
-            mCameraSource.doZoom(detector.getScaleFactor());
+            if (mCameraSource != null) {
+                mCameraSource.doZoom(detector.getScaleFactor());
+            }
         }
     }
 
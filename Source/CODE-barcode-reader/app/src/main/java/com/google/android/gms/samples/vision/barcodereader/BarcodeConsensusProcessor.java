@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader;
+
+import android.graphics.Rect;
+import android.util.SparseArray;
+
+import com.google.android.gms.samples.vision.barcodereader.ui.camera.CameraSource;
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sits between the camera source and the barcode trackers, and only passes a barcode on once
+ * several recent frames agree on its value.  A single noisy frame can misread a barcode, and as
+ * barcodes are keyed by value, each misread would otherwise show up as a new barcode of its own.
+ * <p/>
+ * Barcodes are followed from frame to frame by position rather than by value.  Each keeps a
+ * bounded history of its recent reads, in which reads with a wrong check digit are not counted.
+ * Once the most common value in that history has been read often enough, the barcode is passed
+ * on as a {@link ConsensusBarcode}, under an id that stays the same for as long as it is followed.
+ * A read from a full resolution still picture counts as many reads as are needed, as it is far
+ * less likely to be wrong than one from a preview frame.
+ * <p/>
+ * Detections are expected one frame at a time, in order, as the camera source delivers them.
+ */
+class BarcodeConsensusProcessor implements Detector.Processor<Barcode> {
+    // a barcode that has not been seen for this many frames is forgotten.
+    private static final int MAX_MISSING_FRAMES = 10;
+
+    private final Detector.Processor<Barcode> mDelegate;
+    private final int mMinVotes;
+    private final int mHistorySize;
+
+    private final List<Track> mTracks = new ArrayList<>();
+    private int mNextTrackId;
+    private long mFrameCount;
+
+    private Detector.Detections<Barcode> mLastInput;
+    private Detector.Detections<Barcode> mLastOutput;
+
+    /**
+     * Creates a processor that hands a barcode to the given processor once {@code minVotes} of
+     * its last {@code historySize} valid reads agree.
+     */
+    BarcodeConsensusProcessor(Detector.Processor<Barcode> delegate, int minVotes,
+                              int historySize) {
+        if ((minVotes < 1) || (historySize < minVotes)) {
+            throw new IllegalArgumentException(
+                    "Invalid consensus: " + minVotes + " of " + historySize);
+        }
+        mDelegate = delegate;
+        mMinVotes = minVotes;
+        mHistorySize = historySize;
+    }
+
+    @Override
+    public void receiveDetections(Detector.Detections<Barcode> detections) {
+        if (detections != mLastInput) {
+            // Results handed over again for a duplicate frame are not another read.
+            mLastInput = detections;
+            mLastOutput = vote(detections);
+        }
+        mDelegate.receiveDetections(mLastOutput);
+    }
+
+    @Override
+    public void release() {
+        mDelegate.release();
+        mTracks.clear();
+        mLastInput = null;
+        mLastOutput = null;
+    }
+
+    /**
+     * Adds the reads in the given frame to the barcodes they belong to, and returns the barcodes
+     * in the frame whose value has been agreed on.
+     */
+    private Detector.Detections<Barcode> vote(Detector.Detections<Barcode> detections) {
+        ++mFrameCount;
+        int weight = CameraSource.isStillCapture(detections) ? mMinVotes : 1;
+        SparseArray<Barcode> items = detections.getDetectedItems();
+        List<Track> seen = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); ++i) {
+            Barcode barcode = items.valueAt(i);
+            Rect box = barcode.getBoundingBox();
+            Track track = findTrack(box, seen);
+            if (track == null) {
+                track = new Track(mNextTrackId++, mHistorySize);
+                mTracks.add(track);
+            }
+            track.box = box;
+            track.latest = barcode;
+            track.lastSeenFrame = mFrameCount;
+            if (hasValidCheckDigit(barcode)) {
+                for (int j = 0; j < weight; ++j) {
+                    track.add(barcode);
+                }
+            }
+            seen.add(track);
+        }
+
+        for (Iterator<Track> it = mTracks.iterator(); it.hasNext(); ) {
+            if (mFrameCount - it.next().lastSeenFrame > MAX_MISSING_FRAMES) {
+                it.remove();
+            }
+        }
+
+        SparseArray<Barcode> agreed = new SparseArray<>();
+        for (Track track : seen) {
+            ConsensusBarcode barcode = track.consensus(mMinVotes);
+            if (barcode != null) {
+                agreed.put(track.id, barcode);
+            }
+        }
+        return new Detector.Detections<>(agreed, detections.getFrameMetadata(),
+                detections.detectorIsOperational());
+    }
+
+    /**
+     * Returns the barcode closest to the given position, if there is one near enough that has
+     * not already been matched in this frame.
+     */
+    private Track findTrack(Rect box, List<Track> seen) {
+        Track nearest = null;
+        long nearestDistance = Long.MAX_VALUE;
+        for (Track track : mTracks) {
+            if (seen.contains(track)) {
+                continue;
+            }
+            // Barcodes move little from one frame to the next, compared to their own size.
+            long radius = Math.max(track.box.width(), track.box.height());
+            long dx = box.centerX() - track.box.centerX();
+            long dy = box.centerY() - track.box.centerY();
+            long distance = dx * dx + dy * dy;
+            if ((distance <= radius * radius) && (distance < nearestDistance)) {
+                nearest = track;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Returns whether the barcode's check digit matches its value.  Formats without a check
+     * digit always pass.
+     */
+    static boolean hasValidCheckDigit(Barcode barcode) {
+        switch (barcode.format) {
+            case Barcode.EAN_13:
+                return hasValidMod10(barcode.rawValue, 13);
+            case Barcode.EAN_8:
+                return hasValidMod10(barcode.rawValue, 8);
+            case Barcode.UPC_A:
+                return hasValidMod10(barcode.rawValue, 12);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Checks a value that ends in an EAN/UPC check digit, where the digits are weighted 1 and 3
+     * alternately from the right.
+     */
+    private static boolean hasValidMod10(String value, int length) {
+        if ((value == null) || (value.length() != length)) {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 0; i < length; ++i) {
+            char c = value.charAt(length - 1 - i);
+            if ((c < '0') || (c > '9')) {
+                return false;
+            }
+            sum += ((i % 2) == 0) ? (c - '0') : 3 * (c - '0');
+        }
+        return (sum % 10) == 0;
+    }
+
+    /**
+     * One barcode followed from frame to frame, with a ring of its most recent valid reads.
+     */
+    private static class Track {
+        final int id;
+        private final Barcode[] mReads;
+        private int mCount;
+        private int mNext;
+
+        // How many of the reads in the ring have each value, kept up to date as reads come and go.
+        private final Map<String, Integer> mVotes = new HashMap<>();
+
+        // The barcode last passed on, which is passed on again while nothing in it would change.
+        private ConsensusBarcode mConsensus;
+
+        Rect box;
+        Barcode latest;
+        long lastSeenFrame;
+
+        Track(int id, int historySize) {
+            this.id = id;
+            mReads = new Barcode[historySize];
+        }
+
+        void add(Barcode read) {
+            Barcode evicted = mReads[mNext];
+            if (evicted != null) {
+                int votes = mVotes.get(evicted.rawValue) - 1;
+                if (votes == 0) {
+                    mVotes.remove(evicted.rawValue);
+                } else {
+                    mVotes.put(evicted.rawValue, votes);
+                }
+            }
+            Integer votes = mVotes.get(read.rawValue);
+            mVotes.put(read.rawValue, (votes != null) ? votes + 1 : 1);
+
+            mReads[mNext] = read;
+            mNext = (mNext + 1) % mReads.length;
+            mCount = Math.min(mCount + 1, mReads.length);
+        }
+
+        /**
+         * Returns the most common value among the recent reads, if it was read at least the
+         * given number of times, placed where the barcode was last seen.  Ties go to the value
+         * read most recently.  The barcode returned last time is returned again if its value,
+         * votes and corners are all unchanged, so that trackers can tell nothing moved.
+         */
+        ConsensusBarcode consensus(int minVotes) {
+            Barcode best = null;
+            int bestVotes = 0;
+            for (int i = 0; i < mCount; ++i) {
+                Barcode read = mReads[(mNext - 1 - i + mReads.length) % mReads.length];
+                int votes = mVotes.get(read.rawValue);
+                if (votes > bestVotes) {
+                    best = read;
+                    bestVotes = votes;
+                }
+            }
+            if (bestVotes < minVotes) {
+                return null;
+            }
+
+            float confidence = (float) bestVotes / mCount;
+            ConsensusBarcode last = mConsensus;
+            if ((last != null) && (last.format == best.format) &&
+                    last.rawValue.equals(best.rawValue) && (last.votes == bestVotes) &&
+                    (last.confidence == confidence) &&
+                    Arrays.equals(last.cornerPoints, latest.cornerPoints)) {
+                return last;
+            }
+
+            ConsensusBarcode barcode = new ConsensusBarcode(best, bestVotes, confidence);
+            barcode.cornerPoints = latest.cornerPoints;
+            mConsensus = barcode;
+            return barcode;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import com.google.android.gms.samples.vision.barcodereader.ui.camera.CameraSource;
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * Moves a barcode detected within the camera source's scan window back to whole-preview
+ * coordinates.  The bounding box of a barcode is derived from its corner points, so only those
+ * need to be moved.  Also locates barcodes for the camera source's auto zoom.
+ */
+class BarcodeDetectionMapper implements CameraSource.DetectionMapper<Barcode>,
+        CameraSource.ItemBounds<Barcode> {
+    @Override
+    public void mapToPreview(Barcode barcode, float scale, int offsetX, int offsetY) {
+        if (barcode.cornerPoints == null) {
+            return;
+        }
+        for (Point point : barcode.cornerPoints) {
+            point.x = Math.round(point.x * scale) + offsetX;
+            point.y = Math.round(point.y * scale) + offsetY;
+        }
+    }
+
+    @Override
+    public Rect getBounds(Barcode barcode) {
+        return (barcode.cornerPoints != null) ? barcode.getBoundingBox() : null;
+    }
+}
@@ -70,7 +70,10 @@ public class BarcodeGraphicTracker extends Tracker<Barcode> {
     @Override
     public void onUpdate(Detector.Detections<Barcode> detectionResults, Barcode item) {
         mOverlay.add(mGraphic);
-        mGraphic.updateItem(item);
+        // Results handed over again for a duplicate frame carry the very same item.
+        if (item != mGraphic.getBarcode()) {
+            mGraphic.updateItem(item);
+        }
     }
 
     /**
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Title and review of a book, as returned by the book data service.
+ */
+final class BookData {
+    final String title;
+    final String review;
+
+    BookData(String title, String review) {
+        this.title = title;
+        this.review = review;
+    }
+
+    /**
+     * Parses a book data response, which is a JSON object with at least {@code title} and
+     * {@code review} string members.
+     *
+     * @throws JSONException if the response is not valid JSON or either member is missing
+     */
+    static BookData parse(String json) throws JSONException {
+        JSONObject object = new JSONObject(json);
+        return new BookData(object.getString("title"), object.getString("review"));
+    }
+
+    @Override
+    public String toString() {
+        return title + "\n--------\n" + review;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * A barcode whose value was agreed on by several recent reads of it, rather than taken from a
+ * single frame.  Otherwise a copy of the most recent read with that value.  Parcels as a plain
+ * barcode.
+ */
+public class ConsensusBarcode extends Barcode {
+    /**
+     * The number of recent reads of the barcode that had this value.
+     */
+    public final int votes;
+
+    /**
+     * The fraction of recent valid reads of the barcode that had this value, from 0 to 1.
+     */
+    public final float confidence;
+
+    ConsensusBarcode(Barcode read, int votes, float confidence) {
+        this.votes = votes;
+        this.confidence = confidence;
+
+        format = read.format;
+        rawValue = read.rawValue;
+        displayValue = read.displayValue;
+        valueFormat = read.valueFormat;
+        cornerPoints = read.cornerPoints;
+        email = read.email;
+        phone = read.phone;
+        sms = read.sms;
+        wifi = read.wifi;
+        url = read.url;
+        geoPoint = read.geoPoint;
+        calendarEvent = read.calendarEvent;
+        contactInfo = read.contactInfo;
+        driverLicense = read.driverLicense;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader;
+
+import android.graphics.Point;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+import com.google.android.gms.vision.text.Text;
+import com.google.android.gms.vision.text.TextBlock;
+import com.google.android.gms.vision.text.TextRecognizer;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads ISBNs printed as text, such as the "ISBN 978-..." line on the back of a book whose
+ * barcode is too worn to decode.  Each ISBN found is reported as the EAN-13 barcode that would
+ * encode it, so that it can be tracked and shown just like a decoded barcode.
+ * <p/>
+ * Items are keyed by the hash of their value, as the barcode detector keys its own results, so
+ * that a book whose barcode and ISBN line are both read is only reported once.
+ */
+class IsbnTextDetector extends Detector<Barcode> {
+    // ISBN-13s start with a Bookland prefix, which is distinctive enough on its own.  ISBN-10s
+    // are only taken with their label, as any ten digits would match otherwise.
+    private static final Pattern ISBN_13 = Pattern.compile("\\b97[89](?:[- ]?\\d){10}\\b");
+    private static final Pattern ISBN_10 = Pattern.compile(
+            "ISBN(?:-10)?:?\\s*((?:\\d[- ]?){9}[\\dX])\\b", Pattern.CASE_INSENSITIVE);
+
+    private final TextRecognizer mRecognizer;
+
+    IsbnTextDetector(TextRecognizer recognizer) {
+        mRecognizer = recognizer;
+    }
+
+    @Override
+    public SparseArray<Barcode> detect(Frame frame) {
+        SparseArray<Barcode> isbns = new SparseArray<>();
+        SparseArray<TextBlock> blocks = mRecognizer.detect(frame);
+        for (int i = 0; i < blocks.size(); ++i) {
+            TextBlock block = blocks.valueAt(i);
+            List<? extends Text> lines = block.getComponents();
+            if ((lines == null) || lines.isEmpty()) {
+                addIsbn(block, isbns);
+                continue;
+            }
+            for (Text line : lines) {
+                addIsbn(line, isbns);
+            }
+        }
+        return isbns;
+    }
+
+    @Override
+    public boolean isOperational() {
+        return mRecognizer.isOperational();
+    }
+
+    @Override
+    public void release() {
+        mRecognizer.release();
+    }
+
+    /**
+     * Adds the ISBN in the given line of text, if it has a valid one, located at the line.
+     */
+    private static void addIsbn(Text text, SparseArray<Barcode> isbns) {
+        String ean = parseIsbn(text.getValue());
+        if (ean == null) {
+            return;
+        }
+
+        Barcode barcode = new Barcode();
+        barcode.format = Barcode.EAN_13;
+        barcode.valueFormat = Barcode.ISBN;
+        barcode.rawValue = ean;
+        barcode.displayValue = ean;
+
+        // Copied, as the camera source moves the points when mapping them to the preview.
+        Point[] corners = text.getCornerPoints();
+        if (corners != null) {
+            barcode.cornerPoints = new Point[corners.length];
+            for (int i = 0; i < corners.length; ++i) {
+                barcode.cornerPoints[i] = new Point(corners[i]);
+            }
+        }
+        isbns.put(ean.hashCode(), barcode);
+    }
+
+    /**
+     * Returns the first ISBN in the given text with a valid check digit, as the 13 digits of its
+     * EAN-13 barcode, or null if there is none.
+     */
+    static String parseIsbn(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        Matcher matcher = ISBN_13.matcher(text);
+        while (matcher.find()) {
+            String digits = stripSeparators(matcher.group());
+            if (eanCheckDigit(digits) == digits.charAt(12)) {
+                return digits;
+            }
+        }
+
+        matcher = ISBN_10.matcher(text);
+        while (matcher.find()) {
+            String digits = stripSeparators(matcher.group(1)).toUpperCase();
+            if (isbn10CheckDigit(digits) == digits.charAt(9)) {
+                String ean = "978" + digits.substring(0, 9);
+                return ean + eanCheckDigit(ean);
+            }
+        }
+        return null;
+    }
+
+    private static String stripSeparators(String text) {
+        return text.replace("-", "").replace(" ", "");
+    }
+
+    /**
+     * Returns the EAN-13 check digit for the first twelve digits of the given string.
+     */
+    private static char eanCheckDigit(String digits) {
+        int sum = 0;
+        for (int i = 0; i < 12; ++i) {
+            int digit = digits.charAt(i) - '0';
+            sum += ((i % 2) == 0) ? digit : 3 * digit;
+        }
+        return (char) ('0' + (10 - sum % 10) % 10);
+    }
+
+    /**
+     * Returns the ISBN-10 check character for the first nine digits of the given string.
+     */
+    private static char isbn10CheckDigit(String digits) {
+        int sum = 0;
+        for (int i = 0; i < 9; ++i) {
+            sum += (10 - i) * (digits.charAt(i) - '0');
+        }
+        int check = (11 - sum % 11) % 11;
+        return (check == 10) ? 'X' : (char) ('0' + check);
+    }
+}
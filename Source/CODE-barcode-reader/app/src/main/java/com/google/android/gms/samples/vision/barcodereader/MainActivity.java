@@ -28,7 +28,6 @@ import android.widget.TextView;
 import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.vision.barcode.Barcode;
 
-import org.json.JSONObject;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.io.BufferedReader;
@@ -72,9 +71,20 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
         findViewById(R.id.read_barcode).setOnClickListener(this);
 
+        // get the barcode detectors ready while the user is on this screen.
+        ScannerStartup.get(this).prewarm();
+
         //new HttpRequestTask().execute();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            ScannerStartup.get(this).release();
+        }
+    }
+
     /**
      * Called when a view has been clicked.
      *
@@ -83,7 +93,8 @@ public class MainActivity extends Activity implements View.OnClickListener {
     @Override
     public void onClick(View v) {
         if (v.getId() == R.id.read_barcode) {
-            // launch barcode activity.
+            // launch barcode activity, opening the camera in the meantime.
+            ScannerStartup.get(this).requestScan();
             Intent intent = new Intent(this, BarcodeCaptureActivity.class);
             intent.putExtra(BarcodeCaptureActivity.AutoFocus, autoFocus.isChecked());
             intent.putExtra(BarcodeCaptureActivity.UseFlash, useFlash.isChecked());
@@ -118,6 +129,9 @@ public class MainActivity extends Activity implements View.OnClickListener {
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == RC_BARCODE_CAPTURE) {
+            // the scan screen took the prewarmed detectors; get the next ones ready.
+            ScannerStartup.get(this).prewarm();
+
             if (resultCode == CommonStatusCodes.SUCCESS) {
                 if (data != null) {
                     Barcode barcode = data.getParcelableExtra(BarcodeCaptureActivity.BarcodeObject);
@@ -187,10 +201,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
         protected void onPostExecute(final String output) {
             try {
                 if(output != null) {
-                    JSONObject json = new JSONObject(output);
-                    String title = json.getString("title");
-                    String review = json.getString("review");
-                    bookDataView.setText(title + "\n--------\n" + review);
+                    bookDataView.setText(BookData.parse(output).toString());
                 }
             } catch (Exception ex) {
                 ex.printStackTrace();
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.samples.vision.barcodereader.ui.camera.CameraSource;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.BarcodeDetector;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Gets the scan screen's expensive dependencies ready while the user is still on the main screen,
+ * so that they are not paid for one after another once the scan screen opens.
+ * <p/>
+ * {@link #prewarm()} checks that play services are available and builds the barcode detectors the
+ * scan screen will use, running a blank frame through each so that the native library is loaded
+ * and initialized.  {@link #requestScan()}, called when the user asks to scan, records when they
+ * did so and starts opening the camera in the background.  The scan screen then takes the
+ * detectors from here with {@link #takeDetectors(int, DetectorsCallback)} rather than building its
+ * own, and measures its time to first decode from the scan request.
+ * <p/>
+ * Detectors are only ever built on a background thread.  If the scan screen asks for them before
+ * prewarming is done, it is called back once they are ready rather than building them itself.
+ * Code that is not on the main thread can instead wait on the future returned by
+ * {@link #takeDetectors(int)}.
+ */
+final class ScannerStartup {
+    private static final String TAG = "ScannerStartup";
+
+    // size of the blank frame used to initialize each detector.
+    private static final int WARM_UP_FRAME_SIZE = 64;
+
+    private static ScannerStartup sInstance;
+
+    /**
+     * Receives the detectors asked for with {@link #takeDetectors(int, DetectorsCallback)}, on
+     * the main thread.
+     */
+    interface DetectorsCallback {
+        /**
+         * Called with the detectors, which the callback now owns and must release.
+         */
+        void onDetectorsReady(Deque<BarcodeDetector> detectors);
+    }
+
+    private final Context mContext;
+    // Prewarming and handing out detectors run here, one after the other.
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this.
+    private final Deque<BarcodeDetector> mDetectors = new ArrayDeque<>();
+    private boolean mPrewarming;
+    private int mAvailability = -1;
+    private long mScanRequestNanos;
+
+    private ScannerStartup(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Returns the process-wide instance.
+     */
+    static synchronized ScannerStartup get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ScannerStartup(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts building and initializing detectors in the background, unless enough are already
+     * built or being built.
+     */
+    synchronized void prewarm() {
+        final int needed = BarcodeCaptureActivity.getDetectorCount() - mDetectors.size();
+        if (mPrewarming || (needed <= 0)) {
+            return;
+        }
+        mPrewarming = true;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                if (checkAvailability() == ConnectionResult.SUCCESS) {
+                    for (int i = 0; i < needed; ++i) {
+                        BarcodeDetector detector = createDetector();
+                        synchronized (ScannerStartup.this) {
+                            mDetectors.push(detector);
+                        }
+                    }
+                }
+                synchronized (ScannerStartup.this) {
+                    mPrewarming = false;
+                }
+                Log.d(TAG, "Prewarmed " + needed + " detectors in " +
+                        (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+        });
+    }
+
+    /**
+     * Called when the user asks to scan, just before the scan screen is started.  Records the
+     * time, for measuring the time to first decode, and starts opening the camera.
+     */
+    void requestScan() {
+        synchronized (this) {
+            mScanRequestNanos = System.nanoTime();
+        }
+        CameraSource.prewarmCamera(mContext, BarcodeCaptureActivity.CAMERA_FACING,
+                BarcodeCaptureActivity.CAMERA_API);
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the user last asked to scan, or 0 if they
+     * have not since this was last called.
+     */
+    synchronized long takeScanRequestNanos() {
+        long nanos = mScanRequestNanos;
+        mScanRequestNanos = 0;
+        return nanos;
+    }
+
+    /**
+     * Returns a future for the given number of detectors, which the caller owns and must release
+     * once it has them.  Prewarmed detectors are used first, waiting for any prewarming still
+     * under way, and the rest are built and initialized in the background.  Must not be waited on
+     * from the main thread; use {@link #takeDetectors(int, DetectorsCallback)} there.
+     */
+    Future<Deque<BarcodeDetector>> takeDetectors(final int count) {
+        return mExecutor.submit(new Callable<Deque<BarcodeDetector>>() {
+            @Override
+            public Deque<BarcodeDetector> call() {
+                Deque<BarcodeDetector> detectors = new ArrayDeque<>(count);
+                synchronized (ScannerStartup.this) {
+                    while ((detectors.size() < count) && !mDetectors.isEmpty()) {
+                        detectors.push(mDetectors.pop());
+                    }
+                }
+                int built = count - detectors.size();
+                for (int i = 0; i < built; ++i) {
+                    detectors.push(createDetector());
+                }
+                if (built > 0) {
+                    Log.d(TAG, "Built " + built + " detectors that were not prewarmed.");
+                }
+                return detectors;
+            }
+        });
+    }
+
+    /**
+     * Hands the given number of detectors to the callback, on the main thread, once they are
+     * ready.  See {@link #takeDetectors(int)}.
+     */
+    void takeDetectors(int count, final DetectorsCallback callback) {
+        final Future<Deque<BarcodeDetector>> ready = takeDetectors(count);
+        // The executor runs one task at a time, so this only runs once the detectors are ready.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Deque<BarcodeDetector> detectors;
+                try {
+                    detectors = ready.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(TAG, "Could not get the detectors ready.", e);
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDetectorsReady(detectors);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns whether play services are available, as a {@link ConnectionResult} code.  Success
+     * is remembered, so that only the first check pays for the binder call.
+     */
+    int checkAvailability() {
+        synchronized (this) {
+            if (mAvailability == ConnectionResult.SUCCESS) {
+                return mAvailability;
+            }
+        }
+        int code = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(mContext);
+        synchronized (this) {
+            mAvailability = code;
+        }
+        return code;
+    }
+
+    /**
+     * Releases any detectors that were prewarmed but not taken.
+     */
+    synchronized void release() {
+        while (!mDetectors.isEmpty()) {
+            mDetectors.pop().release();
+        }
+    }
+
+    private BarcodeDetector createDetector() {
+        BarcodeDetector detector = new BarcodeDetector.Builder(mContext).build();
+        if (detector.isOperational()) {
+            // The first detection loads and initializes the native decoder.
+            ByteBuffer blank =
+                    ByteBuffer.allocate(WARM_UP_FRAME_SIZE * WARM_UP_FRAME_SIZE * 3 / 2);
+            Frame frame = new Frame.Builder()
+                    .setImageData(blank, WARM_UP_FRAME_SIZE, WARM_UP_FRAME_SIZE, ImageFormat.NV21)
+                    .build();
+            detector.detect(frame);
+        }
+        return detector;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to turn the torch on or off from how bright the scene is.  Each frame's
+ * brightness is the median of a histogram of luma samples taken on a sparse grid, which a few
+ * bright spots such as a lamp or a glossy reflection barely move.
+ * <p/>
+ * The torch is turned on once {@link #SWITCH_FRAMES} frames in a row are darker than the dark
+ * threshold, and off once as many are brighter than the bright threshold.  Auto exposure brings
+ * a torch-lit scene back to a middling brightness, so the bright threshold has to be well above
+ * the dark one for the torch not to be turned off again straight away; in practice it stays on
+ * until the scene is lit by something else.  The torch is also never switched within
+ * {@link #MIN_SWITCH_INTERVAL_MILLIS} of the last switch, as the exposure takes a moment to
+ * settle after each.
+ * <p/>
+ * Frames are only metered from the frame processing thread.
+ */
+class AutoTorchController {
+    static final int SWITCH_FRAMES = 10;
+    static final long MIN_SWITCH_INTERVAL_MILLIS = 5000;
+
+    // Distance in pixels between luma samples, in both directions, and the width of each
+    // histogram bucket in luma levels.
+    private static final int SAMPLE_STEP = 16;
+    private static final int BUCKET_SHIFT = 3;
+
+    private final int mDarkLuma;
+    private final int mBrightLuma;
+    private final int[] mHistogram = new int[256 >> BUCKET_SHIFT];
+
+    private boolean mTorchOn;
+    private int mFrames;
+    private long mLastSwitchNanos;
+    private int mLastLuma = -1;
+
+    /**
+     * Creates a controller that turns the torch on below the given median luma, and off above
+     * the given one (0-255).
+     */
+    AutoTorchController(int darkLuma, int brightLuma) {
+        if ((darkLuma < 0) || (brightLuma > 255) || (darkLuma >= brightLuma)) {
+            throw new IllegalArgumentException(
+                    "Invalid torch thresholds: " + darkLuma + ", " + brightLuma);
+        }
+        mDarkLuma = darkLuma;
+        mBrightLuma = brightLuma;
+    }
+
+    /**
+     * Starts over from the given torch state, e.g. when the camera has been reopened.
+     */
+    void reset(boolean torchOn) {
+        mTorchOn = torchOn;
+        mFrames = 0;
+        mLastSwitchNanos = 0;
+        mLastLuma = -1;
+    }
+
+    /**
+     * Returns whether the torch should be on, as decided so far.
+     */
+    boolean isTorchOn() {
+        return mTorchOn;
+    }
+
+    /**
+     * Returns the median luma of the last frame metered, or -1 if none was.
+     */
+    int getLastLuma() {
+        return mLastLuma;
+    }
+
+    /**
+     * Meters a region of the luma plane of a frame, and returns whether the torch should now be
+     * switched, to the state given by {@link #isTorchOn()}.
+     */
+    boolean onFrame(byte[] luma, int width, int regionX, int regionY, int regionWidth,
+                    int regionHeight, long nowNanos) {
+        int median = medianLuma(luma, width, regionX, regionY, regionWidth, regionHeight);
+        if (median < 0) {
+            return false;
+        }
+        mLastLuma = median;
+
+        boolean wantsSwitch = mTorchOn ? (median > mBrightLuma) : (median < mDarkLuma);
+        if (!wantsSwitch) {
+            mFrames = 0;
+            return false;
+        }
+        if ((++mFrames < SWITCH_FRAMES) || ((mLastSwitchNanos != 0) &&
+                (nowNanos - mLastSwitchNanos <
+                        TimeUnit.MILLISECONDS.toNanos(MIN_SWITCH_INTERVAL_MILLIS)))) {
+            return false;
+        }
+        mTorchOn = !mTorchOn;
+        mFrames = 0;
+        mLastSwitchNanos = nowNanos;
+        return true;
+    }
+
+    /**
+     * Returns the median of the luma samples in the region, to the middle of its histogram
+     * bucket, or -1 if the region is too small to sample.
+     */
+    private int medianLuma(byte[] luma, int width, int regionX, int regionY, int regionWidth,
+                           int regionHeight) {
+        int columns = regionWidth / SAMPLE_STEP;
+        int rows = regionHeight / SAMPLE_STEP;
+        int count = columns * rows;
+        if (count <= 0) {
+            return -1;
+        }
+
+        int[] histogram = mHistogram;
+        for (int i = 0; i < histogram.length; ++i) {
+            histogram[i] = 0;
+        }
+        for (int row = 0; row < rows; ++row) {
+            int offset = (regionY + SAMPLE_STEP / 2 + row * SAMPLE_STEP) * width + regionX +
+                    SAMPLE_STEP / 2;
+            for (int column = 0; column < columns; ++column) {
+                ++histogram[(luma[offset] & 0xFF) >> BUCKET_SHIFT];
+                offset += SAMPLE_STEP;
+            }
+        }
+
+        int seen = 0;
+        for (int bucket = 0; bucket < histogram.length; ++bucket) {
+            seen += histogram[bucket];
+            if (2 * seen >= count) {
+                return (bucket << BUCKET_SHIFT) + (1 << (BUCKET_SHIFT - 1));
+            }
+        }
+        return 255;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+/**
+ * Decides how far to zoom in on the item being scanned, so that small or distant items are seen
+ * with more pixels without raising the preview resolution.  Zoom crops the sensor image around
+ * its center, so an item's size and its distance from the center both grow with the zoom ratio.
+ * <p/>
+ * While an item is found, the zoom is stepped towards where the item spans
+ * {@link #TARGET_FRACTION} of the frame, but only when it spans less than {@link #MIN_FRACTION} or
+ * more than {@link #MAX_FRACTION}, and never so far that the item would leave the middle
+ * {@link #MAX_EXTENT} of the frame.  Once no item has been found for {@link #LOST_FRAMES} frames
+ * in a row, the zoom is stepped back out.  Each step changes the ratio by at most
+ * {@link #STEP}, and the next one waits {@link #SETTLE_FRAMES} frames for the camera to apply it.
+ */
+class AutoZoomController {
+    static final float MIN_FRACTION = 0.25f;
+    static final float TARGET_FRACTION = 0.45f;
+    static final float MAX_FRACTION = 0.8f;
+    static final float MAX_EXTENT = 0.8f;
+    static final float STEP = 1.25f;
+    static final int SETTLE_FRAMES = 3;
+    static final int LOST_FRAMES = 15;
+
+    // changes smaller than this share of the current ratio are not worth a camera update.
+    private static final float MIN_CHANGE = 0.02f;
+
+    private final float mMaxRatio;
+    private float mRatio = 1.0f;
+    private int mSettleFrames;
+    private int mMissingFrames;
+
+    /**
+     * Creates a controller that zooms in no further than the given ratio.
+     */
+    AutoZoomController(float maxRatio) {
+        if (maxRatio < 1.0f) {
+            throw new IllegalArgumentException("Invalid maximum zoom ratio: " + maxRatio);
+        }
+        mMaxRatio = maxRatio;
+    }
+
+    /**
+     * Returns the zoom ratio decided on so far, 1 meaning not zoomed in.
+     */
+    float getRatio() {
+        return mRatio;
+    }
+
+    /**
+     * Goes back to no zoom, e.g. when the camera has been reopened.
+     */
+    void reset() {
+        mRatio = 1.0f;
+        mSettleFrames = 0;
+        mMissingFrames = 0;
+    }
+
+    /**
+     * Updates the zoom for a frame in which an item was found, and returns the ratio to zoom to.
+     *
+     * @param size   the larger of the item's width and height, as a fraction of the frame's
+     * @param extent how far the item's furthest edge is from the center of the frame, as a
+     *               fraction of the distance from the center to the frame's edge
+     */
+    float onItemFound(float size, float extent) {
+        mMissingFrames = 0;
+        if (mSettleFrames > 0) {
+            --mSettleFrames;
+            return mRatio;
+        }
+
+        float target = mRatio;
+        if ((size > 0.0f) && ((size < MIN_FRACTION) || (size > MAX_FRACTION))) {
+            target = mRatio * TARGET_FRACTION / size;
+        }
+        if (extent > 0.0f) {
+            // Keeps the item well inside the frame, zooming out if it is already too far out.
+            target = Math.min(target, mRatio * MAX_EXTENT / extent);
+        }
+        return stepTo(target);
+    }
+
+    /**
+     * Updates the zoom for a frame in which nothing was found, and returns the ratio to zoom to.
+     */
+    float onNothingFound() {
+        ++mMissingFrames;
+        if (mSettleFrames > 0) {
+            --mSettleFrames;
+            return mRatio;
+        }
+        if (mMissingFrames < LOST_FRAMES) {
+            return mRatio;
+        }
+        return stepTo(1.0f);
+    }
+
+    private float stepTo(float target) {
+        target = Math.max(mRatio / STEP, Math.min(mRatio * STEP, target));
+        target = Math.max(1.0f, Math.min(mMaxRatio, target));
+        // Going all the way back out is always worth it, however small the step.
+        if ((target == mRatio) ||
+                ((target > 1.0f) && (Math.abs(target - mRatio) < mRatio * MIN_CHANGE))) {
+            return mRatio;
+        }
+        mRatio = target;
+        mSettleFrames = SETTLE_FRAMES;
+        return mRatio;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * Reads the device state from the last battery broadcast.  The battery temperature stands in for
+ * the thermal state, which the platform only reports directly on much newer versions: headroom
+ * is full up to {@link #COOL_CELSIUS} and runs out at {@link #THROTTLE_CELSIUS}, around where
+ * devices start throttling to protect the battery.
+ */
+public class BatteryDeviceStateProvider implements DeviceStateProvider {
+    static final float COOL_CELSIUS = 35.0f;
+    static final float THROTTLE_CELSIUS = 45.0f;
+
+    private final Context mContext;
+
+    public BatteryDeviceStateProvider(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public DeviceState getDeviceState() {
+        // The battery broadcast is sticky, so this returns the last one without registering.
+        Intent battery =
+                mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return new DeviceState(1, DeviceState.BATTERY_UNKNOWN, false);
+        }
+
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int percent = ((level >= 0) && (scale > 0)) ?
+                Math.min(100, level * 100 / scale) : DeviceState.BATTERY_UNKNOWN;
+        boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        float headroom = 1;
+        if (battery.hasExtra(BatteryManager.EXTRA_TEMPERATURE)) {
+            // Reported in tenths of a degree.
+            float celsius = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) / 10.0f;
+            headroom = (THROTTLE_CELSIUS - celsius) / (THROTTLE_CELSIUS - COOL_CELSIUS);
+        }
+        return new DeviceState(headroom, percent, charging);
+    }
+}
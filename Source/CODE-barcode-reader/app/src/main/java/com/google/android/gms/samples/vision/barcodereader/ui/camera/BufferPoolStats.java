@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the process-wide preview buffer pool: how many buffers camera sources had to
+ * allocate, how many allocations reusing a pooled buffer avoided, and how much idle buffer memory
+ * the pool holds.  See {@link CameraSource#getBufferPoolStats()}.
+ */
+public class BufferPoolStats {
+    private final long mAllocations;
+    private final long mReuses;
+    private final long mDiscards;
+    private final long mPooledBytes;
+    private final long mMaxBytes;
+
+    BufferPoolStats(long allocations, long reuses, long discards, long pooledBytes,
+                    long maxBytes) {
+        mAllocations = allocations;
+        mReuses = reuses;
+        mDiscards = discards;
+        mPooledBytes = pooledBytes;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the number of preview buffers newly allocated because none was pooled.
+     */
+    public long getAllocationCount() {
+        return mAllocations;
+    }
+
+    /**
+     * Returns the number of preview buffers taken from the pool, i.e. the allocations avoided.
+     */
+    public long getReuseCount() {
+        return mReuses;
+    }
+
+    /**
+     * Returns the number of buffers dropped because of the memory cap or trimming.
+     */
+    public long getDiscardCount() {
+        return mDiscards;
+    }
+
+    /**
+     * Returns the memory held by idle buffers, in bytes.
+     */
+    public long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /**
+     * Returns the most idle buffer memory the pool holds, in bytes.
+     */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d allocated, %d reused, %d dropped, %.1f/%.1f MB idle",
+                mAllocations, mReuses, mDiscards, mPooledBytes / (1024f * 1024f),
+                mMaxBytes / (1024f * 1024f));
+    }
+}
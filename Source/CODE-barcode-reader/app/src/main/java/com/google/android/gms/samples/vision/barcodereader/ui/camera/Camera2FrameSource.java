@@ -0,0 +1,887 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresPermission;
+import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import com.google.android.gms.common.images.Size;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Camera2 backend for {@link CameraSource}.  The display is fed by its own stream at display
+ * resolution, while frames for detection come from a separate {@link ImageReader} stream in
+ * {@link ImageFormat#YUV_420_888}, which can be smaller than the display.
+ * <p/>
+ * Frames are handed on in the same preview buffers that the camera1 backend uses, so the rest of
+ * the pipeline does not need to know which backend is running.  Only the luma plane is copied
+ * out of each image, once, straight into a free buffer; the chroma plane of each buffer is set to
+ * neutral values once, since detection only looks at luma.
+ * <p/>
+ * All camera callbacks run on a dedicated background thread, which is also the thread that
+ * {@link FrameCallback#onFrame(byte[])} is called on.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+@SuppressWarnings("deprecation")
+class Camera2FrameSource {
+    private static final String TAG = "Camera2FrameSource";
+
+    /**
+     * How long to wait for the camera to open and the capture session to be configured.
+     */
+    private static final long OPEN_TIMEOUT_MILLIS = 2500;
+
+    /**
+     * The analysis stream must have the same aspect ratio as the display stream, so that
+     * detection results line up with what is shown.
+     */
+    private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+    /**
+     * Number of steps that the digital zoom range is split into, to match the integer zoom values
+     * of the camera1 API.
+     */
+    static final int MAX_ZOOM = 99;
+
+    /**
+     * Receives each analysis frame, as a preview buffer from the ring.
+     */
+    interface FrameCallback {
+        void onFrame(byte[] data);
+    }
+
+    private final Context mContext;
+    private final int mFacing;
+    private final FrameBufferRing mBufferRing;
+    private final FrameCallback mCallback;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private CameraCharacteristics mCharacteristics;
+    private CameraDevice mDevice;
+    private CameraCaptureSession mSession;
+    private ImageReader mImageReader;
+    private Surface mDisplaySurface;
+    private Size mDisplaySize;
+    private Size mAnalysisSize;
+
+    // This lock guards the request settings and buffer bookkeeping below, which are changed from
+    // both the caller's thread and the camera thread.
+    private final Object mLock = new Object();
+    private CaptureRequest.Builder mRequestBuilder;
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<>();
+    private boolean[] mChromaReady;
+    private Range<Integer> mFpsRange;
+    private int mZoom;
+    private boolean mClosed = true;
+    private CameraSource.AutoFocusCallback mAutoFocusCallback;
+    private CameraSource.AutoFocusMoveCallback mAutoFocusMoveCallback;
+    private boolean mAutoFocusMoving;
+
+    Camera2FrameSource(Context context, int facing, FrameBufferRing ring,
+                       FrameCallback callback) {
+        mContext = context;
+        mFacing = facing;
+        mBufferRing = ring;
+        mCallback = callback;
+    }
+
+    /**
+     * Returns whether the camera facing the given direction is better served by camera2 than
+     * camera1, i.e. runs on Lollipop or later and is not merely a camera2 wrapper around a legacy
+     * camera1 implementation.
+     */
+    static boolean isSupported(Context context, int facing) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            CameraManager manager =
+                    (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+            String cameraId = findCameraId(manager, facing);
+            if (cameraId == null) {
+                return false;
+            }
+            Integer level = manager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return (level != null) &&
+                    (level != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
+        } catch (CameraAccessException | RuntimeException e) {
+            Log.w(TAG, "Could not query camera2 capabilities.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the sizes that the camera facing the given direction can stream for analysis, or an
+     * empty list if it could not be queried.
+     */
+    static List<Size> getAnalysisSizes(Context context, int facing) {
+        List<Size> sizes = new ArrayList<>();
+        try {
+            CameraManager manager =
+                    (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+            String cameraId = findCameraId(manager, facing);
+            if (cameraId == null) {
+                return sizes;
+            }
+            StreamConfigurationMap map = manager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            for (android.util.Size size : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+                sizes.add(new Size(size.getWidth(), size.getHeight()));
+            }
+        } catch (CameraAccessException | RuntimeException e) {
+            Log.w(TAG, "Could not query camera2 stream sizes.", e);
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns the id of the first camera facing the given direction, which is one of the camera1
+     * facing constants used by {@link CameraSource}, or null if there is none.
+     */
+    private static String findCameraId(CameraManager manager, int facing)
+            throws CameraAccessException {
+        int lensFacing = (facing == Camera.CameraInfo.CAMERA_FACING_FRONT) ?
+                CameraCharacteristics.LENS_FACING_FRONT : CameraCharacteristics.LENS_FACING_BACK;
+        for (String id : manager.getCameraIdList()) {
+            Integer value = manager.getCameraCharacteristics(id).get(
+                    CameraCharacteristics.LENS_FACING);
+            if ((value != null) && (value == lensFacing)) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens the camera and starts streaming.  Preview buffers are allocated in the ring for the
+     * selected analysis size before the first frame arrives.
+     *
+     * @param holder        the surface holder to display the preview on, or null for none
+     * @param displaySize   the desired size of the displayed preview
+     * @param analysisSize  the desired size of the frames handed to the detector
+     * @param fps           the desired frame rate
+     * @param focusMode     the camera1 focus mode to apply, or null for the default
+     * @param flashMode     the camera1 flash mode to apply, or null for the default
+     * @throws IOException if the camera could not be opened or configured
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    void open(@Nullable SurfaceHolder holder, Size displaySize, Size analysisSize, float fps,
+              @Nullable String focusMode, @Nullable String flashMode) throws IOException {
+        CameraManager manager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        String cameraId;
+        try {
+            cameraId = findCameraId(manager, mFacing);
+            if (cameraId == null) {
+                throw new RuntimeException("Could not find requested camera.");
+            }
+            mCharacteristics = manager.getCameraCharacteristics(cameraId);
+        } catch (CameraAccessException e) {
+            throw new IOException("Could not access camera.", e);
+        }
+
+        StreamConfigurationMap map =
+                mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        mDisplaySize = selectSize(map.getOutputSizes(SurfaceHolder.class), displaySize, null);
+        mAnalysisSize = selectSize(map.getOutputSizes(ImageFormat.YUV_420_888), analysisSize,
+                mDisplaySize);
+        if ((mDisplaySize == null) || (mAnalysisSize == null)) {
+            throw new RuntimeException("Could not find suitable preview size.");
+        }
+        mFpsRange = selectFpsRange(fps);
+
+        mThread = new HandlerThread("Camera2FrameSource");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        synchronized (mLock) {
+            mClosed = false;
+            mFreeBuffers.clear();
+            mChromaReady = new boolean[mBufferRing.depth()];
+        }
+        mBufferRing.allocate(mAnalysisSize.getWidth(), mAnalysisSize.getHeight());
+        mBufferRing.attach(new FreeBufferQueue());
+
+        mImageReader = ImageReader.newInstance(mAnalysisSize.getWidth(),
+                mAnalysisSize.getHeight(), ImageFormat.YUV_420_888, 2);
+        mImageReader.setOnImageAvailableListener(new ImageAvailableListener(), mHandler);
+
+        List<Surface> targets = new ArrayList<>();
+        targets.add(mImageReader.getSurface());
+        if (holder != null) {
+            holder.setFixedSize(mDisplaySize.getWidth(), mDisplaySize.getHeight());
+            mDisplaySurface = holder.getSurface();
+            targets.add(mDisplaySurface);
+        }
+
+        try {
+            mDevice = openDevice(manager, cameraId);
+            mSession = createSession(targets);
+
+            CaptureRequest.Builder builder =
+                    mDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            for (Surface target : targets) {
+                builder.addTarget(target);
+            }
+            builder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+            if (mFpsRange != null) {
+                builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFpsRange);
+            }
+            synchronized (mLock) {
+                mRequestBuilder = builder;
+                mZoom = 0;
+                if (!applyFocusMode(focusMode)) {
+                    applyFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+                }
+                if (flashMode != null) {
+                    applyFlashMode(flashMode);
+                }
+                updateRepeatingRequest();
+            }
+        } catch (CameraAccessException | RuntimeException e) {
+            close();
+            throw new IOException("Could not start camera2 capture session.", e);
+        }
+    }
+
+    /**
+     * Stops streaming and closes the camera.  Once this returns no more frames are delivered.
+     */
+    void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mRequestBuilder = null;
+            mFreeBuffers.clear();
+            mAutoFocusCallback = null;
+        }
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+        if (mDevice != null) {
+            mDevice.close();
+            mDevice = null;
+        }
+        if (mThread != null) {
+            // Let any frame callback that is already running finish before the reader goes away.
+            mThread.quitSafely();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Camera2 thread interrupted on close.");
+            }
+            mThread = null;
+            mHandler = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        mDisplaySurface = null;
+    }
+
+    /**
+     * Returns the size of the frames handed to the detector.
+     */
+    Size getAnalysisSize() {
+        return mAnalysisSize;
+    }
+
+    /**
+     * Returns the size of the displayed preview.
+     */
+    Size getDisplaySize() {
+        return mDisplaySize;
+    }
+
+    /**
+     * Returns the clockwise angle that the sensor image must be rotated by to be upright in the
+     * device's natural orientation.
+     */
+    int getSensorOrientation() {
+        Integer orientation = mCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        return (orientation != null) ? orientation : 0;
+    }
+
+    /**
+     * Applies a camera1 focus mode.  Returns false if the camera has no equivalent mode.
+     */
+    boolean setFocusMode(String mode) {
+        synchronized (mLock) {
+            return !mClosed && applyFocusMode(mode) && updateRepeatingRequest();
+        }
+    }
+
+    /**
+     * Applies a camera1 flash mode.  Returns false if the camera has no flash or no equivalent
+     * mode.
+     */
+    boolean setFlashMode(String mode) {
+        synchronized (mLock) {
+            return !mClosed && applyFlashMode(mode) && updateRepeatingRequest();
+        }
+    }
+
+    /**
+     * Returns whether the camera supports digital zoom at all.
+     */
+    boolean isZoomSupported() {
+        Float maxZoom = mCharacteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        return (maxZoom != null) && (maxZoom > 1.0f);
+    }
+
+    /**
+     * Returns the furthest the camera can zoom in, as a ratio, or 1 if it cannot zoom.
+     */
+    float getMaxZoomRatio() {
+        Float maxZoom = mCharacteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        return (maxZoom != null) ? Math.max(1.0f, maxZoom) : 1.0f;
+    }
+
+    /**
+     * Returns the current zoom step, between 0 and {@link #MAX_ZOOM}.
+     */
+    int getZoom() {
+        synchronized (mLock) {
+            return mZoom;
+        }
+    }
+
+    /**
+     * Zooms to the given step, between 0 and {@link #MAX_ZOOM}, by cropping the sensor image
+     * around its center.  Steps are spread linearly over the camera's digital zoom range.
+     */
+    void setZoom(int zoom) {
+        Rect activeArray = mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        Float maxZoom = mCharacteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        if ((activeArray == null) || (maxZoom == null)) {
+            return;
+        }
+        float ratio = 1.0f + (maxZoom - 1.0f) * zoom / MAX_ZOOM;
+        int cropWidth = (int) (activeArray.width() / ratio);
+        int cropHeight = (int) (activeArray.height() / ratio);
+        int left = activeArray.left + (activeArray.width() - cropWidth) / 2;
+        int top = activeArray.top + (activeArray.height() - cropHeight) / 2;
+
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mZoom = zoom;
+            mRequestBuilder.set(CaptureRequest.SCALER_CROP_REGION,
+                    new Rect(left, top, left + cropWidth, top + cropHeight));
+            updateRepeatingRequest();
+        }
+    }
+
+    /**
+     * Focuses and meters on the given area of the analysis image, as fractions of it in the
+     * sensor's orientation, {@code {left, top, right, bottom}}.  The analysis image is the
+     * current zoom's crop of the sensor, cropped further to its aspect ratio.  Returns false if
+     * the camera takes neither focus nor metering regions.
+     */
+    boolean setFocusArea(float[] area) {
+        Integer maxFocusRegions = mCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+        Integer maxMeteringRegions =
+                mCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+        boolean focus = (maxFocusRegions != null) && (maxFocusRegions > 0);
+        boolean metering = (maxMeteringRegions != null) && (maxMeteringRegions > 0);
+        if (!focus && !metering) {
+            return false;
+        }
+
+        synchronized (mLock) {
+            if (mClosed) {
+                return false;
+            }
+            Rect crop = mRequestBuilder.get(CaptureRequest.SCALER_CROP_REGION);
+            if (crop == null) {
+                crop = mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+                if (crop == null) {
+                    return false;
+                }
+            }
+            // The stream keeps its own aspect ratio by cropping the middle of the region.
+            float aspect = (float) mAnalysisSize.getWidth() / mAnalysisSize.getHeight();
+            float width = Math.min(crop.width(), crop.height() * aspect);
+            float height = Math.min(crop.height(), crop.width() / aspect);
+            float left = crop.left + (crop.width() - width) / 2;
+            float top = crop.top + (crop.height() - height) / 2;
+
+            MeteringRectangle[] regions = new MeteringRectangle[]{new MeteringRectangle(
+                    new Rect(Math.round(left + area[0] * width), Math.round(top + area[1] * height),
+                            Math.round(left + area[2] * width),
+                            Math.round(top + area[3] * height)),
+                    MeteringRectangle.METERING_WEIGHT_MAX)};
+            if (focus) {
+                mRequestBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+            }
+            if (metering) {
+                mRequestBuilder.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+            }
+            return updateRepeatingRequest();
+        }
+    }
+
+    /**
+     * Moves the target fps range to the supported range closest to the given frame rate.
+     */
+    void setTargetFps(float fps) {
+        Range<Integer> range = selectFpsRange(fps);
+        synchronized (mLock) {
+            if (mClosed || (range == null) || range.equals(mFpsRange)) {
+                return;
+            }
+            mFpsRange = range;
+            mRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+            if (updateRepeatingRequest()) {
+                Log.d(TAG, "Target fps range set to " + range + " for a target of " + fps + " fps");
+            }
+        }
+    }
+
+    /**
+     * Triggers a single auto-focus scan in the auto and macro focus modes.  The callback is called
+     * once the lens has locked, or immediately with {@code true} in the other focus modes, as
+     * camera1 does for cameras that do not support auto-focus.
+     */
+    void autoFocus(@Nullable CameraSource.AutoFocusCallback cb) {
+        boolean immediate;
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            Integer mode = mRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE);
+            immediate = (mode == null) || ((mode != CaptureRequest.CONTROL_AF_MODE_AUTO) &&
+                    (mode != CaptureRequest.CONTROL_AF_MODE_MACRO));
+            if (!immediate) {
+                mAutoFocusCallback = cb;
+                triggerAutoFocus(CaptureRequest.CONTROL_AF_TRIGGER_START);
+            }
+        }
+        if (immediate && (cb != null)) {
+            cb.onAutoFocus(true);
+        }
+    }
+
+    /**
+     * Cancels any auto-focus scan in progress.
+     */
+    void cancelAutoFocus() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mAutoFocusCallback = null;
+            triggerAutoFocus(CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+        }
+    }
+
+    /**
+     * Sets the callback told when the lens starts and stops moving in the continuous focus modes.
+     */
+    void setAutoFocusMoveCallback(@Nullable CameraSource.AutoFocusMoveCallback cb) {
+        synchronized (mLock) {
+            mAutoFocusMoveCallback = cb;
+            mAutoFocusMoving = false;
+        }
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    /**
+     * Returns the size closest to the desired size, using the same measure as camera1 preview
+     * size selection.  If {@code aspectOf} is given, only sizes with its aspect ratio are
+     * considered, unless there are none.
+     */
+    @Nullable
+    private static Size selectSize(android.util.Size[] sizes, Size desired,
+                                   @Nullable Size aspectOf) {
+        if (sizes == null) {
+            return null;
+        }
+        Size selected = null;
+        Size selectedAnyAspect = null;
+        int minDiff = Integer.MAX_VALUE;
+        int minDiffAnyAspect = Integer.MAX_VALUE;
+        for (android.util.Size size : sizes) {
+            int diff = Math.abs(size.getWidth() - desired.getWidth()) +
+                    Math.abs(size.getHeight() - desired.getHeight());
+            if (diff < minDiffAnyAspect) {
+                selectedAnyAspect = new Size(size.getWidth(), size.getHeight());
+                minDiffAnyAspect = diff;
+            }
+            if ((aspectOf != null) && (Math.abs(
+                    (float) size.getWidth() / size.getHeight() -
+                    (float) aspectOf.getWidth() / aspectOf.getHeight()) >= ASPECT_RATIO_TOLERANCE)) {
+                continue;
+            }
+            if (diff < minDiff) {
+                selected = new Size(size.getWidth(), size.getHeight());
+                minDiff = diff;
+            }
+        }
+        if (selected == null) {
+            Log.w(TAG, "No analysis sizes match the display aspect ratio");
+            return selectedAnyAspect;
+        }
+        return selected;
+    }
+
+    /**
+     * Returns the supported auto-exposure fps range closest to the given frame rate, using the
+     * same measure as camera1 preview fps range selection.
+     */
+    @Nullable
+    private Range<Integer> selectFpsRange(float fps) {
+        Range<Integer>[] ranges =
+                mCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null) {
+            return null;
+        }
+        Range<Integer> selected = null;
+        float minDiff = Float.MAX_VALUE;
+        for (Range<Integer> range : ranges) {
+            float diff = Math.abs(fps - range.getLower()) + Math.abs(fps - range.getUpper());
+            if (diff < minDiff) {
+                selected = range;
+                minDiff = diff;
+            }
+        }
+        return selected;
+    }
+
+    @RequiresPermission(Manifest.permission.CAMERA)
+    private CameraDevice openDevice(CameraManager manager, String cameraId)
+            throws CameraAccessException, IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CameraDevice[] opened = new CameraDevice[1];
+        manager.openCamera(cameraId, new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(CameraDevice camera) {
+                opened[0] = camera;
+                latch.countDown();
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice camera) {
+                Log.w(TAG, "Camera disconnected.");
+                camera.close();
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(CameraDevice camera, int error) {
+                Log.e(TAG, "Camera error: " + error);
+                camera.close();
+                latch.countDown();
+            }
+        }, mHandler);
+        await(latch);
+        if (opened[0] == null) {
+            throw new IOException("Could not open camera " + cameraId + ".");
+        }
+        return opened[0];
+    }
+
+    private CameraCaptureSession createSession(List<Surface> targets)
+            throws CameraAccessException, IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CameraCaptureSession[] configured = new CameraCaptureSession[1];
+        mDevice.createCaptureSession(targets, new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession session) {
+                configured[0] = session;
+                latch.countDown();
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession session) {
+                Log.e(TAG, "Could not configure capture session.");
+                latch.countDown();
+            }
+        }, mHandler);
+        await(latch);
+        if (configured[0] == null) {
+            throw new IOException("Could not configure capture session.");
+        }
+        return configured[0];
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            if (!latch.await(OPEN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for camera.");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for camera.", e);
+        }
+    }
+
+    /**
+     * Sets the camera2 equivalent of a camera1 focus mode on the request.  Must be called while
+     * holding {@link #mLock}.
+     */
+    private boolean applyFocusMode(@Nullable String mode) {
+        if (mode == null) {
+            return false;
+        }
+        int afMode;
+        switch (mode) {
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE:
+                afMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+                break;
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO:
+                afMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_AUTO:
+                afMode = CaptureRequest.CONTROL_AF_MODE_AUTO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_MACRO:
+                afMode = CaptureRequest.CONTROL_AF_MODE_MACRO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_EDOF:
+                afMode = CaptureRequest.CONTROL_AF_MODE_EDOF;
+                break;
+            default:
+                afMode = CaptureRequest.CONTROL_AF_MODE_OFF;
+                break;
+        }
+        if (!contains(mCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES),
+                afMode)) {
+            Log.i(TAG, "Camera focus mode: " + mode + " is not supported on this device.");
+            return false;
+        }
+        mRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+        if (Camera.Parameters.FOCUS_MODE_INFINITY.equals(mode)) {
+            mRequestBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, 0.0f);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the camera2 equivalent of a camera1 flash mode on the request.  Must be called while
+     * holding {@link #mLock}.
+     */
+    private boolean applyFlashMode(String mode) {
+        Boolean hasFlash = mCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        if ((hasFlash == null) || !hasFlash) {
+            return false;
+        }
+        int aeMode = CaptureRequest.CONTROL_AE_MODE_ON;
+        int flashMode = CaptureRequest.FLASH_MODE_OFF;
+        switch (mode) {
+            case Camera.Parameters.FLASH_MODE_TORCH:
+                flashMode = CaptureRequest.FLASH_MODE_TORCH;
+                break;
+            case Camera.Parameters.FLASH_MODE_ON:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_AUTO:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_RED_EYE:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE;
+                break;
+            case Camera.Parameters.FLASH_MODE_OFF:
+                break;
+            default:
+                return false;
+        }
+        mRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, aeMode);
+        mRequestBuilder.set(CaptureRequest.FLASH_MODE, flashMode);
+        return true;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        if (values == null) {
+            return false;
+        }
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restarts the repeating request with the current settings.  Must be called while holding
+     * {@link #mLock}.
+     */
+    private boolean updateRepeatingRequest() {
+        try {
+            mSession.setRepeatingRequest(mRequestBuilder.build(), new FocusStateCallback(),
+                    mHandler);
+            return true;
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Could not update capture request.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Sends a single request with the given auto-focus trigger.  Must be called while holding
+     * {@link #mLock}.
+     */
+    private void triggerAutoFocus(int trigger) {
+        try {
+            mRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, trigger);
+            mSession.capture(mRequestBuilder.build(), null, mHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Could not trigger auto-focus.", e);
+        } finally {
+            mRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                    CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+        }
+    }
+
+    /**
+     * Reports auto-focus results and lens movement from the repeating request's results.
+     */
+    private class FocusStateCallback extends CameraCaptureSession.CaptureCallback {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                       TotalCaptureResult result) {
+            Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+            if (state == null) {
+                return;
+            }
+
+            CameraSource.AutoFocusCallback focusCallback = null;
+            CameraSource.AutoFocusMoveCallback moveCallback = null;
+            boolean moving;
+            synchronized (mLock) {
+                if ((mAutoFocusCallback != null) &&
+                        ((state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED) ||
+                         (state == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED))) {
+                    focusCallback = mAutoFocusCallback;
+                    mAutoFocusCallback = null;
+                }
+                moving = (state == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN);
+                if (moving != mAutoFocusMoving) {
+                    mAutoFocusMoving = moving;
+                    moveCallback = mAutoFocusMoveCallback;
+                }
+            }
+
+            if (focusCallback != null) {
+                focusCallback.onAutoFocus(state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED);
+            }
+            if (moveCallback != null) {
+                moveCallback.onAutoFocusMoving(moving);
+            }
+        }
+    }
+
+    /**
+     * Keeps the buffers that the rest of the pipeline is done with, for the next images.
+     */
+    private class FreeBufferQueue implements FrameBufferRing.BufferQueue {
+        @Override
+        public void queueBuffer(int slot, byte[] buffer) {
+            synchronized (mLock) {
+                if (mClosed) {
+                    return;
+                }
+                if (!mChromaReady[slot]) {
+                    Nv21.fillNeutralChroma(buffer, mAnalysisSize.getWidth(),
+                            mAnalysisSize.getHeight());
+                    mChromaReady[slot] = true;
+                }
+                mFreeBuffers.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Copies the luma plane of each new analysis image into a free buffer and hands it on.  If
+     * there is no free buffer the image is dropped, just as camera1 drops preview frames when it
+     * runs out of callback buffers.
+     */
+    private class ImageAvailableListener implements ImageReader.OnImageAvailableListener {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+
+            byte[] buffer;
+            try {
+                synchronized (mLock) {
+                    buffer = mFreeBuffers.poll();
+                }
+                if (buffer == null) {
+                    mBufferRing.onFrameDropped(System.nanoTime());
+                    return;
+                }
+                copyLuma(image.getPlanes()[0], image.getWidth(), image.getHeight(), buffer);
+            } finally {
+                image.close();
+            }
+            mCallback.onFrame(buffer);
+        }
+
+        private void copyLuma(Image.Plane plane, int width, int height, byte[] dst) {
+            ByteBuffer src = plane.getBuffer();
+            int rowStride = plane.getRowStride();
+            if (rowStride == width) {
+                src.get(dst, 0, width * height);
+                return;
+            }
+            for (int row = 0; row < height; ++row) {
+                src.position(row * rowStride);
+                src.get(dst, row * width, width);
+            }
+        }
+    }
+}
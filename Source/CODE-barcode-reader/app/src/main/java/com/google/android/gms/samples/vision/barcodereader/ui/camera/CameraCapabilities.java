@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of a camera1 camera's supported parameters that the camera source chooses its
+ * configuration from.  Sizes are {@code {width, height}} pairs, and frame rate ranges are
+ * {@code {min, max}} pairs scaled by 1000, as in the camera API.  Flash modes are empty if the
+ * camera has no flash.
+ * <p/>
+ * Capabilities can be flattened to a string and back, so that they can be cached between runs
+ * instead of being queried from the camera on every start.
+ */
+final class CameraCapabilities {
+    final List<int[]> previewSizes;
+    final List<int[]> pictureSizes;
+    final List<int[]> previewFpsRanges;
+    final List<String> focusModes;
+    final List<String> flashModes;
+
+    /**
+     * A configuration chosen from the capabilities for a requested preview size and frame rate.
+     * The picture size is zero if there is none with the preview's aspect ratio.
+     */
+    static final class Selection {
+        final int previewWidth;
+        final int previewHeight;
+        final int pictureWidth;
+        final int pictureHeight;
+        final int[] previewFpsRange;
+
+        Selection(int previewWidth, int previewHeight, int pictureWidth, int pictureHeight,
+                  int[] previewFpsRange) {
+            this.previewWidth = previewWidth;
+            this.previewHeight = previewHeight;
+            this.pictureWidth = pictureWidth;
+            this.pictureHeight = pictureHeight;
+            this.previewFpsRange = previewFpsRange;
+        }
+
+        String flatten() {
+            return previewWidth + "," + previewHeight + "," + pictureWidth + "," + pictureHeight +
+                    "," + previewFpsRange[0] + "," + previewFpsRange[1];
+        }
+
+        /**
+         * Parses a selection flattened with {@link #flatten()}.
+         *
+         * @throws IllegalArgumentException if the string is not a flattened selection
+         */
+        static Selection unflatten(String flattened) {
+            String[] values = flattened.split(",");
+            if (values.length != 6) {
+                throw new IllegalArgumentException("Bad camera selection: " + flattened);
+            }
+            int[] ints = new int[values.length];
+            for (int i = 0; i < values.length; ++i) {
+                ints[i] = Integer.parseInt(values[i]);
+            }
+            return new Selection(ints[0], ints[1], ints[2], ints[3], new int[]{ints[4], ints[5]});
+        }
+    }
+
+    CameraCapabilities(List<int[]> previewSizes, List<int[]> pictureSizes,
+                       List<int[]> previewFpsRanges, List<String> focusModes,
+                       List<String> flashModes) {
+        this.previewSizes = Collections.unmodifiableList(previewSizes);
+        this.pictureSizes = Collections.unmodifiableList(pictureSizes);
+        this.previewFpsRanges = Collections.unmodifiableList(previewFpsRanges);
+        this.focusModes = Collections.unmodifiableList(focusModes);
+        this.flashModes = Collections.unmodifiableList(flashModes);
+    }
+
+    /**
+     * Returns the capabilities as a single string, in the form
+     * {@code preview;picture;fps;focus;flash}, where sizes are written as {@code WxH}, ranges as
+     * {@code min-max} and entries are separated by commas.
+     */
+    String flatten() {
+        StringBuilder builder = new StringBuilder();
+        appendPairs(builder, previewSizes, 'x');
+        builder.append(';');
+        appendPairs(builder, pictureSizes, 'x');
+        builder.append(';');
+        appendPairs(builder, previewFpsRanges, '-');
+        builder.append(';');
+        appendStrings(builder, focusModes);
+        builder.append(';');
+        appendStrings(builder, flashModes);
+        return builder.toString();
+    }
+
+    /**
+     * Parses capabilities flattened with {@link #flatten()}.
+     *
+     * @throws IllegalArgumentException if the string is not flattened capabilities
+     */
+    static CameraCapabilities unflatten(String flattened) {
+        // Keep trailing empty sections, e.g. for a camera without a flash.
+        String[] sections = flattened.split(";", -1);
+        if (sections.length != 5) {
+            throw new IllegalArgumentException("Bad camera capabilities: " + flattened);
+        }
+        return new CameraCapabilities(parsePairs(sections[0], "x"), parsePairs(sections[1], "x"),
+                parsePairs(sections[2], "-"), parseStrings(sections[3]),
+                parseStrings(sections[4]));
+    }
+
+    private static void appendPairs(StringBuilder builder, List<int[]> pairs, char separator) {
+        for (int i = 0; i < pairs.size(); ++i) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(pairs.get(i)[0]).append(separator).append(pairs.get(i)[1]);
+        }
+    }
+
+    private static void appendStrings(StringBuilder builder, List<String> strings) {
+        for (int i = 0; i < strings.size(); ++i) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(strings.get(i));
+        }
+    }
+
+    private static List<int[]> parsePairs(String section, String separator) {
+        List<int[]> pairs = new ArrayList<>();
+        for (String entry : parseStrings(section)) {
+            String[] values = entry.split(separator);
+            if (values.length != 2) {
+                throw new IllegalArgumentException("Bad camera capability: " + entry);
+            }
+            pairs.add(new int[]{Integer.parseInt(values[0]), Integer.parseInt(values[1])});
+        }
+        return pairs;
+    }
+
+    private static List<String> parseStrings(String section) {
+        List<String> strings = new ArrayList<>();
+        if (!section.isEmpty()) {
+            Collections.addAll(strings, section.split(","));
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps what each camera1 camera supports, and the configuration chosen from that for each
+ * requested preview size and frame rate, in shared preferences.  Starting a camera then takes a
+ * single query of its parameters, rather than enumerating and parsing all of its supported sizes
+ * and ranges every time.
+ * <p/>
+ * Entries are keyed by camera id and the build fingerprint, so that a system update, which may
+ * change what the camera supports, queries it again.  Creating a cache starts loading the
+ * preferences in the background, so do so well before the camera is opened.
+ */
+final class CameraCapabilityCache {
+    private static final String TAG = "CameraCapabilityCache";
+    private static final String PREFERENCES = "camera_source_capabilities";
+
+    private final SharedPreferences mPreferences;
+
+    CameraCapabilityCache(Context context) {
+        mPreferences = context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Reads the capabilities the camera source needs from a camera's parameters.
+     */
+    static CameraCapabilities query(Camera.Parameters parameters) {
+        List<String> flashModes = parameters.getSupportedFlashModes();
+        return new CameraCapabilities(
+                toPairs(parameters.getSupportedPreviewSizes()),
+                toPairs(parameters.getSupportedPictureSizes()),
+                new ArrayList<>(parameters.getSupportedPreviewFpsRange()),
+                new ArrayList<>(parameters.getSupportedFocusModes()),
+                (flashModes != null) ? new ArrayList<>(flashModes) : new ArrayList<String>());
+    }
+
+    /**
+     * Returns the cached capabilities of the given camera, or null if there are none for this
+     * build.
+     */
+    CameraCapabilities getCapabilities(int cameraId) {
+        String flattened = mPreferences.getString(capabilitiesKey(cameraId), null);
+        if (flattened == null) {
+            return null;
+        }
+        try {
+            return CameraCapabilities.unflatten(flattened);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping unreadable capabilities for camera " + cameraId, e);
+            remove(cameraId);
+            return null;
+        }
+    }
+
+    /**
+     * Caches the capabilities of the given camera.  Entries for other builds are dropped.
+     */
+    void putCapabilities(int cameraId, CameraCapabilities capabilities) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (String key : mPreferences.getAll().keySet()) {
+            if (!key.startsWith(Build.FINGERPRINT + "/")) {
+                editor.remove(key);
+            }
+        }
+        editor.putString(capabilitiesKey(cameraId), capabilities.flatten()).apply();
+    }
+
+    /**
+     * Returns the configuration cached for the given camera and request, or null if there is
+     * none for this build.
+     */
+    CameraCapabilities.Selection getSelection(int cameraId, int width, int height, float fps) {
+        String flattened =
+                mPreferences.getString(selectionKey(cameraId, width, height, fps), null);
+        if (flattened == null) {
+            return null;
+        }
+        try {
+            return CameraCapabilities.Selection.unflatten(flattened);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping unreadable configuration for camera " + cameraId, e);
+            remove(cameraId);
+            return null;
+        }
+    }
+
+    /**
+     * Caches the configuration chosen for the given camera and request.
+     */
+    void putSelection(int cameraId, int width, int height, float fps,
+                      CameraCapabilities.Selection selection) {
+        mPreferences.edit()
+                .putString(selectionKey(cameraId, width, height, fps), selection.flatten())
+                .apply();
+    }
+
+    /**
+     * Returns whether anything is cached for the given camera.
+     */
+    boolean contains(int cameraId) {
+        String prefix = capabilitiesKey(cameraId);
+        for (String key : mPreferences.getAll().keySet()) {
+            if (key.equals(prefix) || key.startsWith(prefix + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the capabilities and every configuration cached for the given camera.
+     */
+    void remove(int cameraId) {
+        String prefix = capabilitiesKey(cameraId);
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (String key : mPreferences.getAll().keySet()) {
+            if (key.equals(prefix) || key.startsWith(prefix + "/")) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    private static String capabilitiesKey(int cameraId) {
+        return Build.FINGERPRINT + "/" + cameraId;
+    }
+
+    private static String selectionKey(int cameraId, int width, int height, float fps) {
+        return String.format(Locale.US, "%s/%dx%d@%.2f", capabilitiesKey(cameraId), width,
+                height, fps);
+    }
+
+    private static List<int[]> toPairs(List<Camera.Size> sizes) {
+        List<int[]> pairs = new ArrayList<>(sizes.size());
+        for (Camera.Size size : sizes) {
+            pairs.add(new int[]{size.width, size.height});
+        }
+        return pairs;
+    }
+}
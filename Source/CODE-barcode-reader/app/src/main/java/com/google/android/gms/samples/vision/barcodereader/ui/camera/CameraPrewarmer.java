@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Opens a camera1 camera on a background thread ahead of a camera source needing it, so that
+ * the few hundred milliseconds {@link Camera#open(int)} takes overlap with the scan screen
+ * starting up.  The next camera source to start on that camera claims it instead of opening it
+ * again.  If none does within {@link #HOLD_MILLIS}, the camera is released so that it is not held
+ * for nothing.
+ * <p/>
+ * A camera source claims the camera on the main thread, so it only waits
+ * {@link #CLAIM_TIMEOUT_MILLIS} for an open still in progress.  Past that, the open is abandoned,
+ * the camera is released as soon as it is open, and the camera source opens it directly, which
+ * reports whatever is keeping the camera from opening the usual way.
+ * <p/>
+ * Since the opening thread has no looper, the camera's callbacks go to the main looper, the same
+ * as for a camera opened on the main thread.
+ */
+final class CameraPrewarmer {
+    private static final String TAG = "CameraPrewarmer";
+
+    static final long HOLD_MILLIS = 5000;
+    static final long CLAIM_TIMEOUT_MILLIS = 1000;
+
+    private static final Object sLock = new Object();
+
+    // Guarded by sLock.  The camera id being opened or held, or -1 for none.
+    private static int sCameraId = -1;
+    private static boolean sOpening;
+    private static boolean sAbandoned;
+    private static Camera sCamera;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable sRelease = new Runnable() {
+        @Override
+        public void run() {
+            Camera camera;
+            synchronized (sLock) {
+                if (sOpening) {
+                    return;
+                }
+                camera = sCamera;
+                sCamera = null;
+                sCameraId = -1;
+            }
+            if (camera != null) {
+                Log.d(TAG, "Releasing unclaimed camera.");
+                camera.release();
+            }
+        }
+    };
+
+    private CameraPrewarmer() {
+    }
+
+    /**
+     * Starts opening the given camera in the background, unless it is already open or being
+     * opened here.
+     */
+    static void open(final int cameraId) {
+        synchronized (sLock) {
+            if (sCameraId != -1) {
+                return;
+            }
+            sCameraId = cameraId;
+            sOpening = true;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Camera camera = null;
+                try {
+                    camera = Camera.open(cameraId);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Could not open camera " + cameraId + " ahead of time.", e);
+                }
+                boolean abandoned;
+                synchronized (sLock) {
+                    sOpening = false;
+                    abandoned = sAbandoned;
+                    sAbandoned = false;
+                    sCamera = abandoned ? null : camera;
+                    if (sCamera == null) {
+                        sCameraId = -1;
+                    }
+                    sLock.notifyAll();
+                }
+                if (abandoned) {
+                    if (camera != null) {
+                        Log.d(TAG, "Releasing camera opened too late to be claimed.");
+                        camera.release();
+                    }
+                    return;
+                }
+                sHandler.removeCallbacks(sRelease);
+                sHandler.postDelayed(sRelease, HOLD_MILLIS);
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Returns the given camera if it was opened here, waiting up to {@link #CLAIM_TIMEOUT_MILLIS}
+     * for it if it is still being opened, or null otherwise.  The caller then owns the camera.
+     * An open that is given up on is abandoned, so that the caller can open the camera itself
+     * once it has been released.
+     */
+    static Camera claim(int cameraId) {
+        synchronized (sLock) {
+            if (sCameraId != cameraId) {
+                return null;
+            }
+            long deadline = SystemClock.elapsedRealtime() + CLAIM_TIMEOUT_MILLIS;
+            while (sOpening) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    Log.w(TAG, "Camera " + cameraId + " took too long to open ahead of time.");
+                    sAbandoned = true;
+                    return null;
+                }
+                try {
+                    sLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sAbandoned = true;
+                    return null;
+                }
+            }
+            Camera camera = sCamera;
+            sCamera = null;
+            sCameraId = -1;
+            return camera;
+        }
+    }
+}
@@ -18,17 +18,31 @@ package com.google.android.gms.samples.vision.barcodereader.ui.camera;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
+import android.hardware.display.DisplayManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.StringDef;
+import android.support.v4.content.ContextCompat;
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.Display;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -38,15 +52,20 @@ import com.google.android.gms.common.images.Size;
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Frame;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.Thread.State;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 // Note: This requires Google Play Services 8.1 or higher, due to using indirect byte buffers for
 // storing images.
@@ -77,6 +96,13 @@ public class CameraSource {
     @SuppressLint("InlinedApi")
     public static final int CAMERA_FACING_FRONT = CameraInfo.CAMERA_FACING_FRONT;
 
+    /**
+     * Camera APIs that the camera source can run on.  See {@link Builder#setCameraApi(int)}.
+     */
+    public static final int CAMERA_API_AUTO = 0;
+    public static final int CAMERA_API_1 = 1;
+    public static final int CAMERA_API_2 = 2;
+
     private static final String TAG = "OpenCameraSource";
 
     /**
@@ -119,26 +145,175 @@ public class CameraSource {
 
     // Guarded by mCameraLock
     private Camera mCamera;
+    private volatile Camera2FrameSource mCamera2;
+    private ReplayFrameSource mReplay;
+
+    private int mCameraApi = CAMERA_API_1;
+
+    /**
+     * Recording to stream frames from instead of the camera, or null to use the camera.
+     */
+    private File mReplayFile;
+    private float mReplayFps;
+    private boolean mReplayLoop;
 
     private int mFacing = CAMERA_FACING_BACK;
 
     /**
      * Rotation of the device, and thus the associated preview images captured from the device.
-     * See {@link Frame.Metadata#getRotation()}.
+     * See {@link Frame.Metadata#getRotation()}.  Kept up to date with the display while running,
+     * and read by the processing thread for every frame.
      */
-    private int mRotation;
+    private volatile int mRotation;
+
+    // Follows display rotations while running, on API 17 and up.  Guarded by mCameraLock.
+    private DisplayRotationListener mDisplayRotationListener;
 
     private Size mPreviewSize;
 
+    /**
+     * Size of the displayed preview.  Only differs from the preview size handed to the detector
+     * when running on camera2 with a separate analysis size.
+     */
+    private Size mDisplaySize;
+
     // These values may be requested by the caller.  Due to hardware limitations, we may need to
     // select close, but not exactly the same values for these.
     private float mRequestedFps = 30.0f;
     private int mRequestedPreviewWidth = 1024;
     private int mRequestedPreviewHeight = 768;
-
+    private int mRequestedAnalysisWidth;
+    private int mRequestedAnalysisHeight;
 
     private String mFocusMode = null;
-    private String mFlashMode = null;
+    // Also read by the thread that hands results to the processor, to time scans with the torch.
+    private volatile String mFlashMode = null;
+
+    /**
+     * Part of the preview that is handed to the detector, or null for the whole preview.
+     */
+    private volatile ScanWindow mScanWindow;
+    private DetectionMapper<?> mDetectionMapper;
+
+    /**
+     * Coarse-to-fine detection settings, or null to always search the full resolution image.
+     */
+    private CoarseDetection mCoarseDetection;
+
+    /**
+     * Adaptive frame rate settings.  The governor is null unless enabled via the builder.
+     */
+    private float mAdaptiveMinFps;
+    private boolean mAdaptivePreviewFpsRange;
+    private FrameRateGovernor mFrameRateGovernor;
+
+    /**
+     * Skips blurry or moving frames before detection, or null to detect every frame.
+     */
+    private FrameQualityGate mQualityGate;
+    private FrameDeduplicator mDeduplicator;
+
+    /**
+     * Resolution calibration.  The calibrator is only set while calibrating, i.e. if enabled via
+     * the builder and no size had been stored for this device yet.  Calibration steps run on the
+     * main thread, restarting the camera on the surface holder it was last started with.
+     */
+    private boolean mCalibrationEnabled;
+    private volatile ResolutionCalibrator mCalibrator;
+    private final Runnable mCalibrationStep = new CalibrationStep();
+    private SurfaceHolder mSurfaceHolder;
+    private Runnable mPreviewChangeListener;
+
+    /**
+     * Suspension.  While suspended, the camera1 camera stays open and configured with its preview
+     * stopped, and the processing thread, workers and buffers stay up, until either the camera
+     * source is started again or the grace period runs out.  Guarded by mCameraLock.
+     */
+    private long mSuspendGraceMillis;
+    private boolean mSuspended;
+    private final Runnable mSuspendTimeout = new SuspendTimeout();
+
+    /**
+     * Scan quality control.  The controller is only set if enabled via the builder.  Quality steps
+     * run on the main thread every few seconds while running, and a change of preview scale
+     * restarts the camera, like a calibration step.  Guarded by mCameraLock unless noted.
+     */
+    static final long QUALITY_EVALUATION_MILLIS = 5000;
+    private QualityController mQualityController;
+    private final Runnable mQualityStep = new QualityStep();
+    // Read wherever the requested preview size is.
+    private volatile float mPreviewScale = 1;
+    private boolean mTorchSuppressed;
+
+    /**
+     * Auto zoom.  The controller is only set if enabled via the builder, and is only used by the
+     * thread that hands results to the processor.  Zoom steps are applied on the main thread, as
+     * stop() waits for that thread to finish delivering while holding mCameraLock.  A pinch zoom
+     * turns auto zoom off until the next start.
+     */
+    private AutoZoomController mAutoZoom;
+    private ItemBounds mItemBounds;
+    private volatile boolean mAutoZoomOverridden;
+    private volatile float mZoomTarget = 1;
+    private final Runnable mZoomStep = new ZoomStep();
+
+    /**
+     * Item focus.  The tracker is only set if enabled via the builder, and is only used by the
+     * thread that hands results to the processor.  Like zoom steps, focus areas are applied on
+     * the main thread.
+     */
+    private FocusAreaTracker mFocusAreas;
+    private volatile ScanWindow mFocusTarget;
+    private final Runnable mFocusStep = new FocusStep();
+
+    /**
+     * Auto torch.  The controller is only set if enabled via the builder, and meters frames on
+     * the processing thread.  Like zoom steps, the torch is switched on the main thread, and not
+     * while the quality level does not allow it.
+     */
+    private AutoTorchController mAutoTorch;
+    private volatile boolean mTorchTarget;
+    private final Runnable mTorchStep = new TorchStep();
+
+    /**
+     * Still capture escalation.  The trigger is only set if enabled via the builder, and is fed
+     * by the thread that hands results to the processor.  Pictures are taken on the main thread,
+     * like zoom steps, and decoded on a thread of their own, whose results the processing thread
+     * hands to the processor along with the frames'.
+     */
+    private static final int STILL_CAPTURE_FRAME_ID = -1;
+    // regions larger than this across are decoded at a reduced sample size.
+    private static final int MAX_STILL_REGION_SIZE = 2048;
+    private StillCaptureTrigger mStillTrigger;
+    private Detector<?> mStillDetector;
+    private ExecutorService mStillDecoder;
+    private final Runnable mStillCaptureStep = new StillCaptureStep();
+    private final AtomicReference<Detector.Detections<?>> mStillDetections =
+            new AtomicReference<>();
+    // Whether the camera's picture size has the preview's aspect ratio.  A picture of another
+    // aspect ratio covers another part of the sensor, so nothing found in it could be placed on
+    // the preview, and no picture is taken.
+    private volatile boolean mStillCaptureUsable;
+
+    // Set by the app.  The camera is always handed mFocusMoveRecorder, which times focus moves
+    // for the pipeline metrics and passes them on to this.
+    private volatile AutoFocusMoveCallback mAutoFocusMoveCallback;
+    private final AutoFocusMoveCallback mFocusMoveRecorder = new FocusMoveRecorder();
+
+    // Whether the buffer pool is trimmed on memory pressure yet.  Guarded by FrameBufferPool.class.
+    private static boolean sTrimCallbacksRegistered;
+
+    // Runs calibration steps and suspension timeouts.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // What the camera1 camera supports, cached across starts.  Guarded by mCameraLock.
+    private CameraCapabilityCache mCapabilityCache;
+    private CameraCapabilities mCapabilities;
+
+    // The preview fps range currently applied to the camera, and the governor target it was
+    // chosen for.  Only touched on the camera callback thread, and under mCameraLock on camera1.
+    private int[] mPreviewFpsRange;
+    private float mPreviewFpsRangeTarget;
 
     // These instances need to be held onto to avoid GC of their underlying resources.  Even though
     // these aren't used outside of the method that creates them, they still must have hard
@@ -154,11 +329,26 @@ public class CameraSource {
     private FrameProcessingRunnable mFrameProcessor;
 
     /**
-     * Map to convert between a byte array, received from the camera, and its associated byte
-     * buffer.  We use byte buffers internally because this is a more efficient way to call into
-     * native code later (avoids a potential copy).
+     * Optional pool of detection workers.  When present, the processing thread only dispatches
+     * frames and detection itself runs on the workers.
+     */
+    private int mDetectorWorkerCount = 1;
+    private DetectorFactory mDetectorFactory;
+    private DetectorWorkerPool mWorkerPool;
+    private FanOutDetectors mFanOutDetectors;
+
+    /**
+     * Preview buffers shared with the camera, each paired with the byte buffer that wraps it.  We
+     * use byte buffers internally because this is a more efficient way to call into native code
+     * later (avoids a potential copy).
      */
-    private Map<byte[], ByteBuffer> mBytesToByteBuffer = new HashMap<>();
+    private int mPreviewBufferCount = FrameBufferRing.DEFAULT_DEPTH;
+    private FrameBufferRing mBufferRing;
+
+    /**
+     * Per-stage timing of frames, from the camera callback to the overlay drawing the results.
+     */
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
 
     //==============================================================================================
     // Builder
@@ -169,6 +359,10 @@ public class CameraSource {
      */
     public static class Builder {
         private final Detector<?> mDetector;
+        private Detector.Processor<?> mProcessor;
+        private final List<DetectorFactory> mFanOutFactories = new ArrayList<>();
+        private boolean mItemFocus;
+        private DetectorFactory mStillFactory;
         private CameraSource mCameraSource = new CameraSource();
 
         /**
@@ -228,6 +422,341 @@ public class CameraSource {
             return this;
         }
 
+        /**
+         * Sets the desired width and height of the frames handed to the detector, when running on
+         * camera2.  Camera2 feeds the display and the detector from separate streams, so frames
+         * can be analyzed at a lower resolution than they are displayed at.  The closest size with
+         * the same aspect ratio as the displayed preview is selected.  Ignored on camera1, where
+         * both use the preview size.  Default: the requested preview size.
+         */
+        public Builder setAnalysisSize(int width, int height) {
+            final int MAX = 1000000;
+            if ((width <= 0) || (width > MAX) || (height <= 0) || (height > MAX)) {
+                throw new IllegalArgumentException("Invalid analysis size: " + width + "x" + height);
+            }
+            mCameraSource.mRequestedAnalysisWidth = width;
+            mCameraSource.mRequestedAnalysisHeight = height;
+            return this;
+        }
+
+        /**
+         * Sets the camera API to run on: {@link #CAMERA_API_1}, {@link #CAMERA_API_2}, or
+         * {@link #CAMERA_API_AUTO} to use camera2 whenever the camera is not a legacy device
+         * underneath.  Camera2 is never used before Lollipop.  Camera2 does not take pictures,
+         * so {@link CameraSource#takePicture(ShutterCallback, PictureCallback)} throws and
+         * still capture escalation is off while running on it.  Default: camera1.
+         */
+        public Builder setCameraApi(int api) {
+            if ((api != CAMERA_API_AUTO) && (api != CAMERA_API_1) && (api != CAMERA_API_2)) {
+                throw new IllegalArgumentException("Invalid camera API: " + api);
+            }
+            mCameraSource.mCameraApi = api;
+            return this;
+        }
+
+        /**
+         * Streams frames from a recording instead of the camera, through the same processing
+         * and detection path, so that performance can be measured reproducibly and without a
+         * device.  Frames are sent at {@code fps}, or as fast as they are taken if {@code fps}
+         * is 0, keeping the frame ids and timestamps in the recording.  If {@code loop} is true
+         * the recording is repeated until the camera source is stopped.  Nothing is displayed,
+         * and the camera settings have no effect.  Default: off.
+         */
+        public Builder setReplaySource(File recording, float fps, boolean loop) {
+            if (recording == null) {
+                throw new IllegalArgumentException("No recording supplied.");
+            }
+            if (fps < 0) {
+                throw new IllegalArgumentException("Invalid fps: " + fps);
+            }
+            mCameraSource.mReplayFile = recording;
+            mCameraSource.mReplayFps = fps;
+            mCameraSource.mReplayLoop = loop;
+            return this;
+        }
+
+        /**
+         * Sets when the user asked to scan, as a {@link System#nanoTime()} timestamp, e.g. when a
+         * scan button was tapped on a previous screen.  The time from then to the first decode is
+         * logged and reported in {@link CameraSource#getPipelineStats()}.  Default: when the
+         * camera source is built.
+         */
+        public Builder setScanRequestTime(long nanoTime) {
+            mCameraSource.mMetrics.setOrigin(nanoTime);
+            return this;
+        }
+
+        /**
+         * Sets how long {@link CameraSource#suspend()} keeps the camera open for before stopping
+         * it.  Zero makes suspending the same as stopping.  Default: 0.
+         */
+        public Builder setSuspendGracePeriod(long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("Invalid suspend grace period: " + millis);
+            }
+            mCameraSource.mSuspendGraceMillis = millis;
+            return this;
+        }
+
+        /**
+         * Enables resolution calibration.  The first time a camera source is started on a device,
+         * it runs the camera at a few preview sizes for a few seconds each, measuring how long
+         * detection takes and how often it finds something, and then restarts at the best size
+         * with a frame rate that detection can sustain there.  The choice is stored per device
+         * and camera facing, and camera sources built with calibration enabled later start at it
+         * straight away, in place of the requested preview size, analysis size and fps.  Has no
+         * effect on a replay source.  Default: off.
+         */
+        public Builder setResolutionCalibration(boolean enabled) {
+            mCameraSource.mCalibrationEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Sets the number of preview buffers cycled between the camera and the detector.  One is
+         * held by the frame being detected and one by the pending frame; the rest are available
+         * for the camera to fill.  Raise this on devices where the detector is slow enough that
+         * the camera runs out of buffers (see {@link CameraSource#getBufferStarvationCount()}).
+         * Must be between 3 and 16.  Default: 4.
+         */
+        public Builder setPreviewBufferCount(int count) {
+            if ((count < FrameBufferRing.MIN_DEPTH) || (count > FrameBufferRing.MAX_DEPTH)) {
+                throw new IllegalArgumentException("Invalid preview buffer count: " + count);
+            }
+            mCameraSource.mPreviewBufferCount = count;
+            return this;
+        }
+
+        /**
+         * Sets the processor that receives detection results.  When set, the camera source runs
+         * {@link Detector#detect(Frame)} itself and hands the results to this processor, instead
+         * of relying on a processor set on the detector.  This is required for features that
+         * need to see or reorder results before they reach the processor, such as
+         * {@link #setDetectorWorkers(int, DetectorFactory)}.
+         */
+        public Builder setProcessor(Detector.Processor<?> processor) {
+            mProcessor = processor;
+            return this;
+        }
+
+        /**
+         * Runs detection on up to {@code count} frames at a time, each on its own thread with its
+         * own detector.  The detector supplied to the builder is used by the first worker and the
+         * factory creates one more for each of the others.  Results are delivered to the
+         * processor set with {@link #setProcessor(Detector.Processor)} in frame order.  The
+         * number of preview buffers is raised if needed so that every worker can hold a frame.
+         * Default: 1 (detection runs on the processing thread).
+         */
+        public Builder setDetectorWorkers(int count, DetectorFactory factory) {
+            if ((count < 1) || (count > FrameBufferRing.MAX_DEPTH - 2)) {
+                throw new IllegalArgumentException("Invalid detector worker count: " + count);
+            }
+            if ((count > 1) && (factory == null)) {
+                throw new IllegalArgumentException("No detector factory supplied.");
+            }
+            mCameraSource.mDetectorWorkerCount = count;
+            mCameraSource.mDetectorFactory = factory;
+            return this;
+        }
+
+        /**
+         * Also runs a detector from the given factory on every frame, at full resolution even
+         * when coarse detection finds nothing, at the same time as the main detector and
+         * reading the same preview buffer rather than a copy.  Its items are merged into the
+         * results handed to the processor, so it must find the same type of item as the main
+         * detector; an item with the same id as one already found is dropped.  The buffer only
+         * goes back to the camera once every detector is done with it.  A single instance, which
+         * the camera source releases, is shared by all detection workers and runs on one frame
+         * at a time; frames that arrive while it is busy are left to the main detector.
+         * Requires a processor.
+         */
+        public Builder addFanOutDetector(DetectorFactory factory) {
+            if (factory == null) {
+                throw new IllegalArgumentException("No detector factory supplied.");
+            }
+            mFanOutFactories.add(factory);
+            return this;
+        }
+
+        /**
+         * Sets the mapper used to move items detected in part of a frame, or in a reduced
+         * resolution frame, back to whole-preview coordinates so that overlay graphics still line
+         * up.  Required by {@link #setScanWindow(RectF)} and
+         * {@link #setCoarseDetection(int, int)}.
+         */
+        public Builder setDetectionMapper(DetectionMapper<?> mapper) {
+            mCameraSource.mDetectionMapper = mapper;
+            return this;
+        }
+
+        /**
+         * Restricts detection to part of the preview.  The window is given as fractions of the
+         * upright preview image, e.g. {@code new RectF(0.1f, 0.3f, 0.9f, 0.7f)} for a band across
+         * the middle of the screen.  Only that region is copied out of each frame and handed to
+         * the detector, which makes detection correspondingly cheaper.  Requires
+         * {@link #setProcessor(Detector.Processor)} and
+         * {@link #setDetectionMapper(DetectionMapper)}.  Default: whole preview.
+         */
+        public Builder setScanWindow(RectF window) {
+            if (window == null) {
+                throw new IllegalArgumentException("No scan window supplied.");
+            }
+            mCameraSource.mScanWindow =
+                    new ScanWindow(window.left, window.top, window.right, window.bottom);
+            return this;
+        }
+
+        /**
+         * Searches each frame at 1/{@code factor} resolution (2 or 4) first, using only its luma
+         * plane, and only hands the full resolution image to the detector when that finds
+         * something or when {@code maxEmptyFrames} coarse passes in a row have found nothing.
+         * Since most frames during a scan contain no barcode, this avoids most full resolution
+         * passes.  Requires {@link #setProcessor(Detector.Processor)} and
+         * {@link #setDetectionMapper(DetectionMapper)}.  Default: off.
+         */
+        public Builder setCoarseDetection(int factor, int maxEmptyFrames) {
+            mCameraSource.mCoarseDetection = new CoarseDetection(factor, maxEmptyFrames);
+            return this;
+        }
+
+        /**
+         * Adapts the rate at which frames are accepted for detection to how fast the detector
+         * actually runs, between {@code minFps} and the requested fps.  Frames arriving faster
+         * than the detector can keep up with are handed straight back to the camera instead of
+         * being held and later dropped.  If {@code adjustPreviewFpsRange} is true, the camera's
+         * preview fps range is also moved to the closest supported range, so that the camera
+         * does not capture frames that would only be skipped.  Default: off.
+         */
+        public Builder setAdaptiveFrameRate(float minFps, boolean adjustPreviewFpsRange) {
+            if (minFps <= 0) {
+                throw new IllegalArgumentException("Invalid fps: " + minFps);
+            }
+            mCameraSource.mAdaptiveMinFps = minFps;
+            mCameraSource.mAdaptivePreviewFpsRange = adjustPreviewFpsRange;
+            return this;
+        }
+
+        /**
+         * Skips frames that are too blurry or moving too much to decode before they reach the
+         * detector.  Sharpness is the variance of a Laplacian filter over a sparse grid of luma
+         * samples, and motion is the mean absolute difference of those samples from the previous
+         * frame.  Frames with sharpness below {@code minSharpness} or motion above
+         * {@code maxMotion} are skipped, though never more than a second or so of frames in a
+         * row.  When a scan window is set, only the window is scored.  See
+         * {@link CameraSource#getFrameQualityStats()} for the scores seen, which can be used to
+         * tune the thresholds.  Default: off.
+         */
+        public Builder setFrameQualityGate(float minSharpness, float maxMotion) {
+            mCameraSource.mQualityGate = new FrameQualityGate(minSharpness, maxMotion);
+            return this;
+        }
+
+        /**
+         * Trades scan quality against the device's thermal and battery headroom, as reported by
+         * the given provider every few seconds while running.  As headroom runs out, the frame
+         * rate is stepped down, then the number of detection workers, then the preview
+         * resolution and the torch, and each is stepped back up once the device recovers.  Every
+         * step is logged.  Frame rate steps act through the adaptive frame rate, which is turned
+         * on at the requested rate if it was not set.  Has no effect on a replay source.
+         * Default: off.
+         */
+        public Builder setQualityControl(DeviceStateProvider provider) {
+            mCameraSource.mQualityController = new QualityController(provider);
+            return this;
+        }
+
+        /**
+         * Zooms in on the item being scanned when it is small in the frame, so that small or
+         * distant items are seen with more pixels without raising the preview resolution, and
+         * zooms back out once it has not been found for a while.  The item nearest the center of
+         * the frame is followed, located by the given bounds in whole-preview coordinates.  Zoom
+         * is stepped over a few frames and goes no further than {@code maxRatio}, or than the
+         * camera supports.  A pinch zoom via {@link CameraSource#doZoom(float)} turns auto zoom
+         * off until the camera source is started again.  Requires a processor.  Default: off.
+         */
+        public Builder setAutoZoom(ItemBounds<?> bounds, float maxRatio) {
+            if (bounds == null) {
+                throw new IllegalArgumentException("No item bounds supplied.");
+            }
+            mCameraSource.mAutoZoom = new AutoZoomController(maxRatio);
+            mCameraSource.mItemBounds = bounds;
+            return this;
+        }
+
+        /**
+         * Focuses and meters on the item being scanned, rather than wherever the focus mode
+         * would, so that continuous focus locks onto the item instead of hunting on the
+         * background.  The item nearest the center of the frame is followed, located by the given
+         * bounds in whole-preview coordinates, which should be the same as any given to
+         * {@link #setAutoZoom(ItemBounds, float)}.  While no item is found, the middle of the
+         * scan window is focused on, or the middle of the frame if there is none.  Focus moves
+         * are counted and timed in {@link CameraSource#getPipelineStats()}.  Requires a
+         * processor.  Default: off.
+         */
+        public Builder setItemFocus(ItemBounds<?> bounds) {
+            if (bounds == null) {
+                throw new IllegalArgumentException("No item bounds supplied.");
+            }
+            mItemFocus = true;
+            mCameraSource.mItemBounds = bounds;
+            return this;
+        }
+
+        /**
+         * Turns the torch on and off by itself, from the median brightness of the scan window,
+         * or of the whole frame if there is none.  The torch is turned on once frames have been
+         * darker than {@code darkLuma} for a moment, and off once they have been brighter than
+         * {@code brightLuma} (0-255), which should be well above it, as auto exposure makes a
+         * torch-lit scene look brighter.  Switches are a few seconds apart at the least, and are
+         * logged.  Starts from the flash mode set on the builder.  How long scans take with and
+         * without the torch is reported in {@link CameraSource#getPipelineStats()} either way.
+         * Default: off.
+         */
+        public Builder setAutoTorch(int darkLuma, int brightLuma) {
+            mCameraSource.mAutoTorch = new AutoTorchController(darkLuma, brightLuma);
+            return this;
+        }
+
+        /**
+         * Takes a full resolution still picture once {@code failedFrames} detected frames in a
+         * row have found nothing, and detects the part of it within the scan window, or all of it
+         * if there is none, with a detector from the given factory.  Items found are handed to
+         * the processor like a frame's, in whole-preview coordinates; see
+         * {@link CameraSource#isStillCapture(Detector.Detections)}.  Only one picture is taken at
+         * a time, a few seconds apart at the most, and only on camera1, as the preview pauses
+         * while it is taken.  No picture is taken unless the camera has a picture size with the
+         * preview's aspect ratio, as results could not be placed on the preview otherwise.
+         * Requires a processor and a mapper.  Ignored before Gingerbread MR1, which cannot
+         * decode part of a picture, in which case the factory is never used.  Default: off.
+         */
+        public Builder setStillCaptureEscalation(int failedFrames, DetectorFactory factory) {
+            if (factory == null) {
+                throw new IllegalArgumentException("No detector factory supplied.");
+            }
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1) {
+                Log.w(TAG, "Still capture escalation is not supported on this device.");
+                return this;
+            }
+            mCameraSource.mStillTrigger = new StillCaptureTrigger(failedFrames);
+            mStillFactory = factory;
+            return this;
+        }
+
+        /**
+         * Skips detecting frames that are practically the same as the last frame detected, such
+         * as while a book sits still in front of the camera, and hands the processor the previous
+         * results again in their place.  Frames are compared by the mean luma of each block of a
+         * 16 by 16 grid, and are duplicates if those differ by at most {@code maxDifference}
+         * (0-255) on average.  At least every 31st frame is still detected.  When a scan
+         * window is set, only the window is compared.  Applied after the frame quality gate, if
+         * any.  Without a processor set on the builder, duplicates are only skipped.  See
+         * {@link CameraSource#getDuplicateFramesSkipped()}.  Default: off.
+         */
+        public Builder setDuplicateFrameSuppression(float maxDifference) {
+            mCameraSource.mDeduplicator = new FrameDeduplicator(maxDifference);
+            return this;
+        }
+
         /**
          * Sets the camera to use (either {@link #CAMERA_FACING_BACK} or
          * {@link #CAMERA_FACING_FRONT}). Default: back facing.
@@ -244,9 +773,146 @@ public class CameraSource {
          * Creates an instance of the camera source.
          */
         public CameraSource build() {
-            mCameraSource.mFrameProcessor = mCameraSource.new FrameProcessingRunnable(mDetector);
+            int workers = mCameraSource.mDetectorWorkerCount;
+            if ((workers > 1) && (mProcessor == null)) {
+                throw new IllegalStateException("Detector workers require a processor.");
+            }
+            if (!mFanOutFactories.isEmpty() && (mProcessor == null)) {
+                throw new IllegalStateException("Fan-out detectors require a processor.");
+            }
+            if (((mCameraSource.mAutoZoom != null) || mItemFocus) && (mProcessor == null)) {
+                throw new IllegalStateException("Auto zoom and item focus require a processor.");
+            }
+            if (mItemFocus) {
+                ScanWindow window = mCameraSource.mScanWindow;
+                mCameraSource.mFocusAreas = new FocusAreaTracker((window != null) ?
+                        new ScanWindow((3 * window.left + window.right) / 4,
+                                (3 * window.top + window.bottom) / 4,
+                                (window.left + 3 * window.right) / 4,
+                                (window.top + 3 * window.bottom) / 4) :
+                        new ScanWindow(0.25f, 0.25f, 0.75f, 0.75f));
+            }
+            DetectionMapper<?> mapper = mCameraSource.mDetectionMapper;
+            CoarseDetection coarse = mCameraSource.mCoarseDetection;
+            if ((mStillFactory != null) && ((mProcessor == null) || (mapper == null))) {
+                throw new IllegalStateException(
+                        "Still capture escalation requires a processor and a mapper.");
+            }
+            if (mStillFactory != null) {
+                mCameraSource.mStillDetector = mStillFactory.create();
+                mCameraSource.mStillDecoder = Executors.newSingleThreadExecutor(
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                return new Thread(runnable, "StillCaptureDecoder");
+                            }
+                        });
+            }
+            if (((mCameraSource.mScanWindow != null) || (coarse != null)) &&
+                    ((mProcessor == null) || (mapper == null))) {
+                throw new IllegalStateException(
+                        "A scan window or coarse detection requires a processor and a mapper.");
+            }
+
+            // Every worker may hold a frame, in addition to the pending frame and at least one
+            // buffer for the camera to fill.
+            int bufferCount = Math.max(mCameraSource.mPreviewBufferCount, workers + 2);
+            mCameraSource.mBufferRing = new FrameBufferRing(bufferCount);
+            registerTrimCallbacks(mCameraSource.mContext);
+
+            // Starts reading the cache from disk now, ahead of the camera being opened.
+            mCameraSource.mCapabilityCache = new CameraCapabilityCache(mCameraSource.mContext);
+
+            if (mCameraSource.mCalibrationEnabled && (mCameraSource.mReplayFile == null)) {
+                ResolutionCalibrator.Result profile =
+                        ResolutionProfile.load(mCameraSource.mContext, mCameraSource.mFacing);
+                if (profile != null) {
+                    mCameraSource.applyResolution(profile);
+                } else {
+                    mCameraSource.mCalibrator = new ResolutionCalibrator(
+                            mCameraSource.mRequestedFps, workers,
+                            ResolutionCalibrator.DEFAULT_WARM_UP_MILLIS,
+                            ResolutionCalibrator.DEFAULT_MEASURE_MILLIS);
+                }
+            }
+
+            if (mCameraSource.mAdaptiveMinFps > 0) {
+                mCameraSource.mFrameRateGovernor = new FrameRateGovernor(
+                        Math.min(mCameraSource.mAdaptiveMinFps, mCameraSource.mRequestedFps),
+                        mCameraSource.mRequestedFps);
+                mCameraSource.mFrameRateGovernor.setWorkerCount(workers);
+            } else if (mCameraSource.mQualityController != null) {
+                // Only there to cap the rate when quality is stepped down.
+                mCameraSource.mFrameRateGovernor = new FrameRateGovernor(
+                        mCameraSource.mRequestedFps, mCameraSource.mRequestedFps);
+                mCameraSource.mFrameRateGovernor.setWorkerCount(workers);
+            }
+
+            FanOutDetectors fanOut = null;
+            if (!mFanOutFactories.isEmpty()) {
+                fanOut = new FanOutDetectors(createFanOutDetectors());
+                mCameraSource.mFanOutDetectors = fanOut;
+            }
+            DetectionPass pass = new DetectionPass(mDetector, fanOut, mapper, coarse);
+            if (workers > 1) {
+                DetectionPass[] passes = new DetectionPass[workers];
+                passes[0] = pass;
+                for (int i = 1; i < workers; ++i) {
+                    passes[i] = new DetectionPass(mCameraSource.mDetectorFactory.create(),
+                            fanOut, mapper, coarse);
+                }
+                mCameraSource.mWorkerPool = new DetectorWorkerPool(passes, mProcessor,
+                        mCameraSource.new WorkerFrameListener());
+            }
+
+            mCameraSource.mFrameProcessor =
+                    mCameraSource.new FrameProcessingRunnable(pass, mProcessor);
             return mCameraSource;
         }
+
+        /**
+         * Creates one instance of every fan-out detector, shared by every detection pass.
+         */
+        private Detector<?>[] createFanOutDetectors() {
+            Detector<?>[] detectors = new Detector<?>[mFanOutFactories.size()];
+            for (int i = 0; i < detectors.length; ++i) {
+                detectors[i] = mFanOutFactories.get(i).create();
+            }
+            return detectors;
+        }
+    }
+
+    /**
+     * Moves an item found in part of a preview frame, or in a reduced resolution copy of it, back
+     * to the coordinates of the whole (upright) preview frame.  See
+     * {@link Builder#setDetectionMapper(DetectionMapper)}.
+     */
+    public interface DetectionMapper<T> {
+        /**
+         * Maps the item's coordinates {@code (x, y)} to {@code (x * scale + offsetX,
+         * y * scale + offsetY)}, modifying the item in place.
+         */
+        void mapToPreview(T item, float scale, int offsetX, int offsetY);
+    }
+
+    /**
+     * Locates a detected item, in the coordinates of the whole (upright) preview frame.  See
+     * {@link Builder#setAutoZoom(ItemBounds, float)} and {@link Builder#setItemFocus(ItemBounds)}.
+     */
+    public interface ItemBounds<T> {
+        /**
+         * Returns the item's bounding box, or null if it has none.
+         */
+        Rect getBounds(T item);
+    }
+
+    /**
+     * Creates the additional detectors used by detection workers, or by fan-out.  Each call must
+     * return a new detector instance, with the same configuration as the one supplied to the
+     * builder for detection workers.
+     */
+    public interface DetectorFactory {
+        Detector<?> create();
     }
 
     //==============================================================================================
@@ -323,6 +989,16 @@ public class CameraSource {
         synchronized (mCameraLock) {
             stop();
             mFrameProcessor.release();
+            if (mStillDecoder != null) {
+                // Queued behind any picture still being decoded.
+                mStillDecoder.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mStillDetector.release();
+                    }
+                });
+                mStillDecoder.shutdown();
+            }
         }
     }
 
@@ -335,7 +1011,24 @@ public class CameraSource {
     @RequiresPermission(Manifest.permission.CAMERA)
     public CameraSource start() throws IOException {
         synchronized (mCameraLock) {
-            if (mCamera != null) {
+            if (resumeIfSuspended(null)) {
+                return this;
+            }
+            if ((mCamera != null) || (mCamera2 != null) || (mReplay != null)) {
+                return this;
+            }
+            mSurfaceHolder = null;
+
+            if (mReplayFile != null) {
+                mReplay = createReplaySource();
+                startFrameProcessing();
+                mReplay.start();
+                return this;
+            }
+
+            if (shouldUseCamera2()) {
+                mCamera2 = createCamera2(null);
+                startFrameProcessing();
                 return this;
             }
 
@@ -352,9 +1045,7 @@ public class CameraSource {
             }
             mCamera.startPreview();
 
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
+            startFrameProcessing();
         }
         return this;
     }
@@ -369,7 +1060,22 @@ public class CameraSource {
     @RequiresPermission(Manifest.permission.CAMERA)
     public CameraSource start(SurfaceHolder surfaceHolder) throws IOException {
         synchronized (mCameraLock) {
-            if (mCamera != null) {
+            if (mReplayFile != null) {
+                // There is nothing to display.
+                return start();
+            }
+
+            if (resumeIfSuspended(surfaceHolder)) {
+                return this;
+            }
+            if ((mCamera != null) || (mCamera2 != null)) {
+                return this;
+            }
+            mSurfaceHolder = surfaceHolder;
+
+            if (shouldUseCamera2()) {
+                mCamera2 = createCamera2(surfaceHolder);
+                startFrameProcessing();
                 return this;
             }
 
@@ -377,39 +1083,184 @@ public class CameraSource {
             mCamera.setPreviewDisplay(surfaceHolder);
             mCamera.startPreview();
 
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
+            startFrameProcessing();
         }
         return this;
     }
 
     /**
-     * Closes the camera and stops sending frames to the underlying frame detector.
-     * <p/>
-     * This camera source may be restarted again by calling {@link #start()} or
-     * {@link #start(SurfaceHolder)}.
-     * <p/>
-     * Call {@link #release()} instead to completely shut down this camera source and release the
-     * resources of the underlying detector.
+     * Starts the processing thread, and the detection workers if there are any.  When calibrating,
+     * also starts measuring the current preview size.  Must be called while holding
+     * {@link #mCameraLock}.
      */
-    public void stop() {
-        synchronized (mCameraLock) {
-            mFrameProcessor.setActive(false);
-            if (mProcessingThread != null) {
-                try {
-                    // Wait for the thread to complete to ensure that we can't have multiple threads
-                    // executing at the same time (i.e., which would happen if we called start too
-                    // quickly after stop).
-                    mProcessingThread.join();
-                } catch (InterruptedException e) {
-                    Log.d(TAG, "Frame processing thread interrupted on release.");
-                }
-                mProcessingThread = null;
-            }
+    private void startFrameProcessing() {
+        // The camera starts out unzoomed.
+        mAutoZoomOverridden = false;
+        mZoomTarget = 1;
+        if (mAutoZoom != null) {
+            mAutoZoom.reset();
+        }
+        if ((mFocusAreas != null) && (mReplay == null)) {
+            mFocusTarget = mFocusAreas.reset();
+            mMainHandler.removeCallbacks(mFocusStep);
+            mMainHandler.post(mFocusStep);
+        }
+        if (mStillTrigger != null) {
+            mStillTrigger.reset();
+            mStillDetections.set(null);
+        }
+        if (mAutoTorch != null) {
+            mAutoTorch.reset(Camera.Parameters.FLASH_MODE_TORCH.equals(mFlashMode));
+        }
+        mMetrics.onScanStarted(System.nanoTime());
+        if (mWorkerPool != null) {
+            mWorkerPool.start();
+        }
+        mProcessingThread = new Thread(mFrameProcessor);
+        mFrameProcessor.setActive(true);
+        mProcessingThread.start();
+        scheduleCalibrationStep();
+        scheduleQualityStep();
+
+        // A recording's rotation is fixed when it is recorded.
+        if ((mReplay == null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)) {
+            mDisplayRotationListener = new DisplayRotationListener();
+            mDisplayRotationListener.register();
+        }
+    }
+
+    /**
+     * When quality control is on, schedules the next evaluation of the device state.  Must be
+     * called while holding {@link #mCameraLock}.
+     */
+    private void scheduleQualityStep() {
+        if ((mQualityController != null) && (mReplay == null)) {
+            mMainHandler.removeCallbacks(mQualityStep);
+            mMainHandler.postDelayed(mQualityStep, QUALITY_EVALUATION_MILLIS);
+        }
+    }
+
+    /**
+     * When calibrating, starts measuring the current preview size over and schedules the step to
+     * the next one.  Must be called while holding {@link #mCameraLock}.
+     */
+    private void scheduleCalibrationStep() {
+        ResolutionCalibrator calibrator = mCalibrator;
+        if ((calibrator != null) && (mReplay == null)) {
+            calibrator.onCandidateStarted(System.nanoTime());
+            mMainHandler.removeCallbacks(mCalibrationStep);
+            mMainHandler.postDelayed(mCalibrationStep, calibrator.getCandidateMillis());
+        }
+    }
+
+    /**
+     * Stops the preview and sending frames to the underlying detector, but keeps the camera open
+     * and configured, and the processing thread and preview buffers allocated, for the grace
+     * period set via {@link Builder#setSuspendGracePeriod(long)}.  Starting this camera source
+     * again within that period resumes the preview in place of reopening the camera; otherwise it
+     * is stopped as by {@link #stop()}.  Use this from {@code onPause} so that brief interruptions,
+     * such as a dialog over the activity, do not cost a full restart.
+     * <p/>
+     * Only the camera1 API keeps the camera open; on camera2 and for a replay source, and if no
+     * grace period was set, this is the same as {@link #stop()}.
+     */
+    public void suspend() {
+        synchronized (mCameraLock) {
+            if (mSuspended) {
+                return;
+            }
+            if ((mCamera == null) || (mSuspendGraceMillis == 0)) {
+                stop();
+                return;
+            }
+            mMainHandler.removeCallbacks(mCalibrationStep);
+            mMainHandler.removeCallbacks(mQualityStep);
+            mCamera.stopPreview();
+            mSuspended = true;
+            mMainHandler.postDelayed(mSuspendTimeout, mSuspendGraceMillis);
+        }
+    }
+
+    /**
+     * Restarts the preview of a suspended camera on the given surface holder, or on the dummy
+     * texture it was started with if null.  Returns false if the camera source was not suspended,
+     * or had to be stopped since it was started the other way, in which case it needs a full
+     * start.  Must be called while holding {@link #mCameraLock}.
+     */
+    private boolean resumeIfSuspended(@Nullable SurfaceHolder surfaceHolder) throws IOException {
+        if (!mSuspended) {
+            return false;
+        }
+        mMainHandler.removeCallbacks(mSuspendTimeout);
+        if ((surfaceHolder == null) != (mSurfaceHolder == null)) {
+            stop();
+            return false;
+        }
+        mSuspended = false;
+
+        if (surfaceHolder != null) {
+            // The surface may have been recreated while the activity was in the background.
+            mSurfaceHolder = surfaceHolder;
+            mCamera.setPreviewDisplay(surfaceHolder);
+        }
+        restartPreview(mCamera);
+        scheduleCalibrationStep();
+        scheduleQualityStep();
+        return true;
+    }
+
+    /**
+     * Closes the camera and stops sending frames to the underlying frame detector.
+     * <p/>
+     * This camera source may be restarted again by calling {@link #start()} or
+     * {@link #start(SurfaceHolder)}.
+     * <p/>
+     * Call {@link #release()} instead to completely shut down this camera source and release the
+     * resources of the underlying detector.
+     */
+    public void stop() {
+        synchronized (mCameraLock) {
+            mMainHandler.removeCallbacks(mCalibrationStep);
+            mMainHandler.removeCallbacks(mQualityStep);
+            mMainHandler.removeCallbacks(mZoomStep);
+            mMainHandler.removeCallbacks(mFocusStep);
+            mMainHandler.removeCallbacks(mStillCaptureStep);
+            mMainHandler.removeCallbacks(mTorchStep);
+            mMainHandler.removeCallbacks(mSuspendTimeout);
+            mSuspended = false;
+            if (mDisplayRotationListener != null) {
+                mDisplayRotationListener.unregister();
+                mDisplayRotationListener = null;
+            }
+            mFrameProcessor.setActive(false);
+            Log.d(TAG, "Frame pipeline: " + mMetrics.snapshot());
+            if (mWorkerPool != null) {
+                Log.d(TAG, "Detector worker utilization: " +
+                        Arrays.toString(mWorkerPool.getUtilization()));
+                // Waits for in-flight frames so that their buffers are back before the camera goes.
+                mWorkerPool.stop();
+            }
+            if (mProcessingThread != null) {
+                try {
+                    // Wait for the thread to complete to ensure that we can't have multiple threads
+                    // executing at the same time (i.e., which would happen if we called start too
+                    // quickly after stop).
+                    mProcessingThread.join();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Frame processing thread interrupted on release.");
+                }
+                mProcessingThread = null;
+            }
 
-            // clear the buffer to prevent oom exceptions
-            mBytesToByteBuffer.clear();
+            if (mCamera2 != null) {
+                // Closed before the buffers are cleared, so that no frame is being copied into one.
+                mCamera2.close();
+                mCamera2 = null;
+            }
+            if (mReplay != null) {
+                mReplay.stop();
+                mReplay = null;
+            }
 
             if (mCamera != null) {
                 mCamera.stopPreview();
@@ -432,635 +1283,1861 @@ public class CameraSource {
                 mCamera.release();
                 mCamera = null;
             }
+
+            // Return the buffers to the pool for the next start, now that nothing can write into
+            // them anymore.
+            mBufferRing.clear();
+            Log.d(TAG, "Preview buffer pool: " + FrameBufferPool.getInstance().snapshot());
         }
     }
 
     /**
-     * Returns the preview size that is currently in use by the underlying camera.
+     * Returns the preview size that is currently in use by the underlying camera.  This is the
+     * size of the frames handed to the detector, and so the coordinate space of its results.
      */
     public Size getPreviewSize() {
         return mPreviewSize;
     }
 
     /**
-     * Returns the selected camera; one of {@link #CAMERA_FACING_BACK} or
-     * {@link #CAMERA_FACING_FRONT}.
+     * Returns the size of the displayed preview.  This has the same aspect ratio as
+     * {@link #getPreviewSize()}, but may be larger when running on camera2 with an analysis size
+     * set via {@link Builder#setAnalysisSize(int, int)}.
      */
-    public int getCameraFacing() {
-        return mFacing;
+    public Size getDisplaySize() {
+        return mDisplaySize;
     }
 
-    public int doZoom(float scale) {
+    /**
+     * Returns whether the camera source is running on the camera2 API, or will be once started.
+     */
+    public boolean isUsingCamera2() {
         synchronized (mCameraLock) {
-            if (mCamera == null) {
-                return 0;
-            }
-            int currentZoom = 0;
-            int maxZoom;
-            Camera.Parameters parameters = mCamera.getParameters();
-            if (!parameters.isZoomSupported()) {
-                Log.w(TAG, "Zoom is not supported on this device");
-                return currentZoom;
-            }
-            maxZoom = parameters.getMaxZoom();
-
-            currentZoom = parameters.getZoom() + 1;
-            float newZoom;
-            if (scale > 1) {
-                newZoom = currentZoom + scale * (maxZoom / 10);
-            } else {
-                newZoom = currentZoom * scale;
-            }
-            currentZoom = Math.round(newZoom) - 1;
-            if (currentZoom < 0) {
-                currentZoom = 0;
-            } else if (currentZoom > maxZoom) {
-                currentZoom = maxZoom;
-            }
-            parameters.setZoom(currentZoom);
-            mCamera.setParameters(parameters);
-            return currentZoom;
+            return (mCamera2 != null) || ((mCamera == null) && shouldUseCamera2());
         }
     }
 
     /**
-     * Initiates taking a picture, which happens asynchronously.  The camera source should have been
-     * activated previously with {@link #start()} or {@link #start(SurfaceHolder)}.  The camera
-     * preview is suspended while the picture is being taken, but will resume once picture taking is
-     * done.
-     *
-     * @param shutter the callback for image capture moment, or null
-     * @param jpeg    the callback for JPEG image data, or null
+     * Returns the rotation applied to frames handed to the detector, as one of the rotation
+     * constants in {@link Frame}.  Preview sizes are landscape, so an odd rotation means that the
+     * upright preview is portrait.
      */
-    public void takePicture(ShutterCallback shutter, PictureCallback jpeg) {
+    public int getFrameRotation() {
+        return mRotation;
+    }
+
+    /**
+     * Brings the preview orientation, and the rotation of frames handed to the detector, up to
+     * date with the display's rotation, without restarting the camera.  This happens by itself
+     * while running on API 17 and up; on older versions call it from
+     * {@code onConfigurationChanged}, which is not told about turns straight from one landscape
+     * orientation to the other.
+     */
+    public void updateRotation() {
+        Runnable listener;
         synchronized (mCameraLock) {
+            int previous = mRotation;
             if (mCamera != null) {
-                PictureStartCallback startCallback = new PictureStartCallback();
-                startCallback.mDelegate = shutter;
-                PictureDoneCallback doneCallback = new PictureDoneCallback();
-                doneCallback.mDelegate = jpeg;
-                mCamera.takePicture(startCallback, null, null, doneCallback);
+                updateCameraRotation(mCamera);
+            } else if (mCamera2 != null) {
+                // The camera2 output to the preview surface is rotated for the display already.
+                mRotation = computeRotationAngle(mCamera2.getSensorOrientation(),
+                        mFacing == CAMERA_FACING_FRONT) / 90;
             }
+            if (mRotation == previous) {
+                return;
+            }
+            Log.d(TAG, "Display rotated; frames now rotated by " + (mRotation * 90));
+            listener = mPreviewChangeListener;
+        }
+        if (listener != null) {
+            listener.run();
         }
     }
 
     /**
-     * Gets the current focus mode setting.
-     *
-     * @return current focus mode. This value is null if the camera is not yet created. Applications should call {@link
-     * #autoFocus(AutoFocusCallback)} to start the focus if focus
-     * mode is FOCUS_MODE_AUTO or FOCUS_MODE_MACRO.
-     * @see Camera.Parameters#FOCUS_MODE_AUTO
-     * @see Camera.Parameters#FOCUS_MODE_INFINITY
-     * @see Camera.Parameters#FOCUS_MODE_MACRO
-     * @see Camera.Parameters#FOCUS_MODE_FIXED
-     * @see Camera.Parameters#FOCUS_MODE_EDOF
-     * @see Camera.Parameters#FOCUS_MODE_CONTINUOUS_VIDEO
-     * @see Camera.Parameters#FOCUS_MODE_CONTINUOUS_PICTURE
+     * Returns the selected camera; one of {@link #CAMERA_FACING_BACK} or
+     * {@link #CAMERA_FACING_FRONT}.
      */
-    @Nullable
-    @FocusMode
-    public String getFocusMode() {
-        return mFocusMode;
+    public int getCameraFacing() {
+        return mFacing;
     }
 
     /**
-     * Sets the focus mode.
-     *
-     * @param mode the focus mode
-     * @return {@code true} if the focus mode is set, {@code false} otherwise
-     * @see #getFocusMode()
+     * Returns the part of the upright preview that is handed to the detector, as fractions of
+     * the preview size, or null if the whole preview is used.
      */
-    public boolean setFocusMode(@FocusMode String mode) {
-        synchronized (mCameraLock) {
-            if (mCamera != null && mode != null) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                if (parameters.getSupportedFocusModes().contains(mode)) {
-                    parameters.setFocusMode(mode);
-                    mCamera.setParameters(parameters);
-                    mFocusMode = mode;
-                    return true;
-                }
-            }
-
-            return false;
+    @Nullable
+    public RectF getScanWindow() {
+        ScanWindow window = mScanWindow;
+        if (window == null) {
+            return null;
         }
+        return new RectF(window.left, window.top, window.right, window.bottom);
     }
 
     /**
-     * Gets the current flash mode setting.
-     *
-     * @return current flash mode. null if flash mode setting is not
-     * supported or the camera is not yet created.
-     * @see Camera.Parameters#FLASH_MODE_OFF
-     * @see Camera.Parameters#FLASH_MODE_AUTO
-     * @see Camera.Parameters#FLASH_MODE_ON
-     * @see Camera.Parameters#FLASH_MODE_RED_EYE
-     * @see Camera.Parameters#FLASH_MODE_TORCH
+     * Returns the number of preview buffers cycled between the camera and the detector.
      */
-    @Nullable
-    @FlashMode
-    public String getFlashMode() {
-        return mFlashMode;
+    public int getPreviewBufferCount() {
+        return mBufferRing.depth();
     }
 
     /**
-     * Sets the flash mode.
-     *
-     * @param mode flash mode.
-     * @return {@code true} if the flash mode is set, {@code false} otherwise
-     * @see #getFlashMode()
+     * Returns how many preview images were dropped since this camera source was built because
+     * every preview buffer was in use.  camera1 drops them without saying, so there this is
+     * worked out from how late the next image arrives after the camera ran out of buffers.
      */
-    public boolean setFlashMode(@FlashMode String mode) {
-        synchronized (mCameraLock) {
-            if (mCamera != null && mode != null) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                if (parameters.getSupportedFlashModes().contains(mode)) {
-                    parameters.setFlashMode(mode);
-                    mCamera.setParameters(parameters);
-                    mFlashMode = mode;
-                    return true;
-                }
-            }
-
-            return false;
-        }
+    public long getBufferStarvationCount() {
+        return mBufferRing.getStarvationCount();
     }
 
     /**
-     * Starts camera auto-focus and registers a callback function to run when
-     * the camera is focused.  This method is only valid when preview is active
-     * (between {@link #start()} or {@link #start(SurfaceHolder)} and before {@link #stop()} or {@link #release()}).
-     * <p/>
-     * <p>Callers should check
-     * {@link #getFocusMode()} to determine if
-     * this method should be called. If the camera does not support auto-focus,
-     * it is a no-op and {@link AutoFocusCallback#onAutoFocus(boolean)}
-     * callback will be called immediately.
-     * <p/>
-     * <p>If the current flash mode is not
-     * {@link Camera.Parameters#FLASH_MODE_OFF}, flash may be
-     * fired during auto-focus, depending on the driver and camera hardware.<p>
-     *
-     * @param cb the callback to run
-     * @see #cancelAutoFocus()
+     * Returns the number of frames that were searched at reduced resolution, and of those, how
+     * many were also searched at full resolution.  Both are zero unless coarse detection was
+     * enabled with {@link Builder#setCoarseDetection(int, int)}.
      */
-    public void autoFocus(@Nullable AutoFocusCallback cb) {
-        synchronized (mCameraLock) {
-            if (mCamera != null) {
-                CameraAutoFocusCallback autoFocusCallback = null;
-                if (cb != null) {
-                    autoFocusCallback = new CameraAutoFocusCallback();
-                    autoFocusCallback.mDelegate = cb;
-                }
-                mCamera.autoFocus(autoFocusCallback);
-            }
+    public long[] getCoarseDetectionCounts() {
+        if (mCoarseDetection == null) {
+            return new long[]{0, 0};
         }
+        return new long[]{
+                mCoarseDetection.getCoarseFrameCount(), mCoarseDetection.getFullFrameCount()};
     }
 
     /**
-     * Cancels any auto-focus function in progress.
-     * Whether or not auto-focus is currently in progress,
-     * this function will return the focus position to the default.
-     * If the camera does not support auto-focus, this is a no-op.
-     *
-     * @see #autoFocus(AutoFocusCallback)
+     * Returns the rate at which frames are currently accepted for detection.  This is the
+     * requested fps unless adaptive frame rate was enabled with
+     * {@link Builder#setAdaptiveFrameRate(float, boolean)}.
      */
-    public void cancelAutoFocus() {
-        synchronized (mCameraLock) {
-            if (mCamera != null) {
-                mCamera.cancelAutoFocus();
-            }
-        }
+    public float getTargetFps() {
+        return (mFrameRateGovernor != null) ? mFrameRateGovernor.getTargetFps() : mRequestedFps;
     }
 
     /**
-     * Sets camera auto-focus move callback.
-     *
-     * @param cb the callback to run
-     * @return {@code true} if the operation is supported (i.e. from Jelly Bean), {@code false} otherwise
+     * Returns the number of frames that were handed straight back to the camera because they
+     * arrived faster than the detector could keep up with.
      */
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
-    public boolean setAutoFocusMoveCallback(@Nullable AutoFocusMoveCallback cb) {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
-            return false;
-        }
-
-        synchronized (mCameraLock) {
-            if (mCamera != null) {
-                CameraAutoFocusMoveCallback autoFocusMoveCallback = null;
-                if (cb != null) {
-                    autoFocusMoveCallback = new CameraAutoFocusMoveCallback();
-                    autoFocusMoveCallback.mDelegate = cb;
-                }
-                mCamera.setAutoFocusMoveCallback(autoFocusMoveCallback);
-            }
-        }
-
-        return true;
+    public long getGovernorSkippedFrameCount() {
+        return (mFrameRateGovernor != null) ? mFrameRateGovernor.getSkippedFrameCount() : 0;
     }
 
-    //==============================================================================================
-    // Private
-    //==============================================================================================
+    /**
+     * Returns the frame quality scores seen so far and how many frames were skipped, or null
+     * unless enabled with {@link Builder#setFrameQualityGate(float, float)}.
+     */
+    @Nullable
+    public FrameQualityStats getFrameQualityStats() {
+        return (mQualityGate != null) ? mQualityGate.getStats() : null;
+    }
 
     /**
-     * Only allow creation via the builder class.
+     * Returns how many frames were not detected for being duplicates of the last frame that was,
+     * or 0 unless enabled with {@link Builder#setDuplicateFrameSuppression(float)}.
      */
-    private CameraSource() {
+    public long getDuplicateFramesSkipped() {
+        return (mDeduplicator != null) ? mDeduplicator.getDuplicateCount() : 0;
     }
 
     /**
-     * Wraps the camera1 shutter callback so that the deprecated API isn't exposed.
+     * Returns how many frames the camera has handed over since this camera source was built, how
+     * many were dropped along the way, and how long each stage from the camera callback to the
+     * overlay drawing the results took.
      */
-    private class PictureStartCallback implements Camera.ShutterCallback {
-        private ShutterCallback mDelegate;
+    public PipelineStats getPipelineStats() {
+        return mMetrics.snapshot();
+    }
 
-        @Override
-        public void onShutter() {
-            if (mDelegate != null) {
-                mDelegate.onShutter();
-            }
-        }
+    private void logFirstDecode() {
+        Log.i(TAG, "Time to first decode: " +
+                TimeUnit.NANOSECONDS.toMillis(mMetrics.getTimeToFirstDecodeNanos()) + " ms");
     }
 
     /**
-     * Wraps the final callback in the camera sequence, so that we can automatically turn the camera
+     * Returns the metrics that {@link GraphicOverlay} reports drawing to.
+     */
+    PipelineMetrics getPipelineMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns whether resolution calibration is still trying out preview sizes.  See
+     * {@link Builder#setResolutionCalibration(boolean)}.
+     */
+    public boolean isCalibratingResolution() {
+        return mCalibrator != null;
+    }
+
+    /**
+     * Forgets the preview sizes chosen by resolution calibration, so that the next camera source
+     * built with calibration enabled calibrates again.
+     */
+    public static void clearResolutionProfiles(Context context) {
+        ResolutionProfile.clear(context);
+    }
+
+    /**
+     * Starts opening the camera that a camera source with the given facing and camera API would
+     * use, in the background, so that it is ready by the time that camera source starts.  Call
+     * this as soon as it is known that the camera will be needed, e.g. when the user asks to scan.
+     * The camera is released again if no camera source claims it within a few seconds.  A camera
+     * source that starts while the camera is still opening waits a second at the most for it,
+     * then opens it directly.
+     * <p/>
+     * Only camera1 cameras are opened ahead of time; this does nothing if camera2 would be used or
+     * the camera permission has not been granted.
+     */
+    public static void prewarmCamera(Context context, int facing, int cameraApi) {
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.CAMERA)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        if (shouldUseCamera2(context.getApplicationContext(), cameraApi, facing)) {
+            return;
+        }
+        int cameraId = getIdForRequestedCamera(facing);
+        if (cameraId != -1) {
+            CameraPrewarmer.open(cameraId);
+        }
+    }
+
+    /**
+     * Sets the most memory that idle preview buffers are kept in, across all camera sources in the
+     * process.  Camera sources take their preview buffers from this pool when they start and give
+     * them back when they stop, so that restarting does not allocate new ones.  Default: 16 MB,
+     * enough for one set of buffers at 1080p.
+     */
+    public static void setBufferPoolLimit(long bytes) {
+        FrameBufferPool.getInstance().setMaxBytes(bytes);
+    }
+
+    /**
+     * Returns how many preview buffers camera sources in this process have allocated, and how
+     * many allocations reusing pooled buffers avoided.
+     */
+    public static BufferPoolStats getBufferPoolStats() {
+        return FrameBufferPool.getInstance().snapshot();
+    }
+
+    /**
+     * Drops idle preview buffers according to the given {@link ComponentCallbacks2} trim level.
+     * Camera sources register for this themselves when built, so this only needs calling directly
+     * from processes that cannot take component callbacks.
+     */
+    public static void onTrimMemory(int level) {
+        FrameBufferPool pool = FrameBufferPool.getInstance();
+        if ((level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) ||
+                (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) ||
+                (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)) {
+            pool.trimTo(0);
+        } else {
+            // Only moderate pressure, or just left the foreground; keep enough for a quick return.
+            pool.trimTo(pool.getMaxBytes() / 2);
+        }
+    }
+
+    private static void registerTrimCallbacks(Context context) {
+        synchronized (FrameBufferPool.class) {
+            if (sTrimCallbacksRegistered) {
+                return;
+            }
+            sTrimCallbacksRegistered = true;
+        }
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                CameraSource.onTrimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                CameraSource.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+    }
+
+    /**
+     * Sets a listener that is run on the main thread whenever the camera source restarts itself,
+     * which may change the preview size, or follows a display rotation, which changes the
+     * preview's orientation.  Pass null to remove it.
+     */
+    void setPreviewChangeListener(@Nullable Runnable listener) {
+        synchronized (mCameraLock) {
+            mPreviewChangeListener = listener;
+        }
+    }
+
+    /**
+     * Returns the number of threads that run detection concurrently.
+     */
+    public int getDetectorWorkerCount() {
+        return (mWorkerPool != null) ? mWorkerPool.size() : 1;
+    }
+
+    /**
+     * Returns, for each detection worker, the fraction of time since the camera source was last
+     * started that the worker spent running detection.  Returns an empty array unless detection
+     * workers were configured with {@link Builder#setDetectorWorkers(int, DetectorFactory)}.
+     */
+    public float[] getDetectorWorkerUtilization() {
+        return (mWorkerPool != null) ? mWorkerPool.getUtilization() : new float[0];
+    }
+
+    public int doZoom(float scale) {
+        synchronized (mCameraLock) {
+            mAutoZoomOverridden = true;
+            mMainHandler.removeCallbacks(mZoomStep);
+            if (mCamera2 != null) {
+                if (!mCamera2.isZoomSupported()) {
+                    Log.w(TAG, "Zoom is not supported on this device");
+                    return 0;
+                }
+                int zoom = scaleZoom(mCamera2.getZoom(), Camera2FrameSource.MAX_ZOOM, scale);
+                mCamera2.setZoom(zoom);
+                return zoom;
+            }
+            if (mCamera == null) {
+                return 0;
+            }
+            int currentZoom = 0;
+            Camera.Parameters parameters = mCamera.getParameters();
+            if (!parameters.isZoomSupported()) {
+                Log.w(TAG, "Zoom is not supported on this device");
+                return currentZoom;
+            }
+            currentZoom = scaleZoom(parameters.getZoom(), parameters.getMaxZoom(), scale);
+            parameters.setZoom(currentZoom);
+            mCamera.setParameters(parameters);
+            return currentZoom;
+        }
+    }
+
+    /**
+     * Zooms to the supported zoom closest to, but not beyond, the given ratio.  Must be called
+     * while holding {@link #mCameraLock}.
+     */
+    private void applyZoomRatio(float ratio) {
+        if (mCamera2 != null) {
+            float maxRatio = mCamera2.getMaxZoomRatio();
+            if (maxRatio <= 1.0f) {
+                return;
+            }
+            int zoom = Math.round(Camera2FrameSource.MAX_ZOOM *
+                    Math.min(1.0f, (ratio - 1.0f) / (maxRatio - 1.0f)));
+            if (zoom != mCamera2.getZoom()) {
+                mCamera2.setZoom(zoom);
+            }
+            return;
+        }
+        if (mCamera == null) {
+            return;
+        }
+        Camera.Parameters parameters = mCamera.getParameters();
+        if (!parameters.isZoomSupported()) {
+            return;
+        }
+        // Ratios are in hundredths and ascend with the zoom value.
+        List<Integer> ratios = parameters.getZoomRatios();
+        int zoom = 0;
+        while ((zoom < parameters.getMaxZoom()) && (ratios.get(zoom + 1) <= ratio * 100)) {
+            ++zoom;
+        }
+        if (zoom != parameters.getZoom()) {
+            parameters.setZoom(zoom);
+            mCamera.setParameters(parameters);
+        }
+    }
+
+    /**
+     * Times scans, and feeds auto zoom, item focus and still capture escalation with results just
+     * handed to the processor.  Only called by the thread that hands results to the processor.
+     */
+    private void onDelivered(Detector.Detections<?> detections) {
+        mMetrics.onScanResult(detections.getDetectedItems().size() > 0,
+                Camera.Parameters.FLASH_MODE_TORCH.equals(mFlashMode), System.nanoTime());
+        followItem(detections);
+        escalateIfMissed(detections);
+    }
+
+    /**
+     * Feeds auto zoom and item focus with results just handed to the processor, following the
+     * item nearest the center of the frame, and schedules a zoom step or a focus area change if
+     * either decides on one.  Only called by the thread that hands results to the processor.
+     */
+    @SuppressWarnings("unchecked")
+    private void followItem(Detector.Detections<?> detections) {
+        AutoZoomController autoZoom = mAutoZoom;
+        FocusAreaTracker focusAreas = mFocusAreas;
+        Size size = mPreviewSize;
+        if (((autoZoom == null) && (focusAreas == null)) || (size == null)) {
+            return;
+        }
+        // Items are upright, so a sideways frame is seen with its sides swapped.
+        boolean sideways = (detections.getFrameMetadata().getRotation() % 2) != 0;
+        float centerX = (sideways ? size.getHeight() : size.getWidth()) / 2.0f;
+        float centerY = (sideways ? size.getWidth() : size.getHeight()) / 2.0f;
+
+        Rect nearest = null;
+        float nearestDistance = Float.MAX_VALUE;
+        SparseArray<?> items = detections.getDetectedItems();
+        for (int i = 0; i < items.size(); ++i) {
+            Rect box = mItemBounds.getBounds(items.valueAt(i));
+            if (box == null) {
+                continue;
+            }
+            float dx = box.exactCenterX() - centerX;
+            float dy = box.exactCenterY() - centerY;
+            if (dx * dx + dy * dy < nearestDistance) {
+                nearest = box;
+                nearestDistance = dx * dx + dy * dy;
+            }
+        }
+
+        if ((autoZoom != null) && !mAutoZoomOverridden) {
+            float previous = autoZoom.getRatio();
+            float ratio;
+            if (nearest == null) {
+                ratio = autoZoom.onNothingFound();
+            } else {
+                float itemSize = Math.max(nearest.width() / (2 * centerX),
+                        nearest.height() / (2 * centerY));
+                float extent = Math.max(
+                        Math.max(Math.abs(nearest.left - centerX),
+                                Math.abs(nearest.right - centerX)) / centerX,
+                        Math.max(Math.abs(nearest.top - centerY),
+                                Math.abs(nearest.bottom - centerY)) / centerY);
+                ratio = autoZoom.onItemFound(itemSize, extent);
+            }
+            if (ratio != previous) {
+                mZoomTarget = ratio;
+                mMainHandler.removeCallbacks(mZoomStep);
+                mMainHandler.post(mZoomStep);
+            }
+        }
+
+        if (focusAreas != null) {
+            ScanWindow area;
+            if (nearest == null) {
+                area = focusAreas.onNothingFound();
+            } else {
+                area = focusAreas.onItemFound(nearest.left / (2 * centerX),
+                        nearest.top / (2 * centerY), nearest.right / (2 * centerX),
+                        nearest.bottom / (2 * centerY), System.nanoTime());
+            }
+            if (area != null) {
+                mFocusTarget = area;
+                mMainHandler.removeCallbacks(mFocusStep);
+                mMainHandler.post(mFocusStep);
+            }
+        }
+    }
+
+    /**
+     * Feeds still capture escalation with results just handed to the processor, and schedules a
+     * picture if it decides on one.  Only called by the thread that hands results to the
+     * processor.
+     */
+    private void escalateIfMissed(Detector.Detections<?> detections) {
+        StillCaptureTrigger trigger = mStillTrigger;
+        if ((trigger == null) || !mStillCaptureUsable || isStillCapture(detections)) {
+            return;
+        }
+        if (trigger.onFrameDetected(detections.getDetectedItems().size() > 0, System.nanoTime())) {
+            mMainHandler.post(mStillCaptureStep);
+        }
+    }
+
+    /**
+     * Detects the part of a still picture within the scan window and leaves the results, mapped
+     * to the preview, for the processing thread to deliver.  The picture is in the sensor's
+     * orientation and is shown with the given frame rotation.  It is dropped unless it has the
+     * preview's aspect ratio, in case the camera did not take it at the picture size it was set
+     * to.
+     */
+    @SuppressWarnings("unchecked")
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    private void decodeStillCapture(byte[] jpeg, int rotation, Size previewSize) {
+        try {
+            BitmapRegionDecoder decoder =
+                    BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false);
+            int width = decoder.getWidth();
+            int height = decoder.getHeight();
+            if (!hasAspectRatio(previewSize, width, height)) {
+                Log.w(TAG, "Still picture of " + width + "x" + height +
+                        " does not match the preview's aspect ratio.");
+                decoder.recycle();
+                return;
+            }
+            ScanWindow window = mScanWindow;
+            ScanWindow.Crop crop = ((window != null) ? window : new ScanWindow(0, 0, 1, 1))
+                    .computeCrop(width, height, rotation);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1;
+            while (Math.max(crop.width, crop.height) / options.inSampleSize >
+                    MAX_STILL_REGION_SIZE) {
+                options.inSampleSize *= 2;
+            }
+            Bitmap region = decoder.decodeRegion(new Rect(crop.x, crop.y, crop.x + crop.width,
+                    crop.y + crop.height), options);
+            decoder.recycle();
+            if (region == null) {
+                Log.w(TAG, "Could not decode the still picture.");
+                return;
+            }
+
+            Frame frame = new Frame.Builder()
+                    .setBitmap(region)
+                    .setId(STILL_CAPTURE_FRAME_ID)
+                    .setTimestampMillis(SystemClock.elapsedRealtime())
+                    .setRotation(rotation)
+                    .build();
+            SparseArray items = mStillDetector.detect(frame);
+            region.recycle();
+
+            // The offsets are upright, so turned along with the image; the aspect ratios match
+            // closely enough for the items to be scaled by either axis.
+            float scaleX = (float) previewSize.getWidth() / width;
+            float scaleY = (float) previewSize.getHeight() / height;
+            boolean sideways = (rotation % 2) != 0;
+            int offsetX = Math.round(crop.uprightX * (sideways ? scaleY : scaleX));
+            int offsetY = Math.round(crop.uprightY * (sideways ? scaleX : scaleY));
+            DetectionMapper mapper = mDetectionMapper;
+            for (int i = 0; i < items.size(); ++i) {
+                mapper.mapToPreview(items.valueAt(i), options.inSampleSize * scaleX, offsetX,
+                        offsetY);
+            }
+            Log.d(TAG, "Still picture of " + width + "x" + height + " found " + items.size() +
+                    " item(s).");
+            mStillDetections.set(new Detector.Detections(items, frame.getMetadata(),
+                    mStillDetector.isOperational()));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not detect the still picture.", e);
+        } finally {
+            mStillTrigger.onCaptureFinished();
+        }
+    }
+
+    /**
+     * Focuses and meters on the given area of the upright frame, where the camera supports it.
+     * Must be called while holding {@link #mCameraLock}.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void applyFocusArea(ScanWindow area) {
+        float[] sensor = area.toSensor(mRotation);
+        if (mCamera2 != null) {
+            mCamera2.setFocusArea(sensor);
+            return;
+        }
+        if ((mCamera == null) || (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)) {
+            return;
+        }
+        Camera.Parameters parameters = mCamera.getParameters();
+        boolean focus = parameters.getMaxNumFocusAreas() > 0;
+        boolean metering = parameters.getMaxNumMeteringAreas() > 0;
+        if (!focus && !metering) {
+            return;
+        }
+        // Camera1 areas run from -1000 to 1000 across the current field of view.
+        List<Camera.Area> areas = Collections.singletonList(new Camera.Area(new Rect(
+                Math.round(sensor[0] * 2000) - 1000, Math.round(sensor[1] * 2000) - 1000,
+                Math.round(sensor[2] * 2000) - 1000, Math.round(sensor[3] * 2000) - 1000),
+                1000));
+        if (focus) {
+            parameters.setFocusAreas(areas);
+        }
+        if (metering) {
+            parameters.setMeteringAreas(areas);
+        }
+        try {
+            mCamera.setParameters(parameters);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Camera rejected the focus area.", e);
+        }
+    }
+
+    /**
+     * Returns the zoom value reached by scaling the current one by a pinch gesture's scale
+     * factor, clamped to the supported range.
+     */
+    private static int scaleZoom(int zoom, int maxZoom, float scale) {
+        int currentZoom = zoom + 1;
+        float newZoom;
+        if (scale > 1) {
+            newZoom = currentZoom + scale * (maxZoom / 10);
+        } else {
+            newZoom = currentZoom * scale;
+        }
+        currentZoom = Math.round(newZoom) - 1;
+        if (currentZoom < 0) {
+            currentZoom = 0;
+        } else if (currentZoom > maxZoom) {
+            currentZoom = maxZoom;
+        }
+        return currentZoom;
+    }
+
+    /**
+     * Initiates taking a picture, which happens asynchronously.  The camera source should have been
+     * activated previously with {@link #start()} or {@link #start(SurfaceHolder)}.  The camera
+     * preview is suspended while the picture is being taken, but will resume once picture taking is
+     * done.
+     *
+     * @param shutter the callback for image capture moment, or null
+     * @param jpeg    the callback for JPEG image data, or null
+     * @throws UnsupportedOperationException if running on camera2, which does not take pictures;
+     *                                       see {@link Builder#setCameraApi(int)}
+     */
+    public void takePicture(ShutterCallback shutter, PictureCallback jpeg) {
+        synchronized (mCameraLock) {
+            if (mCamera2 != null) {
+                throw new UnsupportedOperationException("Taking pictures requires camera1.");
+            }
+            if (mCamera != null) {
+                PictureStartCallback startCallback = new PictureStartCallback();
+                startCallback.mDelegate = shutter;
+                PictureDoneCallback doneCallback = new PictureDoneCallback();
+                doneCallback.mDelegate = jpeg;
+                mCamera.takePicture(startCallback, null, null, doneCallback);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the given results were detected in a still picture taken by still capture
+     * escalation, rather than in a preview frame.  See
+     * {@link Builder#setStillCaptureEscalation(int, DetectorFactory)}.
+     */
+    public static boolean isStillCapture(Detector.Detections<?> detections) {
+        return detections.getFrameMetadata().getId() == STILL_CAPTURE_FRAME_ID;
+    }
+
+    /**
+     * Gets the current focus mode setting.
+     *
+     * @return current focus mode. This value is null if the camera is not yet created. Applications should call {@link
+     * #autoFocus(AutoFocusCallback)} to start the focus if focus
+     * mode is FOCUS_MODE_AUTO or FOCUS_MODE_MACRO.
+     * @see Camera.Parameters#FOCUS_MODE_AUTO
+     * @see Camera.Parameters#FOCUS_MODE_INFINITY
+     * @see Camera.Parameters#FOCUS_MODE_MACRO
+     * @see Camera.Parameters#FOCUS_MODE_FIXED
+     * @see Camera.Parameters#FOCUS_MODE_EDOF
+     * @see Camera.Parameters#FOCUS_MODE_CONTINUOUS_VIDEO
+     * @see Camera.Parameters#FOCUS_MODE_CONTINUOUS_PICTURE
+     */
+    @Nullable
+    @FocusMode
+    public String getFocusMode() {
+        return mFocusMode;
+    }
+
+    /**
+     * Sets the focus mode.
+     *
+     * @param mode the focus mode
+     * @return {@code true} if the focus mode is set, {@code false} otherwise
+     * @see #getFocusMode()
+     */
+    public boolean setFocusMode(@FocusMode String mode) {
+        synchronized (mCameraLock) {
+            if (mCamera2 != null && mode != null) {
+                if (mCamera2.setFocusMode(mode)) {
+                    mFocusMode = mode;
+                    return true;
+                }
+                return false;
+            }
+            if (mCamera != null && mode != null) {
+                Camera.Parameters parameters = mCamera.getParameters();
+                if (parameters.getSupportedFocusModes().contains(mode)) {
+                    parameters.setFocusMode(mode);
+                    mCamera.setParameters(parameters);
+                    mFocusMode = mode;
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Gets the current flash mode setting.
+     *
+     * @return current flash mode. null if flash mode setting is not
+     * supported or the camera is not yet created.
+     * @see Camera.Parameters#FLASH_MODE_OFF
+     * @see Camera.Parameters#FLASH_MODE_AUTO
+     * @see Camera.Parameters#FLASH_MODE_ON
+     * @see Camera.Parameters#FLASH_MODE_RED_EYE
+     * @see Camera.Parameters#FLASH_MODE_TORCH
+     */
+    @Nullable
+    @FlashMode
+    public String getFlashMode() {
+        return mFlashMode;
+    }
+
+    /**
+     * Sets the flash mode.
+     *
+     * @param mode flash mode.
+     * @return {@code true} if the flash mode is set, {@code false} otherwise
+     * @see #getFlashMode()
+     */
+    public boolean setFlashMode(@FlashMode String mode) {
+        synchronized (mCameraLock) {
+            if (mCamera2 != null && mode != null) {
+                if (mCamera2.setFlashMode(mode)) {
+                    mFlashMode = mode;
+                    return true;
+                }
+                return false;
+            }
+            if (mCamera != null && mode != null) {
+                Camera.Parameters parameters = mCamera.getParameters();
+                if (parameters.getSupportedFlashModes().contains(mode)) {
+                    parameters.setFlashMode(mode);
+                    mCamera.setParameters(parameters);
+                    mFlashMode = mode;
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Starts camera auto-focus and registers a callback function to run when
+     * the camera is focused.  This method is only valid when preview is active
+     * (between {@link #start()} or {@link #start(SurfaceHolder)} and before {@link #stop()} or {@link #release()}).
+     * <p/>
+     * <p>Callers should check
+     * {@link #getFocusMode()} to determine if
+     * this method should be called. If the camera does not support auto-focus,
+     * it is a no-op and {@link AutoFocusCallback#onAutoFocus(boolean)}
+     * callback will be called immediately.
+     * <p/>
+     * <p>If the current flash mode is not
+     * {@link Camera.Parameters#FLASH_MODE_OFF}, flash may be
+     * fired during auto-focus, depending on the driver and camera hardware.<p>
+     *
+     * @param cb the callback to run
+     * @see #cancelAutoFocus()
+     */
+    public void autoFocus(@Nullable AutoFocusCallback cb) {
+        synchronized (mCameraLock) {
+            if (mCamera2 != null) {
+                mCamera2.autoFocus(cb);
+            }
+            if (mCamera != null) {
+                CameraAutoFocusCallback autoFocusCallback = null;
+                if (cb != null) {
+                    autoFocusCallback = new CameraAutoFocusCallback();
+                    autoFocusCallback.mDelegate = cb;
+                }
+                mCamera.autoFocus(autoFocusCallback);
+            }
+        }
+    }
+
+    /**
+     * Cancels any auto-focus function in progress.
+     * Whether or not auto-focus is currently in progress,
+     * this function will return the focus position to the default.
+     * If the camera does not support auto-focus, this is a no-op.
+     *
+     * @see #autoFocus(AutoFocusCallback)
+     */
+    public void cancelAutoFocus() {
+        synchronized (mCameraLock) {
+            if (mCamera2 != null) {
+                mCamera2.cancelAutoFocus();
+            }
+            if (mCamera != null) {
+                mCamera.cancelAutoFocus();
+            }
+        }
+    }
+
+    /**
+     * Sets camera auto-focus move callback.  Kept across camera restarts.
+     *
+     * @param cb the callback to run
+     * @return {@code true} if the operation is supported (i.e. from Jelly Bean), {@code false} otherwise
+     */
+    public boolean setAutoFocusMoveCallback(@Nullable AutoFocusMoveCallback cb) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return false;
+        }
+
+        // The camera is already handed the recorder, which passes moves on to this.
+        mAutoFocusMoveCallback = cb;
+        return true;
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    /**
+     * Only allow creation via the builder class.
+     */
+    private CameraSource() {
+    }
+
+    /**
+     * Wraps the camera1 shutter callback so that the deprecated API isn't exposed.
+     */
+    private class PictureStartCallback implements Camera.ShutterCallback {
+        private ShutterCallback mDelegate;
+
+        @Override
+        public void onShutter() {
+            if (mDelegate != null) {
+                mDelegate.onShutter();
+            }
+        }
+    }
+
+    /**
+     * Wraps the final callback in the camera sequence, so that we can automatically turn the camera
      * preview back on after the picture has been taken.
      */
-    private class PictureDoneCallback implements Camera.PictureCallback {
-        private PictureCallback mDelegate;
+    private class PictureDoneCallback implements Camera.PictureCallback {
+        private PictureCallback mDelegate;
+
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            if (mDelegate != null) {
+                mDelegate.onPictureTaken(data);
+            }
+            synchronized (mCameraLock) {
+                if (mCamera != null) {
+                    restartPreview(mCamera);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps the camera1 auto focus callback so that the deprecated API isn't exposed.
+     */
+    private class CameraAutoFocusCallback implements Camera.AutoFocusCallback {
+        private AutoFocusCallback mDelegate;
+
+        @Override
+        public void onAutoFocus(boolean success, Camera camera) {
+            if (mDelegate != null) {
+                mDelegate.onAutoFocus(success);
+            }
+        }
+    }
+
+    /**
+     * Wraps the camera1 auto focus move callback so that the deprecated API isn't exposed.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class CameraAutoFocusMoveCallback implements Camera.AutoFocusMoveCallback {
+        private AutoFocusMoveCallback mDelegate;
+
+        @Override
+        public void onAutoFocusMoving(boolean start, Camera camera) {
+            if (mDelegate != null) {
+                mDelegate.onAutoFocusMoving(start);
+            }
+        }
+    }
+
+    /**
+     * Opens the camera and applies the user settings.
+     *
+     * @throws RuntimeException if the method fails
+     */
+    @SuppressLint("InlinedApi")
+    private Camera createCamera() {
+        int requestedCameraId = getIdForRequestedCamera(mFacing);
+        if (requestedCameraId == -1) {
+            throw new RuntimeException("Could not find requested camera.");
+        }
+        Camera camera = CameraPrewarmer.claim(requestedCameraId);
+        if (camera == null) {
+            camera = Camera.open(requestedCameraId);
+        }
+
+        boolean cached = mCapabilityCache.contains(requestedCameraId);
+        try {
+            configureCamera(camera, requestedCameraId);
+        } catch (RuntimeException e) {
+            if (!cached) {
+                throw e;
+            }
+            // Most likely a firmware update that kept the build fingerprint.
+            Log.w(TAG, "Camera rejected its cached configuration, querying it again.", e);
+            mCapabilityCache.remove(requestedCameraId);
+            configureCamera(camera, requestedCameraId);
+        }
+
+        // At least three frame buffers are needed for working with the camera:
+        //
+        //   one for the frame that is currently being executed upon in doing detection
+        //   one for the next pending frame to process immediately upon completing detection
+        //   the rest for the frames that the camera uses to populate future preview images
+        camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
+        mBufferRing.allocate(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        mBufferRing.attach(new CameraBufferQueue(camera));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setFocusMoveRecorder(camera);
+        }
+        return camera;
+    }
+
+    /**
+     * Starts the preview again after it was stopped, which also clears the camera's auto focus
+     * move callback, so that is set again as well.
+     */
+    private void restartPreview(Camera camera) {
+        camera.startPreview();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setFocusMoveRecorder(camera);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void setFocusMoveRecorder(Camera camera) {
+        CameraAutoFocusMoveCallback autoFocusMoveCallback = new CameraAutoFocusMoveCallback();
+        autoFocusMoveCallback.mDelegate = mFocusMoveRecorder;
+        camera.setAutoFocusMoveCallback(autoFocusMoveCallback);
+    }
+
+    /**
+     * Chooses and applies the preview size, picture size, frame rate, rotation, focus mode and
+     * flash mode, querying the camera's parameters only once.  What the camera supports, and the
+     * configuration chosen for the requested size and frame rate, come from the capability cache
+     * when available.
+     *
+     * @throws RuntimeException if no suitable configuration was found or the camera rejected it
+     */
+    private void configureCamera(Camera camera, int cameraId) {
+        Camera.Parameters parameters = camera.getParameters();
+        CameraCapabilities capabilities = mCapabilityCache.getCapabilities(cameraId);
+        if (capabilities == null) {
+            capabilities = CameraCapabilityCache.query(parameters);
+            mCapabilityCache.putCapabilities(cameraId, capabilities);
+        }
+        mCapabilities = capabilities;
+
+        int desiredWidth = Math.round(mRequestedPreviewWidth * mPreviewScale);
+        int desiredHeight = Math.round(mRequestedPreviewHeight * mPreviewScale);
+        ResolutionCalibrator calibrator = mCalibrator;
+        if (calibrator != null) {
+            if (!calibrator.hasCandidates()) {
+                List<Size> sizes = new ArrayList<>();
+                for (SizePair pair : generateValidPreviewSizeList(capabilities)) {
+                    sizes.add(pair.previewSize());
+                }
+                setCalibrationCandidates(calibrator, sizes);
+            }
+            desiredWidth = calibrator.getCurrentWidth();
+            desiredHeight = calibrator.getCurrentHeight();
+        }
+
+        CameraCapabilities.Selection selection =
+                mCapabilityCache.getSelection(cameraId, desiredWidth, desiredHeight, mRequestedFps);
+        if (selection == null) {
+            SizePair sizePair = selectSizePair(capabilities, desiredWidth, desiredHeight);
+            if (sizePair == null) {
+                throw new RuntimeException("Could not find suitable preview size.");
+            }
+            int[] previewFpsRange = selectPreviewFpsRange(capabilities, mRequestedFps);
+            if (previewFpsRange == null) {
+                throw new RuntimeException(
+                        "Could not find suitable preview frames per second range.");
+            }
+            Size previewSize = sizePair.previewSize();
+            Size pictureSize = sizePair.pictureSize();
+            selection = new CameraCapabilities.Selection(previewSize.getWidth(),
+                    previewSize.getHeight(),
+                    (pictureSize != null) ? pictureSize.getWidth() : 0,
+                    (pictureSize != null) ? pictureSize.getHeight() : 0,
+                    previewFpsRange);
+            mCapabilityCache.putSelection(cameraId, desiredWidth, desiredHeight, mRequestedFps,
+                    selection);
+        }
+        mPreviewSize = new Size(selection.previewWidth, selection.previewHeight);
+        mDisplaySize = mPreviewSize;
+        int[] previewFpsRange = selection.previewFpsRange;
+
+        if (selection.pictureWidth > 0) {
+            parameters.setPictureSize(selection.pictureWidth, selection.pictureHeight);
+        }
+        mStillCaptureUsable = (selection.pictureWidth > 0) &&
+                hasAspectRatio(mPreviewSize, selection.pictureWidth, selection.pictureHeight);
+        if ((mStillTrigger != null) && !mStillCaptureUsable) {
+            Log.w(TAG, "No picture size matches the preview's aspect ratio, so still capture " +
+                    "escalation is off.");
+        }
+
+        parameters.setPreviewSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        parameters.setPreviewFpsRange(
+                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        mPreviewFpsRange = previewFpsRange;
+        mPreviewFpsRangeTarget = mRequestedFps;
+        parameters.setPreviewFormat(ImageFormat.NV21);
+
+        setRotation(camera, parameters, cameraId);
+
+        if (mFocusMode != null) {
+            if (capabilities.focusModes.contains(mFocusMode)) {
+                parameters.setFocusMode(mFocusMode);
+            } else {
+                Log.i(TAG, "Camera focus mode: " + mFocusMode + " is not supported on this device.");
+            }
+        }
+
+        // setting mFocusMode to the one set in the params
+        mFocusMode = parameters.getFocusMode();
+
+        if (mFlashMode != null) {
+            if (!capabilities.flashModes.isEmpty()) {
+                if (capabilities.flashModes.contains(mFlashMode)) {
+                    parameters.setFlashMode(mFlashMode);
+                } else {
+                    Log.i(TAG, "Camera flash mode: " + mFlashMode + " is not supported on this device.");
+                }
+            }
+        }
+
+        // setting mFlashMode to the one set in the params
+        mFlashMode = parameters.getFlashMode();
+
+        camera.setParameters(parameters);
+    }
+
+    /**
+     * Returns whether to run on camera2, given the requested camera API and what the device
+     * supports.
+     */
+    private boolean shouldUseCamera2() {
+        return shouldUseCamera2(mContext, mCameraApi, mFacing);
+    }
+
+    private static boolean shouldUseCamera2(Context context, int cameraApi, int facing) {
+        switch (cameraApi) {
+            case CAMERA_API_2:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+            case CAMERA_API_AUTO:
+                return Camera2FrameSource.isSupported(context, facing);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Opens the camera through camera2 and applies the user settings.  Preview buffers are
+     * allocated for the analysis stream.
+     *
+     * @param surfaceHolder the surface holder to display the preview on, or null for none
+     * @throws IOException if the camera could not be opened or configured
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @SuppressLint("MissingPermission")
+    private Camera2FrameSource createCamera2(@Nullable SurfaceHolder surfaceHolder)
+            throws IOException {
+        float scale = mPreviewScale;
+        Size displaySize = new Size(Math.round(mRequestedPreviewWidth * scale),
+                Math.round(mRequestedPreviewHeight * scale));
+        Size analysisSize = (mRequestedAnalysisWidth > 0) ?
+                new Size(Math.round(mRequestedAnalysisWidth * scale),
+                        Math.round(mRequestedAnalysisHeight * scale)) : displaySize;
+        ResolutionCalibrator calibrator = mCalibrator;
+        if (calibrator != null) {
+            if (!calibrator.hasCandidates()) {
+                setCalibrationCandidates(calibrator,
+                        Camera2FrameSource.getAnalysisSizes(mContext, mFacing));
+            }
+            displaySize = new Size(calibrator.getCurrentWidth(), calibrator.getCurrentHeight());
+            analysisSize = displaySize;
+        }
+
+        Camera2FrameSource source =
+                new Camera2FrameSource(mContext, mFacing, mBufferRing, new Camera2FrameCallback());
+        source.open(surfaceHolder, displaySize, analysisSize, mRequestedFps, mFocusMode,
+                mFlashMode);
+        source.setAutoFocusMoveCallback(mFocusMoveRecorder);
+        mPreviewSize = source.getAnalysisSize();
+        mDisplaySize = source.getDisplaySize();
+        mPreviewFpsRangeTarget = mRequestedFps;
+        mStillCaptureUsable = false;
+
+        int angle = computeRotationAngle(source.getSensorOrientation(),
+                mFacing == CAMERA_FACING_FRONT);
+        mRotation = angle / 90;
+        return source;
+    }
+
+    /**
+     * Opens the recording set with {@link Builder#setReplaySource(File, float, boolean)} and
+     * allocates preview buffers for its frame size.
+     *
+     * @throws IOException if the recording could not be read
+     */
+    private ReplayFrameSource createReplaySource() throws IOException {
+        ReplayFrameSource source = new ReplayFrameSource(mReplayFile, mReplayFps, mReplayLoop,
+                mBufferRing, new ReplayFrameCallback());
+        source.open();
+        mPreviewSize = new Size(source.getWidth(), source.getHeight());
+        mDisplaySize = mPreviewSize;
+        mRotation = source.getRotation();
+        mStillCaptureUsable = false;
+        return source;
+    }
+
+    /**
+     * Hands the sizes the camera supports to the calibrator to choose its candidates from.
+     *
+     * @throws RuntimeException if the camera reported no sizes
+     */
+    private static void setCalibrationCandidates(ResolutionCalibrator calibrator,
+                                                 List<Size> sizes) {
+        if (sizes.isEmpty()) {
+            throw new RuntimeException("Could not find suitable preview size.");
+        }
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < sizes.size(); ++i) {
+            widths[i] = sizes.get(i).getWidth();
+            heights[i] = sizes.get(i).getHeight();
+        }
+        calibrator.setSupportedSizes(widths, heights);
+    }
+
+    /**
+     * Uses a calibrated preview size and frame rate in place of the requested ones.  The size is
+     * the one the detector was measured on, so it is used for analysis as well.
+     */
+    private void applyResolution(ResolutionCalibrator.Result result) {
+        mRequestedPreviewWidth = result.width;
+        mRequestedPreviewHeight = result.height;
+        mRequestedAnalysisWidth = 0;
+        mRequestedAnalysisHeight = 0;
+        mRequestedFps = result.fps;
+    }
+
+    /**
+     * Gets the id for the camera specified by the direction it is facing.  Returns -1 if no such
+     * camera was found.
+     *
+     * @param facing the desired camera (front-facing or rear-facing)
+     */
+    private static int getIdForRequestedCamera(int facing) {
+        CameraInfo cameraInfo = new CameraInfo();
+        for (int i = 0; i < Camera.getNumberOfCameras(); ++i) {
+            Camera.getCameraInfo(i, cameraInfo);
+            if (cameraInfo.facing == facing) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Selects the most suitable preview and picture size, given the desired width and height.
+     * <p/>
+     * Even though we may only need the preview size, it's necessary to find both the preview
+     * size and the picture size of the camera together, because these need to have the same aspect
+     * ratio.  On some hardware, if you would only set the preview size, you will get a distorted
+     * image.
+     *
+     * @param capabilities  the capabilities of the camera to select a preview size from
+     * @param desiredWidth  the desired width of the camera preview frames
+     * @param desiredHeight the desired height of the camera preview frames
+     * @return the selected preview and picture size pair
+     */
+    private static SizePair selectSizePair(CameraCapabilities capabilities, int desiredWidth,
+                                           int desiredHeight) {
+        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(capabilities);
+
+        // The method for selecting the best size is to minimize the sum of the differences between
+        // the desired values and the actual values for width and height.  This is certainly not the
+        // only way to select the best size, but it provides a decent tradeoff between using the
+        // closest aspect ratio vs. using the closest pixel area.
+        SizePair selectedPair = null;
+        int minDiff = Integer.MAX_VALUE;
+        for (SizePair sizePair : validPreviewSizes) {
+            Size size = sizePair.previewSize();
+            int diff = Math.abs(size.getWidth() - desiredWidth) +
+                    Math.abs(size.getHeight() - desiredHeight);
+            if (diff < minDiff) {
+                selectedPair = sizePair;
+                minDiff = diff;
+            }
+        }
+
+        return selectedPair;
+    }
+
+    /**
+     * Stores a preview size and a corresponding same-aspect-ratio picture size.  To avoid distorted
+     * preview images on some devices, the picture size must be set to a size that is the same
+     * aspect ratio as the preview size or the preview may end up being distorted.  If the picture
+     * size is null, then there is no picture size with the same aspect ratio as the preview size.
+     */
+    private static class SizePair {
+        private Size mPreview;
+        private Size mPicture;
+
+        public SizePair(int[] previewSize, int[] pictureSize) {
+            mPreview = new Size(previewSize[0], previewSize[1]);
+            if (pictureSize != null) {
+                mPicture = new Size(pictureSize[0], pictureSize[1]);
+            }
+        }
+
+        public Size previewSize() {
+            return mPreview;
+        }
+
+        @SuppressWarnings("unused")
+        public Size pictureSize() {
+            return mPicture;
+        }
+    }
+
+    /**
+     * Returns whether a {@code width} x {@code height} image has the given size's aspect ratio,
+     * within the tolerance used to pair picture sizes with preview sizes.
+     */
+    private static boolean hasAspectRatio(Size size, int width, int height) {
+        float aspectRatio = (float) size.getWidth() / (float) size.getHeight();
+        return Math.abs(aspectRatio - (float) width / (float) height) < ASPECT_RATIO_TOLERANCE;
+    }
+
+    /**
+     * Generates a list of acceptable preview sizes.  Preview sizes are not acceptable if there is
+     * not a corresponding picture size of the same aspect ratio.  If there is a corresponding
+     * picture size of the same aspect ratio, the picture size is paired up with the preview size.
+     * <p/>
+     * This is necessary because even if we don't use still pictures, the still picture size must be
+     * set to a size that is the same aspect ratio as the preview size we choose.  Otherwise, the
+     * preview images may be distorted on some devices.
+     */
+    private static List<SizePair> generateValidPreviewSizeList(CameraCapabilities capabilities) {
+        List<int[]> supportedPreviewSizes = capabilities.previewSizes;
+        List<int[]> supportedPictureSizes = capabilities.pictureSizes;
+        List<SizePair> validPreviewSizes = new ArrayList<>();
+        for (int[] previewSize : supportedPreviewSizes) {
+            float previewAspectRatio = (float) previewSize[0] / (float) previewSize[1];
 
-        @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            if (mDelegate != null) {
-                mDelegate.onPictureTaken(data);
-            }
-            synchronized (mCameraLock) {
-                if (mCamera != null) {
-                    mCamera.startPreview();
+            // By looping through the picture sizes in order, we favor the higher resolutions.
+            // We choose the highest resolution in order to support taking the full resolution
+            // picture later.
+            for (int[] pictureSize : supportedPictureSizes) {
+                float pictureAspectRatio = (float) pictureSize[0] / (float) pictureSize[1];
+                if (Math.abs(previewAspectRatio - pictureAspectRatio) < ASPECT_RATIO_TOLERANCE) {
+                    validPreviewSizes.add(new SizePair(previewSize, pictureSize));
+                    break;
                 }
             }
         }
+
+        // If there are no picture sizes with the same aspect ratio as any preview sizes, allow all
+        // of the preview sizes and hope that the camera can handle it.  Probably unlikely, but we
+        // still account for it.
+        if (validPreviewSizes.size() == 0) {
+            Log.w(TAG, "No preview sizes have a corresponding same-aspect-ratio picture size");
+            for (int[] previewSize : supportedPreviewSizes) {
+                // The null picture size will let us know that we shouldn't set a picture size.
+                validPreviewSizes.add(new SizePair(previewSize, null));
+            }
+        }
+
+        return validPreviewSizes;
     }
 
     /**
-     * Wraps the camera1 auto focus callback so that the deprecated API isn't exposed.
+     * Selects the most suitable preview frames per second range, given the desired frames per
+     * second.
+     *
+     * @param capabilities      the capabilities of the camera to select a range from
+     * @param desiredPreviewFps the desired frames per second for the camera preview frames
+     * @return the selected preview frames per second range
      */
-    private class CameraAutoFocusCallback implements Camera.AutoFocusCallback {
-        private AutoFocusCallback mDelegate;
+    private static int[] selectPreviewFpsRange(CameraCapabilities capabilities,
+                                               float desiredPreviewFps) {
+        // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
+        // rates.
+        int desiredPreviewFpsScaled = (int) (desiredPreviewFps * 1000.0f);
 
-        @Override
-        public void onAutoFocus(boolean success, Camera camera) {
-            if (mDelegate != null) {
-                mDelegate.onAutoFocus(success);
+        // The method for selecting the best range is to minimize the sum of the differences between
+        // the desired value and the upper and lower bounds of the range.  This may select a range
+        // that the desired value is outside of, but this is often preferred.  For example, if the
+        // desired frame rate is 29.97, the range (30, 30) is probably more desirable than the
+        // range (15, 30).
+        int[] selectedFpsRange = null;
+        int minDiff = Integer.MAX_VALUE;
+        List<int[]> previewFpsRangeList = capabilities.previewFpsRanges;
+        for (int[] range : previewFpsRangeList) {
+            int deltaMin = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+            int deltaMax = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            int diff = Math.abs(deltaMin) + Math.abs(deltaMax);
+            if (diff < minDiff) {
+                selectedFpsRange = range;
+                minDiff = diff;
             }
         }
+        return selectedFpsRange;
     }
 
     /**
-     * Wraps the camera1 auto focus move callback so that the deprecated API isn't exposed.
+     * Moves the preview fps range towards the frame rate governor's current target, once that
+     * target has drifted far enough from the one the current range was chosen for.  Called on the
+     * camera callback thread.
      */
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
-    private class CameraAutoFocusMoveCallback implements Camera.AutoFocusMoveCallback {
-        private AutoFocusMoveCallback mDelegate;
+    private void adjustPreviewFpsRange(Camera camera) {
+        float target = mFrameRateGovernor.getTargetFps();
+        if (!hasFpsTargetDrifted(target)) {
+            return;
+        }
 
-        @Override
-        public void onAutoFocusMoving(boolean start, Camera camera) {
-            if (mDelegate != null) {
-                mDelegate.onAutoFocusMoving(start);
+        synchronized (mCameraLock) {
+            if (mCamera != camera) {
+                return;
+            }
+            mPreviewFpsRangeTarget = target;
+
+            int[] range = selectPreviewFpsRange(mCapabilities, target);
+            if ((range == null) || Arrays.equals(range, mPreviewFpsRange)) {
+                return;
+            }
+
+            try {
+                Camera.Parameters parameters = camera.getParameters();
+                parameters.setPreviewFpsRange(range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                        range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+                camera.setParameters(parameters);
+                mPreviewFpsRange = range;
+                Log.d(TAG, "Preview fps range set to " + Arrays.toString(range) +
+                        " for a target of " + target + " fps");
+            } catch (RuntimeException e) {
+                // Some devices refuse fps changes while previewing; stick to software skipping.
+                Log.w(TAG, "Could not change preview fps range, disabling adjustment.", e);
+                mAdaptivePreviewFpsRange = false;
             }
         }
     }
 
     /**
-     * Opens the camera and applies the user settings.
-     *
-     * @throws RuntimeException if the method fails
+     * Moves the camera2 target fps range towards the frame rate governor's current target.
+     * Called on the camera2 thread, which must not take {@link #mCameraLock} since
+     * {@link #stop()} waits for that thread while holding it.
      */
-    @SuppressLint("InlinedApi")
-    private Camera createCamera() {
-        int requestedCameraId = getIdForRequestedCamera(mFacing);
-        if (requestedCameraId == -1) {
-            throw new RuntimeException("Could not find requested camera.");
+    private void adjustCamera2FpsRange(Camera2FrameSource source) {
+        float target = mFrameRateGovernor.getTargetFps();
+        if (!hasFpsTargetDrifted(target)) {
+            return;
         }
-        Camera camera = Camera.open(requestedCameraId);
+        mPreviewFpsRangeTarget = target;
+        source.setTargetFps(target);
+    }
 
-        SizePair sizePair = selectSizePair(camera, mRequestedPreviewWidth, mRequestedPreviewHeight);
-        if (sizePair == null) {
-            throw new RuntimeException("Could not find suitable preview size.");
+    /**
+     * Returns whether the governor's target has moved far enough from the one the current fps
+     * range was chosen for to be worth changing the range.
+     */
+    private boolean hasFpsTargetDrifted(float target) {
+        return Math.abs(target - mPreviewFpsRangeTarget) >= 0.2f * mPreviewFpsRangeTarget;
+    }
+
+    /**
+     * Calculates the correct rotation for the given camera id and sets the rotation in the
+     * parameters.  It also sets the camera's display orientation and rotation.
+     *
+     * @param parameters the camera parameters for which to set the rotation
+     * @param cameraId   the camera id to set rotation based on
+     */
+    private void setRotation(Camera camera, Camera.Parameters parameters, int cameraId) {
+        CameraInfo cameraInfo = new CameraInfo();
+        Camera.getCameraInfo(cameraId, cameraInfo);
+
+        boolean front = (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+        int angle = computeRotationAngle(cameraInfo.orientation, front);
+
+        // This corresponds to the rotation constants in {@link Frame}.
+        mRotation = angle / 90;
+
+        camera.setDisplayOrientation(displayAngle(angle, front));
+        parameters.setRotation(angle);
+    }
+
+    /**
+     * Recomputes the rotation for the current display rotation and, if it changed, applies it to
+     * the running camera.  Must be called while holding {@link #mCameraLock}.
+     */
+    private void updateCameraRotation(Camera camera) {
+        CameraInfo cameraInfo = new CameraInfo();
+        Camera.getCameraInfo(getIdForRequestedCamera(mFacing), cameraInfo);
+
+        boolean front = (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+        int angle = computeRotationAngle(cameraInfo.orientation, front);
+        if (angle / 90 == mRotation) {
+            return;
         }
-        Size pictureSize = sizePair.pictureSize();
-        mPreviewSize = sizePair.previewSize();
+        mRotation = angle / 90;
 
-        int[] previewFpsRange = selectPreviewFpsRange(camera, mRequestedFps);
-        if (previewFpsRange == null) {
-            throw new RuntimeException("Could not find suitable preview frames per second range.");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            camera.setDisplayOrientation(displayAngle(angle, front));
+        } else {
+            // Before ICS the display orientation can only be changed while the preview is off.
+            camera.stopPreview();
+            camera.setDisplayOrientation(displayAngle(angle, front));
+            if (!mSuspended) {
+                camera.startPreview();
+            }
         }
+        try {
+            Camera.Parameters parameters = camera.getParameters();
+            parameters.setRotation(angle);
+            camera.setParameters(parameters);
+        } catch (RuntimeException e) {
+            // Only affects the orientation recorded with pictures.
+            Log.w(TAG, "Could not update the picture rotation.", e);
+        }
+    }
 
-        Camera.Parameters parameters = camera.getParameters();
+    private static int displayAngle(int angle, boolean front) {
+        return front ?
+                (360 - angle) % 360 : // compensate for it being mirrored
+                angle;
+    }
+
+    /**
+     * Returns the clockwise angle that images from a camera with the given sensor orientation
+     * must be rotated by to be upright on the display, given the current display rotation.
+     */
+    private int computeRotationAngle(int sensorOrientation, boolean front) {
+        WindowManager windowManager =
+                (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
+        int degrees = 0;
+        int rotation = windowManager.getDefaultDisplay().getRotation();
+        switch (rotation) {
+            case Surface.ROTATION_0:
+                degrees = 0;
+                break;
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+            default:
+                Log.e(TAG, "Bad rotation value: " + rotation);
+        }
 
-        if (pictureSize != null) {
-            parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
+        if (front) {
+            return (sensorOrientation + degrees) % 360;
+        } else {  // back-facing
+            return (sensorOrientation - degrees + 360) % 360;
         }
+    }
 
-        parameters.setPreviewSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-        parameters.setPreviewFpsRange(
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
-        parameters.setPreviewFormat(ImageFormat.NV21);
+    //==============================================================================================
+    // Frame processing
+    //==============================================================================================
 
-        setRotation(camera, parameters, requestedCameraId);
+    /**
+     * Called when the camera has a new preview frame.
+     */
+    private class CameraPreviewCallback implements Camera.PreviewCallback {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            mFrameProcessor.setNextFrame(data);
+            if ((mFrameRateGovernor != null) && mAdaptivePreviewFpsRange) {
+                adjustPreviewFpsRange(camera);
+            }
+        }
+    }
 
-        if (mFocusMode != null) {
-            if (parameters.getSupportedFocusModes().contains(
-                    mFocusMode)) {
-                parameters.setFocusMode(mFocusMode);
-            } else {
-                Log.i(TAG, "Camera focus mode: " + mFocusMode + " is not supported on this device.");
+    /**
+     * Called on the camera2 thread with each new analysis frame.
+     */
+    private class Camera2FrameCallback implements Camera2FrameSource.FrameCallback {
+        @Override
+        public void onFrame(byte[] data) {
+            mFrameProcessor.setNextFrame(data);
+            Camera2FrameSource source = mCamera2;
+            if ((source != null) && (mFrameRateGovernor != null) && mAdaptivePreviewFpsRange) {
+                adjustCamera2FpsRange(source);
             }
         }
+    }
 
-        // setting mFocusMode to the one set in the params
-        mFocusMode = parameters.getFocusMode();
+    /**
+     * Moves resolution calibration on to its next candidate size, or finishes it, and restarts
+     * the camera at the resulting size.  Runs on the main thread.
+     */
+    private class CalibrationStep implements Runnable {
+        @Override
+        public void run() {
+            Runnable listener;
+            synchronized (mCameraLock) {
+                ResolutionCalibrator calibrator = mCalibrator;
+                if ((calibrator == null) || ((mCamera == null) && (mCamera2 == null))) {
+                    return;
+                }
+                if (!calibrator.nextCandidate()) {
+                    ResolutionCalibrator.Result result = calibrator.getResult();
+                    mCalibrator = null;
+                    if (result != null) {
+                        Log.i(TAG, "Resolution calibration chose " + result);
+                        ResolutionProfile.save(mContext, mFacing, result);
+                        applyResolution(result);
+                    } else {
+                        Log.w(TAG, "Resolution calibration measured no detections; " +
+                                "keeping the requested preview size.");
+                    }
+                }
 
-        if (mFlashMode != null) {
-            if (parameters.getSupportedFlashModes() != null) {
-                if (parameters.getSupportedFlashModes().contains(
-                        mFlashMode)) {
-                    parameters.setFlashMode(mFlashMode);
-                } else {
-                    Log.i(TAG, "Camera flash mode: " + mFlashMode + " is not supported on this device.");
+                if (!restart()) {
+                    return;
                 }
+                listener = mPreviewChangeListener;
+            }
+            if (listener != null) {
+                listener.run();
             }
         }
+    }
 
-        // setting mFlashMode to the one set in the params
-        mFlashMode = parameters.getFlashMode();
+    /**
+     * Follows the default display's rotation while the camera source is running.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private class DisplayRotationListener implements DisplayManager.DisplayListener {
+        private final DisplayManager mDisplayManager =
+                (DisplayManager) mContext.getSystemService(Context.DISPLAY_SERVICE);
 
-        camera.setParameters(parameters);
+        void register() {
+            mDisplayManager.registerDisplayListener(this, mMainHandler);
+        }
 
-        // Four frame buffers are needed for working with the camera:
-        //
-        //   one for the frame that is currently being executed upon in doing detection
-        //   one for the next pending frame to process immediately upon completing detection
-        //   two for the frames that the camera uses to populate future preview images
-        camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
+        void unregister() {
+            mDisplayManager.unregisterDisplayListener(this);
+        }
 
-        return camera;
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId == Display.DEFAULT_DISPLAY) {
+                updateRotation();
+            }
+        }
+
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
     }
 
     /**
-     * Gets the id for the camera specified by the direction it is facing.  Returns -1 if no such
-     * camera was found.
-     *
-     * @param facing the desired camera (front-facing or rear-facing)
+     * Restarts the camera on the surface holder it was last started with, e.g. to pick up a new
+     * preview size.  Returns false if it could not be started again.  Must be called on the main
+     * thread while holding {@link #mCameraLock}.
      */
-    private static int getIdForRequestedCamera(int facing) {
-        CameraInfo cameraInfo = new CameraInfo();
-        for (int i = 0; i < Camera.getNumberOfCameras(); ++i) {
-            Camera.getCameraInfo(i, cameraInfo);
-            if (cameraInfo.facing == facing) {
-                return i;
+    @SuppressLint("MissingPermission")
+    private boolean restart() {
+        SurfaceHolder holder = mSurfaceHolder;
+        stop();
+        try {
+            if (holder != null) {
+                start(holder);
+            } else {
+                start();
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not restart the camera.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Applies the frame rate, worker and torch limits of a quality level straight away.  Returns
+     * whether its preview scale differs from the current one, which takes a restart to apply.
+     * Must be called while holding {@link #mCameraLock}.
+     */
+    private boolean applyQualityLevel(QualityController.Level level) {
+        int workers = Math.min(level.maxWorkers, getDetectorWorkerCount());
+        if (mWorkerPool != null) {
+            mWorkerPool.setActiveWorkerCount(workers);
+        }
+        if (mFrameRateGovernor != null) {
+            mFrameRateGovernor.setWorkerCount(workers);
+            mFrameRateGovernor.setFpsCap((level.fpsScale < 1) ?
+                    mRequestedFps * level.fpsScale : Float.MAX_VALUE);
+        }
+
+        if (!level.torchAllowed && Camera.Parameters.FLASH_MODE_TORCH.equals(mFlashMode)) {
+            mTorchSuppressed = setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+        } else if (level.torchAllowed && mTorchSuppressed) {
+            mTorchSuppressed = false;
+            setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
+        }
+
+        boolean rescale = (level.previewScale != mPreviewScale);
+        mPreviewScale = level.previewScale;
+        return rescale;
+    }
+
+    /**
+     * Evaluates the device state and steps scan quality accordingly.
+     */
+    private class QualityStep implements Runnable {
+        @Override
+        public void run() {
+            Runnable listener = null;
+            synchronized (mCameraLock) {
+                if ((mCamera == null) && (mCamera2 == null)) {
+                    return;
+                }
+                QualityController.Level previous = mQualityController.getLevel();
+                QualityController.Level level = mQualityController.evaluate();
+                if (level != previous) {
+                    Log.i(TAG, "Scan quality: " + previous + " -> " + level + " (" +
+                            mQualityController.getLastState() + ")");
+                    // While calibrating, the new scale waits for the calibration's next restart.
+                    if (applyQualityLevel(level) && (mCalibrator == null)) {
+                        if (!restart()) {
+                            return;
+                        }
+                        listener = mPreviewChangeListener;
+                    }
+                }
+                scheduleQualityStep();
+            }
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Applies the focus area that item focus last decided on.
+     */
+    private class FocusStep implements Runnable {
+        @Override
+        public void run() {
+            synchronized (mCameraLock) {
+                ScanWindow area = mFocusTarget;
+                if (area != null) {
+                    applyFocusArea(area);
+                }
             }
         }
-        return -1;
     }
 
     /**
-     * Selects the most suitable preview and picture size, given the desired width and height.
-     * <p/>
-     * Even though we may only need the preview size, it's necessary to find both the preview
-     * size and the picture size of the camera together, because these need to have the same aspect
-     * ratio.  On some hardware, if you would only set the preview size, you will get a distorted
-     * image.
-     *
-     * @param camera        the camera to select a preview size from
-     * @param desiredWidth  the desired width of the camera preview frames
-     * @param desiredHeight the desired height of the camera preview frames
-     * @return the selected preview and picture size pair
+     * Times focus moves for the pipeline metrics, and passes them on to the app's callback.
      */
-    private static SizePair selectSizePair(Camera camera, int desiredWidth, int desiredHeight) {
-        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(camera);
-
-        // The method for selecting the best size is to minimize the sum of the differences between
-        // the desired values and the actual values for width and height.  This is certainly not the
-        // only way to select the best size, but it provides a decent tradeoff between using the
-        // closest aspect ratio vs. using the closest pixel area.
-        SizePair selectedPair = null;
-        int minDiff = Integer.MAX_VALUE;
-        for (SizePair sizePair : validPreviewSizes) {
-            Size size = sizePair.previewSize();
-            int diff = Math.abs(size.getWidth() - desiredWidth) +
-                    Math.abs(size.getHeight() - desiredHeight);
-            if (diff < minDiff) {
-                selectedPair = sizePair;
-                minDiff = diff;
+    private class FocusMoveRecorder implements AutoFocusMoveCallback {
+        @Override
+        public void onAutoFocusMoving(boolean start) {
+            mMetrics.onFocusMoving(start, System.nanoTime());
+            AutoFocusMoveCallback callback = mAutoFocusMoveCallback;
+            if (callback != null) {
+                callback.onAutoFocusMoving(start);
             }
         }
-
-        return selectedPair;
     }
 
     /**
-     * Stores a preview size and a corresponding same-aspect-ratio picture size.  To avoid distorted
-     * preview images on some devices, the picture size must be set to a size that is the same
-     * aspect ratio as the preview size or the preview may end up being distorted.  If the picture
-     * size is null, then there is no picture size with the same aspect ratio as the preview size.
+     * Takes the still picture that still capture escalation decided on, unless the preview is no
+     * longer running.
      */
-    private static class SizePair {
-        private Size mPreview;
-        private Size mPicture;
-
-        public SizePair(android.hardware.Camera.Size previewSize,
-                        android.hardware.Camera.Size pictureSize) {
-            mPreview = new Size(previewSize.width, previewSize.height);
-            if (pictureSize != null) {
-                mPicture = new Size(pictureSize.width, pictureSize.height);
+    private class StillCaptureStep implements Runnable {
+        @Override
+        public void run() {
+            synchronized (mCameraLock) {
+                if ((mCamera == null) || mSuspended) {
+                    mStillTrigger.onCaptureFinished();
+                    return;
+                }
+                try {
+                    // Taken unrotated, so the window is found in it as in preview frames.
+                    Camera.Parameters parameters = mCamera.getParameters();
+                    parameters.setRotation(0);
+                    mCamera.setParameters(parameters);
+                    mCamera.takePicture(null, null, null,
+                            new StillCaptureCallback(mRotation, mPreviewSize));
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Could not take a still picture.", e);
+                    mStillTrigger.onCaptureFinished();
+                }
             }
         }
+    }
 
-        public Size previewSize() {
-            return mPreview;
+    /**
+     * Turns the preview back on once a still picture has been taken, and hands the picture to
+     * the still capture decoder.
+     */
+    private class StillCaptureCallback implements Camera.PictureCallback {
+        private final int mFrameRotation;
+        private final Size mFramePreviewSize;
+
+        StillCaptureCallback(int rotation, Size previewSize) {
+            mFrameRotation = rotation;
+            mFramePreviewSize = previewSize;
         }
 
-        @SuppressWarnings("unused")
-        public Size pictureSize() {
-            return mPicture;
+        @Override
+        public void onPictureTaken(final byte[] data, Camera camera) {
+            synchronized (mCameraLock) {
+                if ((camera != mCamera) || (data == null)) {
+                    mStillTrigger.onCaptureFinished();
+                    return;
+                }
+                Camera.Parameters parameters = camera.getParameters();
+                parameters.setRotation(mRotation * 90);
+                camera.setParameters(parameters);
+                restartPreview(camera);
+            }
+            mStillDecoder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decodeStillCapture(data, mFrameRotation, mFramePreviewSize);
+                }
+            });
         }
     }
 
     /**
-     * Generates a list of acceptable preview sizes.  Preview sizes are not acceptable if there is
-     * not a corresponding picture size of the same aspect ratio.  If there is a corresponding
-     * picture size of the same aspect ratio, the picture size is paired up with the preview size.
-     * <p/>
-     * This is necessary because even if we don't use still pictures, the still picture size must be
-     * set to a size that is the same aspect ratio as the preview size we choose.  Otherwise, the
-     * preview images may be distorted on some devices.
+     * Switches the torch as auto torch last decided.  While the quality level does not allow the
+     * torch, turning it on is left for when the level allows it again.
      */
-    private static List<SizePair> generateValidPreviewSizeList(Camera camera) {
-        Camera.Parameters parameters = camera.getParameters();
-        List<android.hardware.Camera.Size> supportedPreviewSizes =
-                parameters.getSupportedPreviewSizes();
-        List<android.hardware.Camera.Size> supportedPictureSizes =
-                parameters.getSupportedPictureSizes();
-        List<SizePair> validPreviewSizes = new ArrayList<>();
-        for (android.hardware.Camera.Size previewSize : supportedPreviewSizes) {
-            float previewAspectRatio = (float) previewSize.width / (float) previewSize.height;
-
-            // By looping through the picture sizes in order, we favor the higher resolutions.
-            // We choose the highest resolution in order to support taking the full resolution
-            // picture later.
-            for (android.hardware.Camera.Size pictureSize : supportedPictureSizes) {
-                float pictureAspectRatio = (float) pictureSize.width / (float) pictureSize.height;
-                if (Math.abs(previewAspectRatio - pictureAspectRatio) < ASPECT_RATIO_TOLERANCE) {
-                    validPreviewSizes.add(new SizePair(previewSize, pictureSize));
-                    break;
+    private class TorchStep implements Runnable {
+        @Override
+        public void run() {
+            synchronized (mCameraLock) {
+                if ((mCamera == null) && (mCamera2 == null)) {
+                    return;
+                }
+                if (!mTorchTarget) {
+                    mTorchSuppressed = false;
+                    setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+                } else if ((mQualityController != null) &&
+                        !mQualityController.getLevel().torchAllowed) {
+                    mTorchSuppressed = true;
+                } else if (!setFlashMode(Camera.Parameters.FLASH_MODE_TORCH)) {
+                    Log.w(TAG, "Auto torch: the camera has no torch.");
                 }
             }
         }
+    }
 
-        // If there are no picture sizes with the same aspect ratio as any preview sizes, allow all
-        // of the preview sizes and hope that the camera can handle it.  Probably unlikely, but we
-        // still account for it.
-        if (validPreviewSizes.size() == 0) {
-            Log.w(TAG, "No preview sizes have a corresponding same-aspect-ratio picture size");
-            for (android.hardware.Camera.Size previewSize : supportedPreviewSizes) {
-                // The null picture size will let us know that we shouldn't set a picture size.
-                validPreviewSizes.add(new SizePair(previewSize, null));
+    /**
+     * Applies the zoom ratio that auto zoom last decided on.
+     */
+    private class ZoomStep implements Runnable {
+        @Override
+        public void run() {
+            synchronized (mCameraLock) {
+                if (!mAutoZoomOverridden) {
+                    applyZoomRatio(mZoomTarget);
+                }
             }
         }
-
-        return validPreviewSizes;
     }
 
     /**
-     * Selects the most suitable preview frames per second range, given the desired frames per
-     * second.
-     *
-     * @param camera            the camera to select a frames per second range from
-     * @param desiredPreviewFps the desired frames per second for the camera preview frames
-     * @return the selected preview frames per second range
+     * Stops a suspended camera source once its grace period has run out.
      */
-    private int[] selectPreviewFpsRange(Camera camera, float desiredPreviewFps) {
-        // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
-        // rates.
-        int desiredPreviewFpsScaled = (int) (desiredPreviewFps * 1000.0f);
-
-        // The method for selecting the best range is to minimize the sum of the differences between
-        // the desired value and the upper and lower bounds of the range.  This may select a range
-        // that the desired value is outside of, but this is often preferred.  For example, if the
-        // desired frame rate is 29.97, the range (30, 30) is probably more desirable than the
-        // range (15, 30).
-        int[] selectedFpsRange = null;
-        int minDiff = Integer.MAX_VALUE;
-        List<int[]> previewFpsRangeList = camera.getParameters().getSupportedPreviewFpsRange();
-        for (int[] range : previewFpsRangeList) {
-            int deltaMin = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
-            int deltaMax = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
-            int diff = Math.abs(deltaMin) + Math.abs(deltaMax);
-            if (diff < minDiff) {
-                selectedFpsRange = range;
-                minDiff = diff;
+    private class SuspendTimeout implements Runnable {
+        @Override
+        public void run() {
+            synchronized (mCameraLock) {
+                if (mSuspended) {
+                    Log.d(TAG, "Suspend grace period ran out; stopping the camera.");
+                    stop();
+                }
             }
         }
-        return selectedFpsRange;
     }
 
     /**
-     * Calculates the correct rotation for the given camera id and sets the rotation in the
-     * parameters.  It also sets the camera's display orientation and rotation.
-     *
-     * @param parameters the camera parameters for which to set the rotation
-     * @param cameraId   the camera id to set rotation based on
+     * Called on the replay thread with each frame from the recording.
      */
-    private void setRotation(Camera camera, Camera.Parameters parameters, int cameraId) {
-        WindowManager windowManager =
-                (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
-        int degrees = 0;
-        int rotation = windowManager.getDefaultDisplay().getRotation();
-        switch (rotation) {
-            case Surface.ROTATION_0:
-                degrees = 0;
-                break;
-            case Surface.ROTATION_90:
-                degrees = 90;
-                break;
-            case Surface.ROTATION_180:
-                degrees = 180;
-                break;
-            case Surface.ROTATION_270:
-                degrees = 270;
-                break;
-            default:
-                Log.e(TAG, "Bad rotation value: " + rotation);
+    private class ReplayFrameCallback implements ReplayFrameSource.FrameCallback {
+        @Override
+        public void onFrame(byte[] data, int frameId, long timestampMillis) {
+            mFrameProcessor.setNextFrame(data, frameId, timestampMillis);
         }
+    }
 
-        CameraInfo cameraInfo = new CameraInfo();
-        Camera.getCameraInfo(cameraId, cameraInfo);
+    /**
+     * Queues free preview buffers with the camera1 callback buffer queue.
+     */
+    private static class CameraBufferQueue implements FrameBufferRing.BufferQueue {
+        private final Camera mCamera;
 
-        int angle;
-        int displayAngle;
-        if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            angle = (cameraInfo.orientation + degrees) % 360;
-            displayAngle = (360 - angle) % 360; // compensate for it being mirrored
-        } else {  // back-facing
-            angle = (cameraInfo.orientation - degrees + 360) % 360;
-            displayAngle = angle;
+        CameraBufferQueue(Camera camera) {
+            mCamera = camera;
         }
 
-        // This corresponds to the rotation constants in {@link Frame}.
-        mRotation = angle / 90;
-
-        camera.setDisplayOrientation(displayAngle);
-        parameters.setRotation(angle);
+        @Override
+        public void queueBuffer(int slot, byte[] buffer) {
+            mCamera.addCallbackBuffer(buffer);
+        }
     }
 
     /**
-     * Creates one buffer for the camera preview callback.  The size of the buffer is based off of
-     * the camera preview size and the format of the camera image.
-     *
-     * @return a new preview buffer of the appropriate size for the current camera settings
+     * Gives buffers back to the camera once a detection worker is done with them, and feeds
+     * detection timing to the frame rate governor, the pipeline metrics and resolution
+     * calibration.
      */
-    private byte[] createPreviewBuffer(Size previewSize) {
-        int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
-        long sizeInBits = previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
-        int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
-
-        //
-        // NOTICE: This code only works when using play services v. 8.1 or higher.
-        //
-
-        // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
-        // should guarantee that there will be an array to work with.
-        byte[] byteArray = new byte[bufferSize];
-        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-        if (!buffer.hasArray() || (buffer.array() != byteArray)) {
-            // I don't think that this will ever happen.  But if it does, then we wouldn't be
-            // passing the preview content to the underlying detector later.
-            throw new IllegalStateException("Failed to create valid buffer for camera source.");
+    private class WorkerFrameListener implements DetectorWorkerPool.FrameListener {
+        @Override
+        public void releaseFrame(int slot) {
+            // Workers are always stopped before the camera is released, see stop().
+            mBufferRing.recycle(slot);
         }
 
-        mBytesToByteBuffer.put(byteArray, buffer);
-        return byteArray;
-    }
+        @Override
+        public void onDetectionFinished(PreviewFrame frame, long startNanos, long endNanos,
+                                        int itemCount) {
+            mMetrics.onDetectionFinished(frame.receivedNanos, startNanos, endNanos);
+            if (mFrameRateGovernor != null) {
+                mFrameRateGovernor.onDetectionFinished(endNanos - startNanos);
+            }
+            ResolutionCalibrator calibrator = mCalibrator;
+            if (calibrator != null) {
+                calibrator.onDetectionFinished(startNanos, endNanos, itemCount > 0);
+            }
+        }
 
-    //==============================================================================================
-    // Frame processing
-    //==============================================================================================
+        @Override
+        public void onItemsDelivered(long nowNanos) {
+            if (mMetrics.onItemsDelivered(nowNanos)) {
+                logFirstDecode();
+            }
+        }
 
-    /**
-     * Called when the camera has a new preview frame.
-     */
-    private class CameraPreviewCallback implements Camera.PreviewCallback {
         @Override
-        public void onPreviewFrame(byte[] data, Camera camera) {
-            mFrameProcessor.setNextFrame(data, camera);
+        public void onDetectionsDelivered(Detector.Detections<?> detections) {
+            onDelivered(detections);
         }
     }
 
@@ -1073,22 +3150,36 @@ public class CameraSource {
      * frames come in, the most recent frame is held onto as pending.  As soon as detection and its
      * associated processing are done for the previous frame, detection on the mostly recently
      * received frame will immediately start on the same thread.
+     * <p/>
+     * If detection workers are configured, this instead waits for a worker to become idle and
+     * hands it the most recently received frame, so that several frames are detected at once.
      */
+    @SuppressWarnings({"unchecked", "rawtypes"})
     private class FrameProcessingRunnable implements Runnable {
-        private Detector<?> mDetector;
+        private DetectionPass mPass;
+        private Detector mDetector;
+        private Detector.Processor mProcessor;
         private long mStartTimeMillis = SystemClock.elapsedRealtime();
 
-        // This lock guards all of the member variables below.
-        private final Object mLock = new Object();
-        private boolean mActive = true;
+        // Hands the newest frame's slot from the camera thread to this one without locking.
+        private final FrameExchanger mExchanger = new FrameExchanger();
 
-        // These pending variables hold the state associated with the new frame awaiting processing.
-        private long mPendingTimeMillis;
-        private int mPendingFrameId = 0;
-        private ByteBuffer mPendingFrameData;
+        // The state associated with the frame in each slot, written by the camera thread before
+        // the slot is offered to the exchanger and read by this thread after taking it.
+        private final long[] mSlotTimeMillis = new long[FrameBufferRing.MAX_DEPTH];
+        private final long[] mSlotNanos = new long[FrameBufferRing.MAX_DEPTH];
+        private final int[] mSlotFrameId = new int[FrameBufferRing.MAX_DEPTH];
 
-        FrameProcessingRunnable(Detector<?> detector) {
-            mDetector = detector;
+        // The ID of the last frame accepted.  Only touched by the camera thread.
+        private int mNextFrameId = 0;
+
+        // The last results handed to the processor without workers, for duplicate frames.
+        private Detector.Detections mLastDetections;
+
+        FrameProcessingRunnable(DetectionPass pass, Detector.Processor<?> processor) {
+            mPass = pass;
+            mDetector = pass.getDetector();
+            mProcessor = processor;
         }
 
         /**
@@ -1098,47 +3189,89 @@ public class CameraSource {
         @SuppressLint("Assert")
         void release() {
             assert (mProcessingThread.getState() == State.TERMINATED);
-            mDetector.release();
+            if (mWorkerPool != null) {
+                // The pool owns the supplied detector as its first worker.
+                mWorkerPool.release();
+            } else {
+                mPass.release();
+                if (mProcessor != null) {
+                    mProcessor.release();
+                }
+            }
+            if (mFanOutDetectors != null) {
+                mFanOutDetectors.release();
+            }
+            mPass = null;
             mDetector = null;
+            mProcessor = null;
         }
 
         /**
-         * Marks the runnable as active/not active.  Signals any blocked threads to continue.
+         * Marks the runnable as active/not active.  Deactivating wakes the processing thread so
+         * that it exits, and gives any pending frame back to the camera.
          */
         void setActive(boolean active) {
-            synchronized (mLock) {
-                mActive = active;
-                mLock.notifyAll();
+            if (active) {
+                mExchanger.open();
+                return;
+            }
+            int pending = mExchanger.close();
+            if (pending != FrameBufferRing.NO_SLOT) {
+                mBufferRing.recycle(pending);
             }
         }
 
         /**
          * Sets the frame data received from the camera.  This adds the previous unused frame buffer
-         * (if present) back to the camera, and keeps a pending reference to the frame data for
-         * future use.
+         * (if present) back to the camera, and makes this frame the pending one for the processing
+         * thread.  Called only from the camera thread.
          */
-        void setNextFrame(byte[] data, Camera camera) {
-            synchronized (mLock) {
-                if (mPendingFrameData != null) {
-                    camera.addCallbackBuffer(mPendingFrameData.array());
-                    mPendingFrameData = null;
-                }
-
-                if (!mBytesToByteBuffer.containsKey(data)) {
-                    Log.d(TAG,
-                        "Skipping frame.  Could not find ByteBuffer associated with the image " +
-                        "data from the camera.");
-                    return;
-                }
+        void setNextFrame(byte[] data) {
+            // Timestamp and frame ID are maintained here, which will give downstream code some
+            // idea of the timing of frames received and when frames were dropped along the way.
+            setNextFrame(data, mNextFrameId + 1,
+                    SystemClock.elapsedRealtime() - mStartTimeMillis);
+        }
 
-                // Timestamp and frame ID are maintained here, which will give downstream code some
-                // idea of the timing of frames received and when frames were dropped along the way.
-                mPendingTimeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
-                mPendingFrameId++;
-                mPendingFrameData = mBytesToByteBuffer.get(data);
+        /**
+         * Sets the frame data received from the camera, with a given frame ID and timestamp.
+         * Frames that are skipped don't use up their ID.
+         */
+        void setNextFrame(byte[] data, int frameId, long timestampMillis) {
+            mMetrics.onFrameReceived();
+            int slot = mBufferRing.slotOf(data);
+            if (slot == FrameBufferRing.NO_SLOT) {
+                mMetrics.onUnknownBuffer();
+                Log.d(TAG,
+                    "Skipping frame.  Could not find ByteBuffer associated with the image " +
+                    "data from the camera.");
+                return;
+            }
+            long now = System.nanoTime();
+            mBufferRing.onFrameReceived(slot, now);
+
+            if ((mFrameRateGovernor != null) && !mFrameRateGovernor.onFrameArrived(now)) {
+                // Arrived faster than detection can keep up with; give it straight back and keep
+                // whatever frame is already pending.
+                mBufferRing.recycle(slot);
+                return;
+            }
 
-                // Notify the processor thread if it is waiting on the next frame (see below).
-                mLock.notifyAll();
+            mSlotTimeMillis[slot] = timestampMillis;
+            mSlotNanos[slot] = now;
+            mSlotFrameId[slot] = frameId;
+            mNextFrameId = frameId;
+
+            int replaced = mExchanger.offer(slot);
+            if (replaced == slot) {
+                // Not active; nobody is going to process it.
+                mBufferRing.recycle(slot);
+            } else if (replaced != FrameBufferRing.NO_SLOT) {
+                mBufferRing.recycle(replaced);
+                mMetrics.onFrameReplaced();
+                if (mFrameRateGovernor != null) {
+                    mFrameRateGovernor.onFrameReplaced();
+                }
             }
         }
 
@@ -1158,57 +3291,185 @@ public class CameraSource {
          */
         @Override
         public void run() {
-            Frame outputFrame;
-            ByteBuffer data;
+            PreviewFrame frame;
+            mLastDetections = null;
+            if (mDeduplicator != null) {
+                mDeduplicator.reset();
+            }
 
             while (true) {
-                synchronized (mLock) {
-                    while (mActive && (mPendingFrameData == null)) {
-                        try {
-                            // Wait for the next frame to be received from the camera, since we
-                            // don't have it yet.
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Frame processing loop terminated.", e);
-                            return;
-                        }
-                    }
+                if ((mWorkerPool != null) && !mWorkerPool.awaitIdleWorker()) {
+                    return;
+                }
 
-                    if (!mActive) {
-                        // Exit the loop once this camera source is stopped or released.  We check
-                        // this here, immediately after the wait() above, to handle the case where
-                        // setActive(false) had been called, triggering the termination of this
-                        // loop.
-                        return;
-                    }
+                // Wait for the next frame to be received from the camera, if we don't have it
+                // yet.  Taking the slot out of the exchanger also ensures that this buffer isn't
+                // recycled back to the camera before we are done using that data.
+                int slot = mExchanger.take();
+                if (slot == FrameExchanger.CLOSED) {
+                    // Exit the loop once this camera source is stopped or released.
+                    Log.d(TAG, "Frame processing loop terminated.");
+                    return;
+                }
+                deliverStillCapture();
+                frame = new PreviewFrame(mBufferRing.byteBufferAt(slot), slot,
+                        mPreviewSize.getWidth(), mPreviewSize.getHeight(), mSlotFrameId[slot],
+                        mSlotTimeMillis[slot], mRotation, mSlotNanos[slot]);
+
+                ScanWindow window = mScanWindow;
+                if (mAutoTorch != null) {
+                    meterTorch(frame, window);
+                }
+                if ((mQualityGate != null) && !acceptQuality(frame, window)) {
+                    mBufferRing.recycle(frame.slot);
+                    continue;
+                }
+                if ((mDeduplicator != null) && isDuplicate(frame, window)) {
+                    mBufferRing.recycle(frame.slot);
+                    redeliverLastDetections();
+                    continue;
+                }
 
-                    outputFrame = new Frame.Builder()
-                            .setImageData(mPendingFrameData, mPreviewSize.getWidth(),
-                                    mPreviewSize.getHeight(), ImageFormat.NV21)
-                            .setId(mPendingFrameId)
-                            .setTimestampMillis(mPendingTimeMillis)
-                            .setRotation(mRotation)
-                            .build();
-
-                    // Hold onto the frame data locally, so that we can use this for detection
-                    // below.  We need to clear mPendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    data = mPendingFrameData;
-                    mPendingFrameData = null;
+                if (mWorkerPool != null) {
+                    mWorkerPool.submit(frame, window);
+                    continue;
                 }
 
-                // The code below needs to run outside of synchronization, because this will allow
-                // the camera to add pending frame(s) while we are running detection on the current
-                // frame.
+                // The camera keeps adding pending frame(s) while we are running detection on the
+                // current frame.
 
+                long start = System.nanoTime();
+                long detected = 0;
+                int itemCount = 0;
                 try {
-                    mDetector.receiveFrame(outputFrame);
+                    if (mProcessor != null) {
+                        Detector.Detections detections = mPass.detect(frame, window);
+                        detected = System.nanoTime();
+                        itemCount = detections.getDetectedItems().size();
+                        if ((itemCount > 0) && mMetrics.onItemsDelivered(detected)) {
+                            logFirstDecode();
+                        }
+                        mProcessor.receiveDetections(detections);
+                        mLastDetections = detections;
+                        onDelivered(detections);
+                    } else {
+                        mDetector.receiveFrame(mPass.buildFrame(frame, null, null));
+                    }
                 } catch (Throwable t) {
                     Log.e(TAG, "Exception thrown from receiver.", t);
                 } finally {
-                    mCamera.addCallbackBuffer(data.array());
+                    mBufferRing.recycle(frame.slot);
+                }
+                // The governor needs the whole time the thread was busy, processor included.
+                long end = System.nanoTime();
+                mMetrics.onDetectionFinished(frame.receivedNanos, start,
+                        (detected != 0) ? detected : end);
+                if (mFrameRateGovernor != null) {
+                    mFrameRateGovernor.onDetectionFinished(end - start);
+                }
+                // Without a processor the results are not seen here, so nothing counts as found.
+                ResolutionCalibrator calibrator = mCalibrator;
+                if (calibrator != null) {
+                    calibrator.onDetectionFinished(start, (detected != 0) ? detected : end,
+                            itemCount > 0);
                 }
             }
         }
+
+        /**
+         * Meters the part of the frame that would be detected for auto torch, and schedules a
+         * torch switch if it decides on one.
+         */
+        private void meterTorch(PreviewFrame frame, ScanWindow window) {
+            boolean changed;
+            if (window == null) {
+                changed = mAutoTorch.onFrame(frame.data.array(), frame.width,
+                        0, 0, frame.width, frame.height, frame.receivedNanos);
+            } else {
+                ScanWindow.Crop crop =
+                        window.computeCrop(frame.width, frame.height, frame.rotation);
+                changed = mAutoTorch.onFrame(frame.data.array(), frame.width,
+                        crop.x, crop.y, crop.width, crop.height, frame.receivedNanos);
+            }
+            if (changed) {
+                Log.i(TAG, "Auto torch: " + (mAutoTorch.isTorchOn() ? "on" : "off") +
+                        " (median luma " + mAutoTorch.getLastLuma() + ")");
+                mTorchTarget = mAutoTorch.isTorchOn();
+                mMainHandler.removeCallbacks(mTorchStep);
+                mMainHandler.post(mTorchStep);
+            }
+        }
+
+        /**
+         * Scores the part of the frame that would be detected and returns whether it is sharp and
+         * steady enough to be worth detecting.
+         */
+        private boolean acceptQuality(PreviewFrame frame, ScanWindow window) {
+            if (window == null) {
+                return mQualityGate.accept(frame.data.array(), frame.width,
+                        0, 0, frame.width, frame.height);
+            }
+            ScanWindow.Crop crop = window.computeCrop(frame.width, frame.height, frame.rotation);
+            return mQualityGate.accept(frame.data.array(), frame.width,
+                    crop.x, crop.y, crop.width, crop.height);
+        }
+
+        /**
+         * Returns whether the part of the frame that would be detected is practically the same as
+         * in the last frame that was detected.
+         */
+        private boolean isDuplicate(PreviewFrame frame, ScanWindow window) {
+            if (window == null) {
+                return mDeduplicator.isDuplicate(frame.data.array(), frame.width,
+                        0, 0, frame.width, frame.height);
+            }
+            ScanWindow.Crop crop = window.computeCrop(frame.width, frame.height, frame.rotation);
+            return mDeduplicator.isDuplicate(frame.data.array(), frame.width,
+                    crop.x, crop.y, crop.width, crop.height);
+        }
+
+        /**
+         * Hands the processor the results of a still picture, if one has been decoded since the
+         * last frame.
+         */
+        private void deliverStillCapture() {
+            Detector.Detections detections = mStillDetections.getAndSet(null);
+            if (detections == null) {
+                return;
+            }
+            if (mWorkerPool != null) {
+                mWorkerPool.deliverExtra(detections);
+                return;
+            }
+            if ((detections.getDetectedItems().size() > 0) &&
+                    mMetrics.onItemsDelivered(System.nanoTime())) {
+                logFirstDecode();
+            }
+            try {
+                mProcessor.receiveDetections(detections);
+                onDelivered(detections);
+            } catch (Throwable t) {
+                Log.e(TAG, "Exception thrown from receiver.", t);
+            }
+        }
+
+        /**
+         * Hands the processor the last results again in place of a duplicate frame's, so that
+         * trackers see the items as still present rather than missing.
+         */
+        private void redeliverLastDetections() {
+            if (mWorkerPool != null) {
+                mWorkerPool.redeliverLast();
+                return;
+            }
+            if ((mProcessor == null) || (mLastDetections == null)) {
+                return;
+            }
+            try {
+                mProcessor.receiveDetections(mLastDetections);
+            } catch (Throwable t) {
+                Log.e(TAG, "Exception thrown from receiver.", t);
+            }
+        }
     }
 }
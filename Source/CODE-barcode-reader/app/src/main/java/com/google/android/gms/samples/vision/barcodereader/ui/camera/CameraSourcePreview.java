@@ -18,6 +18,7 @@ package com.google.android.gms.samples.vision.barcodereader.ui.camera;
 import android.Manifest;
 import android.content.Context;
 import android.content.res.Configuration;
+import android.os.Build;
 import android.support.annotation.RequiresPermission;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -60,6 +61,14 @@ public class CameraSourcePreview extends ViewGroup {
         mCameraSource = cameraSource;
 
         if (mCameraSource != null) {
+            mCameraSource.setPreviewChangeListener(new Runnable() {
+                @Override
+                public void run() {
+                    // The preview size or orientation may have changed.
+                    updateOverlay();
+                    requestLayout();
+                }
+            });
             mStartRequested = true;
             startIfReady();
         }
@@ -77,6 +86,16 @@ public class CameraSourcePreview extends ViewGroup {
         }
     }
 
+    /**
+     * Suspends the camera source, keeping the camera open for a quick restart; see
+     * {@link CameraSource#suspend()}.
+     */
+    public void suspend() {
+        if (mCameraSource != null) {
+            mCameraSource.suspend();
+        }
+    }
+
     public void release() {
         if (mCameraSource != null) {
             mCameraSource.release();
@@ -88,23 +107,33 @@ public class CameraSourcePreview extends ViewGroup {
     private void startIfReady() throws IOException, SecurityException {
         if (mStartRequested && mSurfaceAvailable) {
             mCameraSource.start(mSurfaceView.getHolder());
-            if (mOverlay != null) {
-                Size size = mCameraSource.getPreviewSize();
-                int min = Math.min(size.getWidth(), size.getHeight());
-                int max = Math.max(size.getWidth(), size.getHeight());
-                if (isPortraitMode()) {
-                    // Swap width and height sizes when in portrait, since it will be rotated by
-                    // 90 degrees
-                    mOverlay.setCameraInfo(min, max, mCameraSource.getCameraFacing());
-                } else {
-                    mOverlay.setCameraInfo(max, min, mCameraSource.getCameraFacing());
-                }
-                mOverlay.clear();
-            }
+            updateOverlay();
             mStartRequested = false;
         }
     }
 
+    private void updateOverlay() {
+        if ((mOverlay == null) || (mCameraSource == null)) {
+            return;
+        }
+        Size size = mCameraSource.getPreviewSize();
+        if (size == null) {
+            return;
+        }
+        int min = Math.min(size.getWidth(), size.getHeight());
+        int max = Math.max(size.getWidth(), size.getHeight());
+        if (isPortraitMode()) {
+            // Swap width and height sizes when in portrait, since it will be rotated by
+            // 90 degrees
+            mOverlay.setCameraInfo(min, max, mCameraSource.getCameraFacing());
+        } else {
+            mOverlay.setCameraInfo(max, min, mCameraSource.getCameraFacing());
+        }
+        mOverlay.setScanWindow(mCameraSource.getScanWindow());
+        mOverlay.setPipelineMetrics(mCameraSource.getPipelineMetrics());
+        mOverlay.clear();
+    }
+
     private class SurfaceCallback implements SurfaceHolder.Callback {
         @Override
         public void surfaceCreated(SurfaceHolder surface) {
@@ -174,7 +203,26 @@ public class CameraSourcePreview extends ViewGroup {
         }
     }
 
+    /**
+     * Follows rotations on versions where the camera source is not told about them itself.  The
+     * activity must handle orientation changes for this to be called rather than it restarting.
+     */
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        if ((mCameraSource != null) &&
+                (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1)) {
+            mCameraSource.updateRotation();
+        }
+    }
+
     private boolean isPortraitMode() {
+        if ((mCameraSource != null) && (mCameraSource.getPreviewSize() != null)) {
+            // Follows the camera source's rotation rather than the configuration, which may not
+            // have caught up with a rotation yet.
+            return (mCameraSource.getFrameRotation() % 2) == 1;
+        }
+
         int orientation = mContext.getResources().getConfiguration().orientation;
         if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
             return false;
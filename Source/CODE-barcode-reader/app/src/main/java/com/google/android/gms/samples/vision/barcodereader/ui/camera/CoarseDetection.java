@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Settings and shared state for coarse-to-fine detection.  Each frame is first searched at a
+ * reduced resolution built from its luma plane.  The full resolution image is only searched when
+ * that coarse pass finds something, or when too many coarse passes in a row have found nothing,
+ * in case the item is too small to be seen at the reduced resolution.
+ * <p/>
+ * One instance is shared by every {@link DetectionPass}, so that the empty frame count spans all
+ * detection workers.
+ */
+class CoarseDetection {
+    final int factor;
+    private final int mMaxEmptyFrames;
+
+    private final AtomicInteger mEmptyFrames = new AtomicInteger();
+    private final AtomicLong mCoarseFrames = new AtomicLong();
+    private final AtomicLong mFullFrames = new AtomicLong();
+
+    CoarseDetection(int factor, int maxEmptyFrames) {
+        if ((factor != 2) && (factor != 4)) {
+            throw new IllegalArgumentException("Invalid coarse detection factor: " + factor);
+        }
+        if (maxEmptyFrames < 1) {
+            throw new IllegalArgumentException("Invalid empty frame count: " + maxEmptyFrames);
+        }
+        this.factor = factor;
+        mMaxEmptyFrames = maxEmptyFrames;
+    }
+
+    /**
+     * Records the outcome of a coarse pass and returns whether the full resolution image should
+     * be searched as well.
+     */
+    boolean onCoarseResult(boolean foundCandidate) {
+        mCoarseFrames.incrementAndGet();
+        boolean escalate;
+        if (foundCandidate) {
+            mEmptyFrames.set(0);
+            escalate = true;
+        } else if (mEmptyFrames.incrementAndGet() >= mMaxEmptyFrames) {
+            mEmptyFrames.set(0);
+            escalate = true;
+        } else {
+            escalate = false;
+        }
+
+        if (escalate) {
+            mFullFrames.incrementAndGet();
+        }
+        return escalate;
+    }
+
+    /**
+     * Returns the number of frames searched at the reduced resolution.
+     */
+    long getCoarseFrameCount() {
+        return mCoarseFrames.get();
+    }
+
+    /**
+     * Returns the number of those frames that were also searched at full resolution.
+     */
+    long getFullFrameCount() {
+        return mFullFrames.get();
+    }
+}
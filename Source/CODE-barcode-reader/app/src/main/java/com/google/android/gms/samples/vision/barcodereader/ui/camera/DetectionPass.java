@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import android.graphics.ImageFormat;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Runs one detector over preview frames, applying the camera source's scan window and
+ * coarse-to-fine detection if they are set.  Both need scratch memory, so each thread that runs
+ * detection owns its own pass and the scratch buffers are reused from frame to frame.
+ * <p/>
+ * A pass may also fan each frame out to further detectors, shared with the other passes, which
+ * run on threads of their own at the same time as the main detector and read the same full
+ * resolution image data.  They do so whether or not coarse detection finds anything, as they
+ * look for something else.  Their items are merged into the main detector's results, and
+ * detection only returns once all of them are done, so the caller can give the frame's buffer
+ * back to the camera as before.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+class DetectionPass {
+    private static final String TAG = "DetectionPass";
+
+    private final Detector mDetector;
+    private final FanOutDetectors mFanOut;
+    private final CameraSource.DetectionMapper mMapper;
+    private final CoarseDetection mCoarse;
+
+    private final Future[] mFanOutResults;
+
+    private byte[] mCropBuffer;
+    private ByteBuffer mCropByteBuffer;
+
+    private byte[] mCoarseBuffer;
+    private ByteBuffer mCoarseByteBuffer;
+    private int mCoarseWidth;
+    private int mCoarseHeight;
+
+    /**
+     * @param fanOut the detectors shared by every pass to fan frames out to, or null for none
+     */
+    DetectionPass(Detector<?> detector, FanOutDetectors fanOut,
+                  CameraSource.DetectionMapper<?> mapper, CoarseDetection coarse) {
+        mDetector = detector;
+        mFanOut = fanOut;
+        mMapper = mapper;
+        mCoarse = coarse;
+
+        mFanOutResults = new Future[(fanOut != null) ? fanOut.size() : 0];
+    }
+
+    Detector<?> getDetector() {
+        return mDetector;
+    }
+
+    /**
+     * Releases the main detector.  The fan-out detectors are shared, and released by the camera
+     * source once every pass is done with them.  Only safe to call once no thread is running
+     * detection with this pass.
+     */
+    void release() {
+        mDetector.release();
+    }
+
+    /**
+     * Builds the frame that is handed to the detector: either the whole preview image, or the
+     * part of it under the scan window.
+     */
+    Frame buildFrame(PreviewFrame frame, ScanWindow window, ScanWindow.Crop crop) {
+        ByteBuffer data = frame.data;
+        int width = frame.width;
+        int height = frame.height;
+
+        if (window != null) {
+            int size = Nv21.bufferSize(crop.width, crop.height);
+            if ((mCropBuffer == null) || (mCropBuffer.length < size)) {
+                mCropBuffer = new byte[size];
+                mCropByteBuffer = ByteBuffer.wrap(mCropBuffer);
+            }
+            Nv21.crop(data.array(), frame.width, frame.height,
+                    crop.x, crop.y, crop.width, crop.height, mCropBuffer);
+            data = mCropByteBuffer;
+            width = crop.width;
+            height = crop.height;
+        }
+
+        return new Frame.Builder()
+                .setImageData(data, width, height, ImageFormat.NV21)
+                .setId(frame.id)
+                .setTimestampMillis(frame.timestampMillis)
+                .setRotation(frame.rotation)
+                .build();
+    }
+
+    /**
+     * Builds a reduced resolution grayscale frame from the luma plane of the preview image, or of
+     * the part of it under the scan window.
+     */
+    private Frame buildCoarseFrame(PreviewFrame frame, ScanWindow.Crop crop) {
+        int regionX = 0;
+        int regionY = 0;
+        int regionWidth = frame.width;
+        int regionHeight = frame.height;
+        if (crop != null) {
+            regionX = crop.x;
+            regionY = crop.y;
+            regionWidth = crop.width;
+            regionHeight = crop.height;
+        }
+
+        int width = (regionWidth / mCoarse.factor) & ~1;
+        int height = (regionHeight / mCoarse.factor) & ~1;
+        if ((width != mCoarseWidth) || (height != mCoarseHeight)) {
+            int size = Nv21.bufferSize(width, height);
+            if ((mCoarseBuffer == null) || (mCoarseBuffer.length < size)) {
+                mCoarseBuffer = new byte[size];
+                mCoarseByteBuffer = ByteBuffer.wrap(mCoarseBuffer);
+            }
+            // The chroma plane never changes, so it only needs filling when the layout does.
+            Nv21.fillNeutralChroma(mCoarseBuffer, width, height);
+            mCoarseWidth = width;
+            mCoarseHeight = height;
+        }
+
+        Nv21.downsampleLuma(frame.data.array(), frame.width, regionX, regionY,
+                regionWidth, regionHeight, mCoarse.factor, mCoarseBuffer);
+
+        return new Frame.Builder()
+                .setImageData(mCoarseByteBuffer, width, height, ImageFormat.NV21)
+                .setId(frame.id)
+                .setTimestampMillis(frame.timestampMillis)
+                .setRotation(frame.rotation)
+                .build();
+    }
+
+    /**
+     * Runs detection on the given preview frame.  Items found under the scan window or at reduced
+     * resolution are mapped back to the coordinates of the whole (upright) preview image.
+     */
+    Detector.Detections detect(PreviewFrame frame, ScanWindow window) {
+        ScanWindow.Crop crop = null;
+        if (window != null) {
+            crop = window.computeCrop(frame.width, frame.height, frame.rotation);
+        }
+        int offsetX = (crop != null) ? crop.uprightX : 0;
+        int offsetY = (crop != null) ? crop.uprightY : 0;
+
+        SparseArray coarseItems = null;
+        boolean fullResolution = true;
+        if (mCoarse != null) {
+            Frame coarseFrame = buildCoarseFrame(frame, crop);
+            coarseItems = mDetector.detect(coarseFrame);
+            fullResolution = mCoarse.onCoarseResult(coarseItems.size() > 0);
+            if (!fullResolution && (mFanOut == null)) {
+                return new Detector.Detections(coarseItems, coarseFrame.getMetadata(),
+                        mDetector.isOperational());
+            }
+        }
+
+        Frame outputFrame = buildFrame(frame, window, crop);
+        SparseArray items;
+        SparseArray[] fanOutItems;
+        try {
+            startFanOut(outputFrame);
+            // After a coarse miss only the fan-out detectors search the full resolution frame.
+            items = fullResolution ? mDetector.detect(outputFrame) : coarseItems;
+        } finally {
+            // The caller hands the frame's buffer back to the camera once this returns, so every
+            // fan-out detector has to be done reading it, even if the main detector failed.
+            fanOutItems = awaitFanOut();
+        }
+        float scale = 1.0f;
+        if ((items.size() == 0) && (coarseItems != null) && (coarseItems.size() > 0)) {
+            // The coarse pass decoded something that the full resolution pass did not; report
+            // that rather than nothing.
+            items = coarseItems;
+            scale = mCoarse.factor;
+        }
+
+        if ((mMapper != null) && ((crop != null) || (scale != 1.0f))) {
+            for (int i = 0; i < items.size(); ++i) {
+                mMapper.mapToPreview(items.valueAt(i), scale, offsetX, offsetY);
+            }
+        }
+
+        // The fan-out detectors always search the full resolution frame.
+        for (SparseArray extra : fanOutItems) {
+            if (extra == null) {
+                continue;
+            }
+            for (int i = 0; i < extra.size(); ++i) {
+                int id = extra.keyAt(i);
+                if (items.indexOfKey(id) >= 0) {
+                    // Already found by an earlier detector, e.g. the same value read both ways.
+                    continue;
+                }
+                Object item = extra.valueAt(i);
+                if ((mMapper != null) && (crop != null)) {
+                    mMapper.mapToPreview(item, 1.0f, offsetX, offsetY);
+                }
+                items.put(id, item);
+            }
+        }
+
+        return new Detector.Detections(items, outputFrame.getMetadata(),
+                mDetector.isOperational());
+    }
+
+    /**
+     * Starts every fan-out detector that is not busy with another pass's frame on its own view of
+     * the given frame's image data.  The data itself is shared rather than copied; each detector
+     * only gets its own buffer position.
+     */
+    private void startFanOut(Frame outputFrame) {
+        if (mFanOut == null) {
+            return;
+        }
+        Frame.Metadata metadata = outputFrame.getMetadata();
+        ByteBuffer data = outputFrame.getGrayscaleImageData();
+        for (int i = 0; i < mFanOutResults.length; ++i) {
+            Frame fanOutFrame = new Frame.Builder()
+                    .setImageData(data.duplicate(), metadata.getWidth(), metadata.getHeight(),
+                            ImageFormat.NV21)
+                    .setId(metadata.getId())
+                    .setTimestampMillis(metadata.getTimestampMillis())
+                    .setRotation(metadata.getRotation())
+                    .build();
+            mFanOutResults[i] = mFanOut.start(i, fanOutFrame);
+        }
+    }
+
+    /**
+     * Waits for every fan-out detector started for the current frame and returns what each one
+     * found, or null for any that failed or was left out.  Waits even if interrupted, as the
+     * frame's buffer may not be reused while a detector could still be reading it.
+     */
+    private SparseArray[] awaitFanOut() {
+        SparseArray[] results = new SparseArray[mFanOutResults.length];
+        boolean interrupted = false;
+        for (int i = 0; i < mFanOutResults.length; ++i) {
+            Future future = mFanOutResults[i];
+            mFanOutResults[i] = null;
+            while (future != null) {
+                try {
+                    results[i] = (SparseArray) future.get();
+                    future = null;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Exception thrown from fan-out detector.", e.getCause());
+                    future = null;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+}
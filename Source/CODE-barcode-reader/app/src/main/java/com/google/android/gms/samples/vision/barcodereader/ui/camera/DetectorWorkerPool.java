@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import android.util.Log;
+
+import com.google.android.gms.vision.Detector;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs detection on several frames at once, one frame per worker thread, with each worker owning
+ * its own detector instance.  Detection results are handed to the processor strictly in the order
+ * that frames were submitted, so trackers downstream see the same ordered stream that they would
+ * from a single detector.
+ * <p/>
+ * Frames are submitted by a single dispatching thread, which first waits for a worker to become
+ * idle via {@link #awaitIdleWorker()} and then hands it the newest frame via
+ * {@link #submit(PreviewFrame, ScanWindow)}.  When a worker is done with a frame, its buffer slot
+ * is handed back through the supplied {@link FrameListener}.
+ * <p/>
+ * Results are handed to the processor without holding the pool's lock, so that the other workers
+ * and the dispatching thread carry on while the processor and trackers run.  Whichever thread
+ * finds results ready and nobody delivering delivers them, along with any that become ready in
+ * the meantime, one at a time.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+class DetectorWorkerPool {
+    private static final String TAG = "DetectorWorkerPool";
+
+    /**
+     * Receives buffer slots back once detection on them has finished, along with when that
+     * detection ran and how many items it found, and is told when results with items in them are
+     * delivered.  Every delivered result is also handed over, right after the processor's turn.
+     */
+    interface FrameListener {
+        void releaseFrame(int slot);
+
+        void onDetectionFinished(PreviewFrame frame, long startNanos, long endNanos,
+                                 int itemCount);
+
+        void onItemsDelivered(long nowNanos);
+
+        void onDetectionsDelivered(Detector.Detections<?> detections);
+    }
+
+    private final DetectionPass[] mPasses;
+    private final Detector.Processor mProcessor;
+    private final FrameListener mListener;
+
+    // This lock guards all of the member variables below, as well as the task of each worker.
+    private final Object mLock = new Object();
+    private final ArrayDeque<Worker> mIdleWorkers = new ArrayDeque<>();
+    private Worker[] mWorkers;
+    private int mActiveWorkers;
+    private boolean mRunning;
+    private long mStartTimeNanos;
+
+    // Completed results waiting for earlier frames to finish, indexed by sequence modulo the
+    // worker count.  awaitIdleWorker() keeps no more frames than there are workers between the
+    // next one to deliver and the next one to submit, so no two of them share an index.
+    private final Detector.Detections[] mCompleted;
+    private final boolean[] mCompletedReady;
+    private long mNextSubmitSequence;
+    private long mNextDeliverSequence;
+    private Detector.Detections mLastDelivered;
+
+    // Results taken out of the reorder buffer, in order, for the thread that is delivering to
+    // hand to the processor.  Only one thread delivers at a time.
+    private final ArrayDeque<Detector.Detections> mPending = new ArrayDeque<>();
+    private boolean mDelivering;
+
+    DetectorWorkerPool(DetectionPass[] passes, Detector.Processor<?> processor,
+                       FrameListener listener) {
+        mPasses = passes;
+        mProcessor = processor;
+        mListener = listener;
+        mCompleted = new Detector.Detections[passes.length];
+        mCompletedReady = new boolean[passes.length];
+        mActiveWorkers = passes.length;
+    }
+
+    /**
+     * Returns the number of detection workers.
+     */
+    int size() {
+        return mPasses.length;
+    }
+
+    /**
+     * Limits how many workers detect frames at the same time, e.g. to save power.  The other
+     * workers are kept, idle, so that the limit can be raised again.  Kept across restarts.
+     */
+    void setActiveWorkerCount(int count) {
+        synchronized (mLock) {
+            mActiveWorkers = Math.max(1, Math.min(mPasses.length, count));
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Starts one thread per detector.
+     */
+    void start() {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mStartTimeNanos = System.nanoTime();
+            mNextSubmitSequence = 0;
+            mNextDeliverSequence = 0;
+            mLastDelivered = null;
+            mPending.clear();
+            mDelivering = false;
+            mIdleWorkers.clear();
+            mWorkers = new Worker[mPasses.length];
+            for (int i = 0; i < mPasses.length; ++i) {
+                mCompleted[i] = null;
+                mCompletedReady[i] = false;
+                mWorkers[i] = new Worker(i, mPasses[i]);
+                mIdleWorkers.add(mWorkers[i]);
+            }
+        }
+        for (Worker worker : mWorkers) {
+            worker.mThread.start();
+        }
+    }
+
+    /**
+     * Stops accepting frames and waits for every worker to finish the frame it is working on, and
+     * for the results still waiting to be delivered, so that all buffer slots have been released
+     * and the processor is no longer called by the time this returns.
+     */
+    void stop() {
+        Worker[] workers;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            mLock.notifyAll();
+            workers = mWorkers;
+        }
+
+        for (Worker worker : workers) {
+            try {
+                worker.mThread.join();
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Detector worker interrupted on stop.");
+            }
+        }
+
+        synchronized (mLock) {
+            while (mDelivering) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Interrupted waiting for results to be delivered on stop.");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases all of the worker detectors and the processor.  Only safe to call once the pool
+     * has been stopped.
+     */
+    void release() {
+        for (DetectionPass pass : mPasses) {
+            pass.release();
+        }
+        mProcessor.release();
+    }
+
+    /**
+     * Blocks until a worker is idle, fewer than the active worker limit are busy, and fewer
+     * frames than there are workers await delivery.  A worker goes idle as soon as its frame is
+     * detected, even while an earlier frame is still being detected and holds its result back.
+     * Results waiting for the processor count towards the frames awaiting delivery, so that a
+     * slow processor holds detection back rather than letting results pile up.  Returns false if
+     * the pool was stopped while waiting.
+     */
+    boolean awaitIdleWorker() {
+        synchronized (mLock) {
+            while (mRunning && (mIdleWorkers.isEmpty() ||
+                    (mPasses.length - mIdleWorkers.size() >= mActiveWorkers) ||
+                    (mNextSubmitSequence - mNextDeliverSequence + mPending.size() >=
+                            mPasses.length))) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Interrupted waiting for an idle detector worker.", e);
+                    return false;
+                }
+            }
+            return mRunning;
+        }
+    }
+
+    /**
+     * Hands the frame to an idle worker, which crops it to the given scan window (if any) before
+     * detection.  Must only be called after {@link #awaitIdleWorker()} returned true.  If the pool
+     * has since been stopped, the frame's slot is released immediately.
+     */
+    void submit(PreviewFrame frame, ScanWindow window) {
+        synchronized (mLock) {
+            Worker worker = mIdleWorkers.poll();
+            if (!mRunning || (worker == null)) {
+                mListener.releaseFrame(frame.slot);
+                return;
+            }
+            worker.mFrame = frame;
+            worker.mWindow = window;
+            worker.mSequence = mNextSubmitSequence++;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Hands the processor the last results it was handed again, in place of detecting a frame
+     * that is a duplicate of the last one.  Only done when no frames are being detected or
+     * delivered, as their results will be more recent anyway.  Returns false if nothing was
+     * delivered.
+     */
+    boolean redeliverLast() {
+        Detector.Detections last;
+        synchronized (mLock) {
+            if (!mRunning || (mLastDelivered == null) || mDelivering ||
+                    (mNextSubmitSequence != mNextDeliverSequence)) {
+                return false;
+            }
+            last = mLastDelivered;
+            mDelivering = true;
+        }
+        try {
+            mProcessor.receiveDetections(last);
+        } catch (Throwable t) {
+            Log.e(TAG, "Exception thrown from processor.", t);
+        }
+        deliverPending();
+        return true;
+    }
+
+    /**
+     * Hands the processor results that did not come from a submitted frame, such as those of a
+     * still picture, in between the frames' results.  If another thread is delivering, they are
+     * left for it to deliver.  Returns false if the pool is not running.
+     */
+    boolean deliverExtra(Detector.Detections detections) {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return false;
+            }
+            mPending.add(detections);
+            if (mDelivering) {
+                return true;
+            }
+            mDelivering = true;
+        }
+        deliverPending();
+        return true;
+    }
+
+    /**
+     * Returns, for each worker, the fraction of time since the pool was started that it spent
+     * running detection.
+     */
+    float[] getUtilization() {
+        float[] utilization = new float[mPasses.length];
+        Worker[] workers;
+        long elapsed;
+        synchronized (mLock) {
+            workers = mWorkers;
+            elapsed = System.nanoTime() - mStartTimeNanos;
+        }
+        if ((workers == null) || (elapsed <= 0)) {
+            return utilization;
+        }
+        for (int i = 0; i < workers.length; ++i) {
+            utilization[i] = Math.min(1.0f, (float) workers[i].mBusyNanos / (float) elapsed);
+        }
+        return utilization;
+    }
+
+    /**
+     * Records the result for the given sequence number and moves every result that is now next
+     * in line to the pending queue, then delivers them unless another thread already is.
+     */
+    private void complete(long sequence, Detector.Detections detections) {
+        synchronized (mLock) {
+            int index = (int) (sequence % mCompleted.length);
+            mCompleted[index] = detections;
+            mCompletedReady[index] = true;
+
+            while (true) {
+                int next = (int) (mNextDeliverSequence % mCompleted.length);
+                if (!mCompletedReady[next]) {
+                    break;
+                }
+                Detector.Detections ready = mCompleted[next];
+                mCompleted[next] = null;
+                mCompletedReady[next] = false;
+                mNextDeliverSequence++;
+
+                if (ready != null) {
+                    mLastDelivered = ready;
+                    mPending.add(ready);
+                }
+            }
+
+            if (mDelivering || mPending.isEmpty()) {
+                return;
+            }
+            mDelivering = true;
+        }
+        deliverPending();
+    }
+
+    /**
+     * Hands the pending results to the processor one by one, outside the lock, until there are
+     * none left.  Only called by the thread that set {@link #mDelivering}, which this clears.
+     */
+    private void deliverPending() {
+        while (true) {
+            Detector.Detections ready;
+            synchronized (mLock) {
+                ready = mPending.poll();
+                if (ready == null) {
+                    mDelivering = false;
+                }
+                // Wakes the dispatcher, which waits on pending results, and stop().
+                mLock.notifyAll();
+            }
+            if (ready == null) {
+                return;
+            }
+
+            if (ready.getDetectedItems().size() > 0) {
+                mListener.onItemsDelivered(System.nanoTime());
+            }
+            try {
+                mProcessor.receiveDetections(ready);
+            } catch (Throwable t) {
+                Log.e(TAG, "Exception thrown from processor.", t);
+            }
+            mListener.onDetectionsDelivered(ready);
+        }
+    }
+
+    /**
+     * A worker thread along with the frame it has been handed.  The frame fields are guarded by
+     * the pool lock.
+     */
+    private class Worker implements Runnable {
+        private final DetectionPass mPass;
+        private final Thread mThread;
+        private volatile long mBusyNanos;
+
+        private PreviewFrame mFrame;
+        private ScanWindow mWindow;
+        private long mSequence;
+
+        Worker(int index, DetectionPass pass) {
+            mPass = pass;
+            mThread = new Thread(this, "DetectorWorker-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                PreviewFrame frame;
+                ScanWindow window;
+                long sequence;
+                synchronized (mLock) {
+                    while (mRunning && (mFrame == null)) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            Log.d(TAG, "Detector worker terminated.", e);
+                            return;
+                        }
+                    }
+
+                    if (mFrame == null) {
+                        // Stopped with nothing left to do.
+                        return;
+                    }
+
+                    frame = mFrame;
+                    window = mWindow;
+                    sequence = mSequence;
+                    mFrame = null;
+                }
+
+                long start = System.nanoTime();
+                Detector.Detections detections = null;
+                try {
+                    detections = mPass.detect(frame, window);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from detector.", t);
+                } finally {
+                    mListener.releaseFrame(frame.slot);
+                }
+                long end = System.nanoTime();
+                mBusyNanos += end - start;
+                mListener.onDetectionFinished(frame, start, end,
+                        (detections != null) ? detections.getDetectedItems().size() : 0);
+
+                complete(sequence, detections);
+
+                synchronized (mLock) {
+                    mIdleWorkers.add(this);
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+}
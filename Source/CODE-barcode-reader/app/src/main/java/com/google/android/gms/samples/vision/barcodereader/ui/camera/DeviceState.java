@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.Locale;
+
+/**
+ * The thermal and battery state of the device at some point, as reported by a
+ * {@link DeviceStateProvider}.
+ */
+public final class DeviceState {
+    /**
+     * Battery level for devices that don't report one, or don't have a battery.
+     */
+    public static final int BATTERY_UNKNOWN = -1;
+
+    private final float mThermalHeadroom;
+    private final int mBatteryPercent;
+    private final boolean mCharging;
+
+    /**
+     * @param thermalHeadroom how far the device is from being throttled, from 1 for cool down to
+     *                        0 for throttling
+     * @param batteryPercent  the battery level from 0 to 100, or {@link #BATTERY_UNKNOWN}
+     * @param charging        whether the device is plugged in
+     */
+    public DeviceState(float thermalHeadroom, int batteryPercent, boolean charging) {
+        if ((batteryPercent < BATTERY_UNKNOWN) || (batteryPercent > 100)) {
+            throw new IllegalArgumentException("Invalid battery level: " + batteryPercent);
+        }
+        mThermalHeadroom = Math.max(0, Math.min(1, thermalHeadroom));
+        mBatteryPercent = batteryPercent;
+        mCharging = charging;
+    }
+
+    /**
+     * Returns how far the device is from being throttled, from 1 for cool down to 0 for
+     * throttling.
+     */
+    public float getThermalHeadroom() {
+        return mThermalHeadroom;
+    }
+
+    /**
+     * Returns the battery level from 0 to 100, or {@link #BATTERY_UNKNOWN}.
+     */
+    public int getBatteryPercent() {
+        return mBatteryPercent;
+    }
+
+    /**
+     * Returns whether the device is plugged in.
+     */
+    public boolean isCharging() {
+        return mCharging;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "thermal headroom %.2f, battery %d%%%s", mThermalHeadroom,
+                mBatteryPercent, mCharging ? " (charging)" : "");
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+/**
+ * Reports how much thermal and battery headroom the device has left, for the camera source to
+ * trade scan quality against.  See {@link CameraSource.Builder#setQualityControl}.
+ * {@link BatteryDeviceStateProvider} reads it from the battery; supply another implementation to
+ * use a better thermal signal where there is one, or a fake to exercise the policy.
+ */
+public interface DeviceStateProvider {
+    /**
+     * Returns the current state of the device.  Called on the main thread every few seconds
+     * while the camera source is running, so it should be cheap.
+     */
+    DeviceState getDeviceState();
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The detectors that full resolution frames are fanned out to, along with the threads that run
+ * them.  One instance is shared by every {@link DetectionPass}, so that there is one of each
+ * detector and one thread per detector however many detection workers there are.
+ * <p/>
+ * Each detector only works on one frame at a time.  A pass that finds a detector busy with
+ * another worker's frame leaves it out for its own frame rather than waiting for it, so the
+ * detector reads as many frames as it can keep up with and never holds a worker up for longer
+ * than one detection of its own.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+class FanOutDetectors {
+    private final Detector[] mDetectors;
+    private final AtomicBoolean[] mBusy;
+    private final ExecutorService mExecutor;
+
+    FanOutDetectors(Detector<?>[] detectors) {
+        if (detectors.length == 0) {
+            throw new IllegalArgumentException("No fan-out detectors supplied.");
+        }
+        mDetectors = detectors;
+        mBusy = new AtomicBoolean[detectors.length];
+        for (int i = 0; i < detectors.length; ++i) {
+            mBusy[i] = new AtomicBoolean();
+        }
+        mExecutor = Executors.newFixedThreadPool(detectors.length, new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "DetectionFanOut-" + mCount++);
+            }
+        });
+    }
+
+    int size() {
+        return mDetectors.length;
+    }
+
+    /**
+     * Starts the detector at the given index on the given frame, unless it is still busy with
+     * another frame.  Returns what it will find, or null if it was left out.
+     */
+    Future<SparseArray> start(int index, final Frame frame) {
+        final AtomicBoolean busy = mBusy[index];
+        if (!busy.compareAndSet(false, true)) {
+            return null;
+        }
+        final Detector detector = mDetectors[index];
+        try {
+            return mExecutor.submit(new Callable<SparseArray>() {
+                @Override
+                public SparseArray call() {
+                    try {
+                        return detector.detect(frame);
+                    } finally {
+                        busy.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            busy.set(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the detectors and stops their threads.  Only safe to call once no pass is running
+     * detection.
+     */
+    void release() {
+        for (Detector detector : mDetectors) {
+            detector.release();
+        }
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides where the camera focuses and meters: on the item being scanned while one is found, so
+ * that continuous focus does not hunt on the background, and otherwise on a fallback area such as
+ * the middle of the scan window.  Areas are fractions of the upright frame, like a scan window.
+ * <p/>
+ * Every change of area costs a camera update and may restart the focus search, so a new item
+ * area is only asked for once it has moved or resized by more than {@link #MIN_CHANGE} of the
+ * frame, and no more often than every {@link #MIN_INTERVAL_MILLIS}.  The fallback area is asked
+ * for again once no item has been found for {@link #LOST_FRAMES} frames in a row.
+ */
+class FocusAreaTracker {
+    static final float MIN_CHANGE = 0.1f;
+    static final long MIN_INTERVAL_MILLIS = 500;
+    static final int LOST_FRAMES = 15;
+
+    // items are focused on with this much of their size around them, and never on an area
+    // smaller than MIN_SIZE of the frame, as the camera needs some detail to judge focus by.
+    private static final float MARGIN = 0.25f;
+    private static final float MIN_SIZE = 0.1f;
+
+    private final ScanWindow mFallback;
+    private ScanWindow mCurrent;
+    private long mLastChangeNanos;
+    private int mMissingFrames;
+
+    /**
+     * Creates a tracker that focuses on the given area whenever no item is found.
+     */
+    FocusAreaTracker(ScanWindow fallback) {
+        mFallback = fallback;
+    }
+
+    /**
+     * Goes back to the fallback area, e.g. when the camera has been reopened, and returns it.
+     */
+    ScanWindow reset() {
+        mCurrent = mFallback;
+        mLastChangeNanos = 0;
+        mMissingFrames = 0;
+        return mFallback;
+    }
+
+    /**
+     * Updates the area for a frame in which an item was found with the given bounds, as
+     * fractions of the upright frame.  Returns the new area to focus on, or null to keep the
+     * current one.
+     */
+    ScanWindow onItemFound(float left, float top, float right, float bottom, long nowNanos) {
+        mMissingFrames = 0;
+        if ((mCurrent != mFallback) && (nowNanos - mLastChangeNanos <
+                TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL_MILLIS))) {
+            return null;
+        }
+
+        ScanWindow area = around(left, top, right, bottom);
+        if ((mCurrent != null) && (mCurrent != mFallback) && !differs(mCurrent, area)) {
+            return null;
+        }
+        mCurrent = area;
+        mLastChangeNanos = nowNanos;
+        return area;
+    }
+
+    /**
+     * Updates the area for a frame in which nothing was found.  Returns the fallback area once
+     * the item has been lost, or null to keep the current one.
+     */
+    ScanWindow onNothingFound() {
+        if ((mCurrent == mFallback) || (++mMissingFrames < LOST_FRAMES)) {
+            return null;
+        }
+        mCurrent = mFallback;
+        return mFallback;
+    }
+
+    /**
+     * Returns the area to focus on for an item with the given bounds: the bounds with a margin
+     * around them, at least {@link #MIN_SIZE} across and kept within the frame.
+     */
+    private static ScanWindow around(float left, float top, float right, float bottom) {
+        float width = Math.min(1, Math.max(MIN_SIZE, (right - left) * (1 + 2 * MARGIN)));
+        float height = Math.min(1, Math.max(MIN_SIZE, (bottom - top) * (1 + 2 * MARGIN)));
+        float centerX = Math.max(width / 2, Math.min(1 - width / 2, (left + right) / 2));
+        float centerY = Math.max(height / 2, Math.min(1 - height / 2, (top + bottom) / 2));
+        return new ScanWindow(Math.max(0, centerX - width / 2), Math.max(0, centerY - height / 2),
+                Math.min(1, centerX + width / 2), Math.min(1, centerY + height / 2));
+    }
+
+    private static boolean differs(ScanWindow a, ScanWindow b) {
+        return (Math.abs((a.left + a.right) - (b.left + b.right)) / 2 > MIN_CHANGE) ||
+                (Math.abs((a.top + a.bottom) - (b.top + b.bottom)) / 2 > MIN_CHANGE) ||
+                (Math.abs((a.right - a.left) - (b.right - b.left)) > MIN_CHANGE) ||
+                (Math.abs((a.bottom - a.top) - (b.bottom - b.top)) > MIN_CHANGE);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide pool of preview buffers, bucketed by size, that buffer rings borrow from when a
+ * camera starts and return to when it stops.  Repeated scan sessions then reuse the same few
+ * multi-megabyte arrays rather than allocating new ones on every start, which would otherwise
+ * churn the large object heap and trigger collections just as the preview starts.
+ * <p/>
+ * The pool holds at most {@link #getMaxBytes()} of idle buffers.  When returning a buffer would
+ * exceed that, idle buffers of other sizes are dropped first, least recently used size first, as
+ * a new preview size usually means the old one will not be needed again soon.
+ */
+final class FrameBufferPool {
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final FrameBufferPool sInstance = new FrameBufferPool(DEFAULT_MAX_BYTES);
+
+    // Guarded by this.  Buckets are kept in order of last use, least recent first.
+    private final LinkedHashMap<Integer, ArrayDeque<byte[]>> mBuckets =
+            new LinkedHashMap<>(4, 0.75f, true);
+    private long mMaxBytes;
+    private long mPooledBytes;
+    private long mAllocations;
+    private long mReuses;
+    private long mDiscards;
+
+    FrameBufferPool(long maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Returns the pool shared by every camera source in the process.
+     */
+    static FrameBufferPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns an idle buffer of exactly the given size, or a newly allocated one if there is
+     * none.  Pooled buffers still hold whatever was last written to them.
+     */
+    byte[] acquire(int size) {
+        synchronized (this) {
+            ArrayDeque<byte[]> bucket = mBuckets.get(size);
+            if ((bucket != null) && !bucket.isEmpty()) {
+                mPooledBytes -= size;
+                mReuses++;
+                return bucket.pop();
+            }
+            mAllocations++;
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Gives a buffer back to the pool.  The caller must not touch it afterwards.  The buffer is
+     * dropped if it does not fit within the memory cap.
+     */
+    synchronized void release(byte[] buffer) {
+        int size = buffer.length;
+        if (mPooledBytes + size > mMaxBytes) {
+            evict(mMaxBytes - size, size);
+        }
+        if (mPooledBytes + size > mMaxBytes) {
+            mDiscards++;
+            return;
+        }
+        ArrayDeque<byte[]> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.push(buffer);
+        mPooledBytes += size;
+    }
+
+    /**
+     * Sets the most idle buffer memory the pool holds, dropping buffers if it holds more.
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid buffer pool size: " + maxBytes);
+        }
+        mMaxBytes = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Drops idle buffers, least recently used size first, until at most the given number of
+     * bytes are held.
+     */
+    synchronized void trimTo(long bytes) {
+        evict(bytes, -1);
+    }
+
+    synchronized BufferPoolStats snapshot() {
+        return new BufferPoolStats(mAllocations, mReuses, mDiscards, mPooledBytes, mMaxBytes);
+    }
+
+    /**
+     * Drops idle buffers, least recently used size first and sparing those of the given size,
+     * until at most the given number of bytes are held.
+     */
+    private void evict(long bytes, int keepSize) {
+        Iterator<Map.Entry<Integer, ArrayDeque<byte[]>>> buckets = mBuckets.entrySet().iterator();
+        while ((mPooledBytes > bytes) && buckets.hasNext()) {
+            Map.Entry<Integer, ArrayDeque<byte[]>> bucket = buckets.next();
+            int size = bucket.getKey();
+            if (size == keepSize) {
+                continue;
+            }
+            while ((mPooledBytes > bytes) && !bucket.getValue().isEmpty()) {
+                bucket.getValue().pop();
+                mPooledBytes -= size;
+                mDiscards++;
+            }
+            if (bucket.getValue().isEmpty()) {
+                buckets.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of preview buffers shared between the camera and the frame processor.  Each buffer
+ * lives in a numbered slot, and the slot number is also written into the spare trailing byte of
+ * the buffer.  This lets a buffer that comes back from the camera be mapped to its slot with a
+ * single array read and an identity check, rather than hashing a multi-megabyte array reference
+ * on every frame.
+ * <p/>
+ * The ring also counts the frames that were dropped because every buffer was in use.  Sources
+ * that see a frame arrive with no free buffer report the drop themselves.  camera1 drops such
+ * frames without saying, so for it the ring keeps track of how many buffers are queued with the
+ * camera: once that has run down to zero, the gap before the next frame arrives, measured in
+ * usual frame intervals, tells how many frames were dropped in the meantime.
+ * <p/>
+ * Buffers are borrowed from a {@link FrameBufferPool} and returned to it when the ring is cleared
+ * or reallocated, so that restarting the camera does not allocate new ones.
+ */
+class FrameBufferRing {
+    /**
+     * Wherever free buffers go to be filled with the next preview images, e.g. the camera1 callback
+     * buffer queue.
+     */
+    interface BufferQueue {
+        void queueBuffer(int slot, byte[] buffer);
+    }
+
+    /**
+     * Returned by {@link #slotOf(byte[])} for a buffer that does not belong to this ring.
+     */
+    static final int NO_SLOT = -1;
+
+    /**
+     * One buffer for the frame being detected, one for the pending frame and at least one for the
+     * camera to fill.
+     */
+    static final int MIN_DEPTH = 3;
+
+    /**
+     * The slot index is stored in a single signed byte, so keep well within that range.
+     */
+    static final int MAX_DEPTH = 16;
+
+    static final int DEFAULT_DEPTH = 4;
+
+    private final int mDepth;
+    private final FrameBufferPool mPool;
+    private byte[][] mBuffers;
+    private ByteBuffer[] mByteBuffers;
+    private volatile BufferQueue mQueue;
+
+    private final AtomicInteger mQueuedWithCamera = new AtomicInteger();
+    private final AtomicLong mStarvationCount = new AtomicLong();
+    // Set when a buffer is queued after the camera had none left, and cleared by the next frame.
+    private volatile boolean mRanDry;
+
+    // Only touched from the thread that frames are delivered on.
+    private long mLastFrameNanos;
+    private long mFrameIntervalNanos;
+
+    FrameBufferRing(int depth) {
+        this(depth, FrameBufferPool.getInstance());
+    }
+
+    FrameBufferRing(int depth, FrameBufferPool pool) {
+        if ((depth < MIN_DEPTH) || (depth > MAX_DEPTH)) {
+            throw new IllegalArgumentException("Invalid preview buffer count: " + depth);
+        }
+        mDepth = depth;
+        mPool = pool;
+    }
+
+    /**
+     * Returns the number of slots in the ring.
+     */
+    int depth() {
+        return mDepth;
+    }
+
+    /**
+     * Allocates one buffer per slot, sized for NV21 images of the given preview size.  Any
+     * previously allocated buffers are returned to the pool.
+     */
+    void allocate(int width, int height) {
+        clear();
+
+        // One extra byte past the image data holds the slot tag.
+        int bufferSize = Nv21.bufferSize(width, height) + 1;
+
+        byte[][] buffers = new byte[mDepth][];
+        ByteBuffer[] byteBuffers = new ByteBuffer[mDepth];
+        for (int slot = 0; slot < mDepth; ++slot) {
+            //
+            // NOTICE: This code only works when using play services v. 8.1 or higher.
+            //
+
+            // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
+            // should guarantee that there will be an array to work with.
+            byte[] byteArray = mPool.acquire(bufferSize);
+            ByteBuffer buffer = ByteBuffer.wrap(byteArray);
+            if (!buffer.hasArray() || (buffer.array() != byteArray)) {
+                // I don't think that this will ever happen.  But if it does, then we wouldn't be
+                // passing the preview content to the underlying detector later.
+                throw new IllegalStateException("Failed to create valid buffer for camera source.");
+            }
+            byteArray[bufferSize - 1] = (byte) slot;
+            buffers[slot] = byteArray;
+            byteBuffers[slot] = buffer;
+        }
+
+        mBuffers = buffers;
+        mByteBuffers = byteBuffers;
+        mQueuedWithCamera.set(0);
+        mLastFrameNanos = 0;
+        mFrameIntervalNanos = 0;
+    }
+
+    /**
+     * Sets where free buffers are queued and hands every slot to it.  Called once after
+     * {@link #allocate(int, int)}.
+     */
+    void attach(BufferQueue queue) {
+        mQueue = queue;
+        for (int slot = 0; slot < mDepth; ++slot) {
+            recycle(slot);
+        }
+    }
+
+    /**
+     * Returns all buffers to the pool, for the next ring to reuse or to be reclaimed.  Whatever
+     * was filling or reading them must have let go of them by now.  The counters are kept.
+     */
+    void clear() {
+        byte[][] buffers = mBuffers;
+        mQueue = null;
+        mBuffers = null;
+        mByteBuffers = null;
+        mQueuedWithCamera.set(0);
+        if (buffers != null) {
+            for (byte[] buffer : buffers) {
+                mPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns the slot holding the given array, or {@link #NO_SLOT} if the array is not one of
+     * this ring's buffers.
+     */
+    int slotOf(byte[] data) {
+        byte[][] buffers = mBuffers;
+        if ((buffers == null) || (data == null) || (data.length == 0)) {
+            return NO_SLOT;
+        }
+
+        int slot = data[data.length - 1];
+        if ((slot >= 0) && (slot < buffers.length) && (buffers[slot] == data)) {
+            return slot;
+        }
+
+        // The tag byte should never be touched by the camera, but fall back to an identity scan of
+        // the (small) ring rather than dropping the frame if a driver does write past the image.
+        for (int i = 0; i < buffers.length; ++i) {
+            if (buffers[i] == data) {
+                data[data.length - 1] = (byte) i;
+                return i;
+            }
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * Returns the byte buffer wrapping the given slot's array.
+     */
+    ByteBuffer byteBufferAt(int slot) {
+        return mByteBuffers[slot];
+    }
+
+    /**
+     * Records that the camera delivered a frame in the given slot, which is no longer queued with
+     * the camera.  If the camera ran out of buffers since the previous frame, the frames it must
+     * have dropped in the meantime are counted.
+     */
+    void onFrameReceived(int slot, long nowNanos) {
+        mQueuedWithCamera.decrementAndGet();
+        long last = mLastFrameNanos;
+        mLastFrameNanos = nowNanos;
+        if (last == 0) {
+            mRanDry = false;
+            return;
+        }
+
+        long gap = nowNanos - last;
+        long interval = mFrameIntervalNanos;
+        if (mRanDry) {
+            mRanDry = false;
+            if (interval > 0) {
+                long dropped = (gap + interval / 2) / interval - 1;
+                if (dropped > 0) {
+                    mStarvationCount.addAndGet(dropped);
+                }
+            }
+            return;
+        }
+        // Only gaps the camera was never held up in say how often it delivers frames.
+        mFrameIntervalNanos = (interval == 0) ? gap : interval + (gap - interval) / 8;
+    }
+
+    /**
+     * Records that a frame arrived while no buffer was free and was dropped, for sources that can
+     * tell.  It counts as the frame before the next one for {@link #onFrameReceived(int, long)}.
+     */
+    void onFrameDropped(long nowNanos) {
+        mStarvationCount.incrementAndGet();
+        mRanDry = false;
+        mLastFrameNanos = nowNanos;
+    }
+
+    /**
+     * Gives the buffer in the given slot back to the camera to be filled with a future frame.
+     * Does nothing once the ring has been cleared.
+     */
+    void recycle(int slot) {
+        byte[][] buffers = mBuffers;
+        BufferQueue queue = mQueue;
+        if ((buffers == null) || (queue == null)) {
+            return;
+        }
+        if (mQueuedWithCamera.getAndIncrement() == 0) {
+            mRanDry = true;
+        }
+        queue.queueBuffer(slot, buffers[slot]);
+    }
+
+    /**
+     * Returns how many frames were dropped because there was no buffer to write them into.
+     */
+    long getStarvationCount() {
+        return mStarvationCount.get();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spots preview frames that are practically the same as the last frame that was detected, e.g.
+ * while a book sits still in front of the camera, so that detecting them again can be skipped and
+ * the previous results reused.
+ * <p/>
+ * Each frame gets a fingerprint: the mean luma of each block of a {@link #GRID_SIZE} by
+ * {@link #GRID_SIZE} grid over the region to be detected, taken from a sparse set of samples.  A
+ * frame is a duplicate if the mean absolute difference between its block means and those of the
+ * last detected frame is at most the threshold.  Since the comparison is always against the last
+ * detected frame, a slow drift still adds up to a difference eventually.  In case the threshold
+ * doesn't suit the scene, no more than {@link #MAX_CONSECUTIVE_DUPLICATES} frames in a row are
+ * skipped.
+ * <p/>
+ * Checking is only called from the frame processing thread.  The skip count may be read from any
+ * thread.
+ */
+class FrameDeduplicator {
+    static final int GRID_SIZE = 16;
+
+    // Distance in pixels between luma samples within a block, in both directions.
+    private static final int SAMPLE_STEP = 8;
+
+    static final int MAX_CONSECUTIVE_DUPLICATES = 30;
+
+    private final float mMaxDifference;
+
+    private int[] mReference;
+    private int[] mFingerprint = new int[GRID_SIZE * GRID_SIZE];
+    private int mReferenceWidth;
+    private int mReferenceHeight;
+    private int mConsecutiveDuplicates;
+
+    private final AtomicLong mDuplicates = new AtomicLong();
+
+    FrameDeduplicator(float maxDifference) {
+        if (maxDifference <= 0) {
+            throw new IllegalArgumentException("Invalid duplicate frame threshold: " +
+                    maxDifference);
+        }
+        mMaxDifference = maxDifference;
+    }
+
+    /**
+     * Fingerprints a region of the luma plane of an image and returns whether it is a duplicate of
+     * the last region that was not.  Regions too small to fill the grid are never duplicates.
+     */
+    boolean isDuplicate(byte[] luma, int width, int regionX, int regionY, int regionWidth,
+                        int regionHeight) {
+        int blockWidth = regionWidth / GRID_SIZE;
+        int blockHeight = regionHeight / GRID_SIZE;
+        if ((blockWidth == 0) || (blockHeight == 0)) {
+            return false;
+        }
+
+        int step = Math.min(SAMPLE_STEP, Math.min(blockWidth, blockHeight));
+        int samplesPerBlock = ((blockWidth + step - 1) / step) * ((blockHeight + step - 1) / step);
+        int i = 0;
+        for (int blockRow = 0; blockRow < GRID_SIZE; ++blockRow) {
+            int top = regionY + blockRow * blockHeight;
+            for (int blockColumn = 0; blockColumn < GRID_SIZE; ++blockColumn) {
+                int left = regionX + blockColumn * blockWidth;
+                int sum = 0;
+                for (int y = top; y < top + blockHeight; y += step) {
+                    int offset = y * width + left;
+                    for (int x = 0; x < blockWidth; x += step) {
+                        sum += luma[offset + x] & 0xFF;
+                    }
+                }
+                mFingerprint[i++] = sum / samplesPerBlock;
+            }
+        }
+
+        if ((mReference == null) || (regionWidth != mReferenceWidth) ||
+                (regionHeight != mReferenceHeight)) {
+            // Nothing meaningful to compare against.
+            keepAsReference(regionWidth, regionHeight);
+            return false;
+        }
+
+        long difference = 0;
+        for (int block = 0; block < mFingerprint.length; ++block) {
+            difference += Math.abs(mFingerprint[block] - mReference[block]);
+        }
+        if ((difference <= mMaxDifference * mFingerprint.length) &&
+                (mConsecutiveDuplicates < MAX_CONSECUTIVE_DUPLICATES)) {
+            mConsecutiveDuplicates++;
+            mDuplicates.incrementAndGet();
+            return true;
+        }
+        keepAsReference(regionWidth, regionHeight);
+        return false;
+    }
+
+    /**
+     * Forgets the last detected frame, e.g. when the camera restarts.
+     */
+    void reset() {
+        mReference = null;
+        mConsecutiveDuplicates = 0;
+    }
+
+    /**
+     * Returns how many frames were found to be duplicates.
+     */
+    long getDuplicateCount() {
+        return mDuplicates.get();
+    }
+
+    private void keepAsReference(int regionWidth, int regionHeight) {
+        // Swap rather than copy; the old reference is overwritten by the next fingerprint.
+        int[] reference = mReference;
+        mReference = mFingerprint;
+        mFingerprint = (reference != null) ? reference : new int[GRID_SIZE * GRID_SIZE];
+        mReferenceWidth = regionWidth;
+        mReferenceHeight = regionHeight;
+        mConsecutiveDuplicates = 0;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free handoff of the newest preview buffer slot from the camera thread to the processing
+ * thread.  The pending slot lives in a single atomic integer: the camera swaps in each new slot
+ * and gets back the one it replaced, which it returns to the camera, and the processing thread
+ * swaps the pending slot out, parking until there is one.  Neither side ever blocks the other.
+ * <p/>
+ * Only one thread may call {@link #take()} at a time.  Anything the producer writes before
+ * {@link #offer(int)} is visible to the consumer once {@link #take()} has returned that slot.
+ */
+class FrameExchanger {
+    /**
+     * Returned by {@link #take()} once the exchanger has been closed.
+     */
+    static final int CLOSED = -2;
+
+    private final AtomicInteger mPending = new AtomicInteger(FrameBufferRing.NO_SLOT);
+    private volatile Thread mWaiter;
+
+    /**
+     * Makes the exchanger accept frames again after {@link #close()}, with nothing pending.  Does
+     * nothing if it is already open, so that a slot offered before then is not lost.
+     */
+    void open() {
+        mPending.compareAndSet(CLOSED, FrameBufferRing.NO_SLOT);
+    }
+
+    /**
+     * Makes the given slot the pending one and wakes the consumer.  Returns the slot that was
+     * pending before, or {@link FrameBufferRing#NO_SLOT} if there was none.  If the exchanger is
+     * closed, the given slot itself is returned.  Either way the returned slot now belongs to the
+     * caller.
+     */
+    int offer(int slot) {
+        int previous;
+        do {
+            previous = mPending.get();
+            if (previous == CLOSED) {
+                return slot;
+            }
+        } while (!mPending.compareAndSet(previous, slot));
+
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return previous;
+    }
+
+    /**
+     * Takes the pending slot, waiting for one if there is none yet.  Returns {@link #CLOSED} if
+     * the exchanger is closed, or the calling thread is interrupted, while waiting.
+     */
+    int take() {
+        // Publish the waiter before looking at the slot, so that an offer() racing with this
+        // either leaves a slot to find or sees the waiter and unparks it.
+        mWaiter = Thread.currentThread();
+        try {
+            while (true) {
+                int slot = mPending.get();
+                if (slot == CLOSED) {
+                    return CLOSED;
+                }
+                if (slot != FrameBufferRing.NO_SLOT) {
+                    if (mPending.compareAndSet(slot, FrameBufferRing.NO_SLOT)) {
+                        return slot;
+                    }
+                    continue;
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    return CLOSED;
+                }
+            }
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * Stops accepting frames and wakes the consumer.  Returns the slot that was pending, which now
+     * belongs to the caller, or {@link FrameBufferRing#NO_SLOT} if there was none.
+     */
+    int close() {
+        int previous = mPending.getAndSet(CLOSED);
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return (previous == CLOSED) ? FrameBufferRing.NO_SLOT : previous;
+    }
+}
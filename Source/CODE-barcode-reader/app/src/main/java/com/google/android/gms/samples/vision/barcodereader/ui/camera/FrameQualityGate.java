@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cheap check of whether a preview frame is worth handing to the detector.  Frames taken while
+ * the camera is still moving, or while autofocus is still hunting, practically never decode, so
+ * they are skipped before detection.
+ * <p/>
+ * Two scores are computed from a sparse grid of luma samples:
+ * <ul>
+ * <li>sharpness: the variance of a Laplacian (edge) filter at each sample.  Blurry images have
+ * weak edges and so a low variance.</li>
+ * <li>motion: the mean absolute difference between each sample and the same sample in the
+ * previous frame.</li>
+ * </ul>
+ * Both are recorded in power-of-two histograms so that thresholds can be tuned from real scans.
+ * <p/>
+ * Scoring is only called from the frame processing thread.  The statistics may be read from any
+ * thread.
+ */
+class FrameQualityGate {
+    // Distance in pixels between luma samples, in both directions.
+    private static final int SAMPLE_STEP = 8;
+
+    // Never skip more than this many frames in a row, in case the thresholds don't suit the scene.
+    private static final int MAX_CONSECUTIVE_SKIPS = 15;
+
+    static final int SHARPNESS_BUCKETS = 17;
+    static final int MOTION_BUCKETS = 9;
+
+    private final float mMinSharpness;
+    private final float mMaxMotion;
+
+    private int[] mPreviousSamples;
+    private int[] mSamples;
+    private int mConsecutiveSkips;
+
+    private final AtomicLong mFramesScored = new AtomicLong();
+    private final AtomicLong mBlurrySkips = new AtomicLong();
+    private final AtomicLong mMotionSkips = new AtomicLong();
+    private final AtomicLongArray mSharpnessHistogram = new AtomicLongArray(SHARPNESS_BUCKETS);
+    private final AtomicLongArray mMotionHistogram = new AtomicLongArray(MOTION_BUCKETS);
+
+    FrameQualityGate(float minSharpness, float maxMotion) {
+        if ((minSharpness < 0) || (maxMotion <= 0)) {
+            throw new IllegalArgumentException(
+                    "Invalid frame quality thresholds: " + minSharpness + ", " + maxMotion);
+        }
+        mMinSharpness = minSharpness;
+        mMaxMotion = maxMotion;
+    }
+
+    /**
+     * Scores a region of the luma plane of an image and returns whether it should be detected.
+     */
+    boolean accept(byte[] luma, int width, int regionX, int regionY, int regionWidth,
+                   int regionHeight) {
+        int columns = (regionWidth - 2) / SAMPLE_STEP;
+        int rows = (regionHeight - 2) / SAMPLE_STEP;
+        int count = columns * rows;
+        if (count <= 0) {
+            return true;
+        }
+        if ((mSamples == null) || (mSamples.length != count)) {
+            // The region changed shape; there is nothing meaningful to compare against.
+            mSamples = new int[count];
+            mPreviousSamples = null;
+        }
+
+        long sum = 0;
+        long sumOfSquares = 0;
+        long difference = 0;
+        int i = 0;
+        for (int row = 0; row < rows; ++row) {
+            int offset = (regionY + 1 + row * SAMPLE_STEP) * width + regionX + 1;
+            for (int column = 0; column < columns; ++column) {
+                int center = luma[offset] & 0xFF;
+                int laplacian = 4 * center
+                        - (luma[offset - 1] & 0xFF) - (luma[offset + 1] & 0xFF)
+                        - (luma[offset - width] & 0xFF) - (luma[offset + width] & 0xFF);
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+                if (mPreviousSamples != null) {
+                    difference += Math.abs(center - mPreviousSamples[i]);
+                }
+                mSamples[i++] = center;
+                offset += SAMPLE_STEP;
+            }
+        }
+
+        float mean = (float) sum / count;
+        float sharpness = (float) sumOfSquares / count - mean * mean;
+        float motion = (mPreviousSamples != null) ? (float) difference / count : 0;
+
+        // Swap rather than copy; the old previous array is overwritten next time.
+        int[] previous = mPreviousSamples;
+        mPreviousSamples = mSamples;
+        mSamples = (previous != null) ? previous : new int[count];
+
+        mFramesScored.incrementAndGet();
+        mSharpnessHistogram.incrementAndGet(bucket(sharpness, SHARPNESS_BUCKETS));
+        mMotionHistogram.incrementAndGet(bucket(motion, MOTION_BUCKETS));
+
+        if (mConsecutiveSkips >= MAX_CONSECUTIVE_SKIPS) {
+            mConsecutiveSkips = 0;
+            return true;
+        }
+        if (sharpness < mMinSharpness) {
+            mBlurrySkips.incrementAndGet();
+            mConsecutiveSkips++;
+            return false;
+        }
+        if (motion > mMaxMotion) {
+            mMotionSkips.incrementAndGet();
+            mConsecutiveSkips++;
+            return false;
+        }
+        mConsecutiveSkips = 0;
+        return true;
+    }
+
+    /**
+     * Returns a copy of the current statistics.
+     */
+    FrameQualityStats getStats() {
+        long[] sharpness = new long[SHARPNESS_BUCKETS];
+        for (int i = 0; i < SHARPNESS_BUCKETS; ++i) {
+            sharpness[i] = mSharpnessHistogram.get(i);
+        }
+        long[] motion = new long[MOTION_BUCKETS];
+        for (int i = 0; i < MOTION_BUCKETS; ++i) {
+            motion[i] = mMotionHistogram.get(i);
+        }
+        return new FrameQualityStats(mFramesScored.get(), mBlurrySkips.get(), mMotionSkips.get(),
+                sharpness, motion);
+    }
+
+    /**
+     * Bucket 0 holds values below 1, and bucket {@code n} holds values in
+     * {@code [2^(n-1), 2^n)}.  The last bucket also holds everything larger.
+     */
+    private static int bucket(float value, int buckets) {
+        if (value < 1) {
+            return 0;
+        }
+        int bucket = 32 - Integer.numberOfLeadingZeros((int) Math.min(value, Integer.MAX_VALUE));
+        return Math.min(bucket, buckets - 1);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+/**
+ * Snapshot of the frame quality scores seen by a camera source, and of how many frames were
+ * skipped for being blurry or moving.  See
+ * {@link CameraSource.Builder#setFrameQualityGate(float, float)}.
+ * <p/>
+ * Scores are counted in power-of-two histograms: bucket 0 counts scores below 1, and bucket
+ * {@code n} counts scores from {@code 2^(n-1)} up to {@code 2^n}.  The last bucket also counts
+ * everything above it.
+ */
+public class FrameQualityStats {
+    private final long mFramesScored;
+    private final long mBlurrySkips;
+    private final long mMotionSkips;
+    private final long[] mSharpnessHistogram;
+    private final long[] mMotionHistogram;
+
+    FrameQualityStats(long framesScored, long blurrySkips, long motionSkips,
+                      long[] sharpnessHistogram, long[] motionHistogram) {
+        mFramesScored = framesScored;
+        mBlurrySkips = blurrySkips;
+        mMotionSkips = motionSkips;
+        mSharpnessHistogram = sharpnessHistogram;
+        mMotionHistogram = motionHistogram;
+    }
+
+    /**
+     * Returns the number of frames that were scored.
+     */
+    public long getFramesScored() {
+        return mFramesScored;
+    }
+
+    /**
+     * Returns the number of frames skipped because their sharpness was below the threshold.
+     */
+    public long getBlurrySkips() {
+        return mBlurrySkips;
+    }
+
+    /**
+     * Returns the number of frames skipped because they differed too much from the frame before.
+     */
+    public long getMotionSkips() {
+        return mMotionSkips;
+    }
+
+    /**
+     * Returns the histogram of sharpness (Laplacian variance) scores.
+     */
+    public long[] getSharpnessHistogram() {
+        return mSharpnessHistogram.clone();
+    }
+
+    /**
+     * Returns the histogram of motion (mean absolute luma difference) scores.
+     */
+    public long[] getMotionHistogram() {
+        return mMotionHistogram.clone();
+    }
+}
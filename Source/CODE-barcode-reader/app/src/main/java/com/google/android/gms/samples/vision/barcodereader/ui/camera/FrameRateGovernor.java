@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+/**
+ * Matches the rate at which frames are accepted for detection to the rate at which the detector
+ * can actually process them.  Detection latency is tracked as a moving average, which gives the
+ * frame rate the detector(s) can sustain.  Frames that arrive faster than that are skipped as soon
+ * as they arrive, so their buffers go straight back to the camera rather than sitting as pending
+ * frames that are later thrown away.  Frames that are still replaced before processing push the
+ * target further down; a detector with spare capacity pushes it back up, never beyond the
+ * requested camera rate.
+ */
+class FrameRateGovernor {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // How often the target rate is re-evaluated.
+    private static final long EVALUATION_INTERVAL_NANOS = NANOS_PER_SECOND / 2;
+
+    // Weight of the newest sample in the latency moving average.
+    private static final float LATENCY_SMOOTHING = 0.2f;
+
+    // Fraction of the detector's measured capacity to aim for, leaving room for latency spikes.
+    private static final float CAPACITY_HEADROOM = 0.9f;
+
+    // If more than this fraction of accepted frames were replaced before being processed, the
+    // target is lowered even if the measured capacity says otherwise.
+    private static final float MAX_REPLACED_RATIO = 0.2f;
+    private static final float REPLACED_BACKOFF = 0.85f;
+
+    // Largest step up per evaluation, so that a few fast frames don't cause a burst of drops.
+    private static final float MAX_STEP_UP = 1.25f;
+
+    // Frames arriving slightly early, due to camera timing jitter, are still accepted.
+    private static final float INTERVAL_TOLERANCE = 0.9f;
+
+    private final float mMinFps;
+    private final float mMaxFps;
+    private int mWorkerCount = 1;
+    private float mFpsCap = Float.MAX_VALUE;
+
+    private float mTargetFps;
+    private float mLatencyNanos;
+    private long mLastAcceptedNanos;
+    private long mLastEvaluationNanos;
+    private int mAcceptedSinceEvaluation;
+    private int mReplacedSinceEvaluation;
+    private long mSkippedFrames;
+
+    FrameRateGovernor(float minFps, float maxFps) {
+        if ((minFps <= 0) || (minFps > maxFps)) {
+            throw new IllegalArgumentException("Invalid fps range: " + minFps + "-" + maxFps);
+        }
+        mMinFps = minFps;
+        mMaxFps = maxFps;
+        mTargetFps = maxFps;
+    }
+
+    /**
+     * Sets how many frames can be detected at the same time.
+     */
+    synchronized void setWorkerCount(int workers) {
+        mWorkerCount = workers;
+    }
+
+    /**
+     * Caps the target rate below the requested camera rate, e.g. to save power, lowering the
+     * minimum rate along with it if need be.  Pass {@link Float#MAX_VALUE} to lift the cap.
+     */
+    synchronized void setFpsCap(float fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("Invalid fps cap: " + fps);
+        }
+        mFpsCap = fps;
+        mTargetFps = Math.min(mTargetFps, maxFps());
+    }
+
+    /**
+     * Called when the camera delivers a frame.  Returns whether the frame should be kept for
+     * detection; if not, it should be given straight back to the camera.
+     */
+    synchronized boolean onFrameArrived(long nowNanos) {
+        if (nowNanos - mLastEvaluationNanos >= EVALUATION_INTERVAL_NANOS) {
+            evaluate();
+            mLastEvaluationNanos = nowNanos;
+        }
+
+        if (mTargetFps < mMaxFps) {
+            long interval = (long) (NANOS_PER_SECOND / mTargetFps * INTERVAL_TOLERANCE);
+            if (nowNanos - mLastAcceptedNanos < interval) {
+                mSkippedFrames++;
+                return false;
+            }
+        }
+
+        mLastAcceptedNanos = nowNanos;
+        mAcceptedSinceEvaluation++;
+        return true;
+    }
+
+    /**
+     * Called when an accepted frame was replaced by a newer one before detection got to it.
+     */
+    synchronized void onFrameReplaced() {
+        mReplacedSinceEvaluation++;
+    }
+
+    /**
+     * Called with the time detection took on a frame.
+     */
+    synchronized void onDetectionFinished(long latencyNanos) {
+        if (mLatencyNanos == 0) {
+            mLatencyNanos = latencyNanos;
+        } else {
+            mLatencyNanos += LATENCY_SMOOTHING * (latencyNanos - mLatencyNanos);
+        }
+    }
+
+    /**
+     * Returns the rate at which frames are currently being accepted for detection.
+     */
+    synchronized float getTargetFps() {
+        return mTargetFps;
+    }
+
+    /**
+     * Returns the number of frames skipped on arrival to hold the target rate.
+     */
+    synchronized long getSkippedFrameCount() {
+        return mSkippedFrames;
+    }
+
+    private void evaluate() {
+        if (mLatencyNanos > 0) {
+            float capacity = mWorkerCount * NANOS_PER_SECOND / mLatencyNanos;
+            float target = Math.min(capacity * CAPACITY_HEADROOM, mTargetFps * MAX_STEP_UP);
+
+            if ((mAcceptedSinceEvaluation > 0) &&
+                    ((float) mReplacedSinceEvaluation / mAcceptedSinceEvaluation >
+                            MAX_REPLACED_RATIO)) {
+                target = Math.min(target, mTargetFps * REPLACED_BACKOFF);
+            }
+
+            float maxFps = maxFps();
+            mTargetFps = Math.max(Math.min(mMinFps, maxFps), Math.min(maxFps, target));
+        }
+
+        mAcceptedSinceEvaluation = 0;
+        mReplacedSinceEvaluation = 0;
+    }
+
+    private float maxFps() {
+        return Math.min(mMaxFps, mFpsCap);
+    }
+}
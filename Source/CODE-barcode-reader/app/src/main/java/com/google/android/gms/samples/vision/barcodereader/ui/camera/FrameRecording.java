@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * File format for recorded preview frames, as replayed by {@link ReplayFrameSource}.  All values
+ * are big-endian.  The file starts with a header:
+ * <pre>
+ *   int  magic        'N' 'V' '2' '1'
+ *   int  version      1
+ *   int  width
+ *   int  height
+ *   int  rotation     {@link com.google.android.gms.vision.Frame} rotation constant
+ *   int  frameCount
+ * </pre>
+ * followed by {@code frameCount} records of the same size:
+ * <pre>
+ *   int  frameId
+ *   long timestampMillis
+ *   byte nv21[width * height * 3 / 2]
+ * </pre>
+ * Since every record has the same size, any frame can be found without reading the ones before
+ * it.
+ */
+final class FrameRecording {
+    static final int MAGIC = 0x4E563231;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 6 * 4;
+    static final int RECORD_HEADER_SIZE = 4 + 8;
+
+    private static final int FRAME_COUNT_OFFSET = 5 * 4;
+
+    private FrameRecording() {
+    }
+
+    /**
+     * Returns the size of one record in a recording of the given frame size.
+     */
+    static int recordSize(int width, int height) {
+        return RECORD_HEADER_SIZE + Nv21.bufferSize(width, height);
+    }
+
+    /**
+     * Writes frames to a new recording.  The frame count in the header is filled in on
+     * {@link #close()}.
+     */
+    static final class Writer implements Closeable {
+        private final RandomAccessFile mFile;
+        private final int mWidth;
+        private final int mHeight;
+        private final ByteBuffer mRecordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        private int mFrameCount;
+
+        Writer(File file, int width, int height, int rotation) throws IOException {
+            if ((width <= 0) || (height <= 0) || ((width & 1) != 0) || ((height & 1) != 0)) {
+                throw new IllegalArgumentException("Invalid frame size: " + width + "x" + height);
+            }
+            mWidth = width;
+            mHeight = height;
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(0);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(rotation)
+                    .putInt(0);
+            mFile.write(header.array());
+        }
+
+        /**
+         * Appends one NV21 frame.  Only the first {@code width * height * 3 / 2} bytes of
+         * {@code nv21} are written.
+         */
+        void write(int frameId, long timestampMillis, byte[] nv21) throws IOException {
+            int size = Nv21.bufferSize(mWidth, mHeight);
+            if (nv21.length < size) {
+                throw new IllegalArgumentException("Frame too small: " + nv21.length);
+            }
+            mRecordHeader.clear();
+            mRecordHeader.putInt(frameId).putLong(timestampMillis);
+            mFile.write(mRecordHeader.array());
+            mFile.write(nv21, 0, size);
+            mFrameCount++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mFile.seek(FRAME_COUNT_OFFSET);
+                mFile.writeInt(mFrameCount);
+            } finally {
+                mFile.close();
+            }
+        }
+    }
+}
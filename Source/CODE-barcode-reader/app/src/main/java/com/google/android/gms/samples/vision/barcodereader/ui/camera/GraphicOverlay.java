@@ -17,7 +17,11 @@ package com.google.android.gms.samples.vision.barcodereader.ui.camera;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.util.AttributeSet;
+import android.util.TypedValue;
 import android.view.View;
 
 import com.google.android.gms.vision.CameraSource;
@@ -54,6 +58,20 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
     private int mFacing = CameraSource.CAMERA_FACING_BACK;
     private Set<T> mGraphics = new HashSet<>();
 
+    // Scan window reticle, as fractions of the upright preview.  Null when there is none.
+    private RectF mScanWindow;
+    private final RectF mReticleRect = new RectF();
+    private final Paint mReticlePaint;
+
+    // Told when the overlay draws, and optionally drawn as text over the preview.
+    private PipelineMetrics mMetrics;
+    private boolean mDebugOverlayEnabled;
+    private final Paint mDebugTextPaint;
+    private final Paint mDebugBackgroundPaint;
+
+    // How often the debug text is redrawn while nothing else changes.
+    private static final long DEBUG_REFRESH_MILLIS = 500;
+
     /**
      * Base class for a custom graphics object to be rendered within the graphic overlay.  Subclass
      * this and implement the {@link Graphic#draw(Canvas)} method to define the
@@ -85,14 +103,14 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
          * scale.
          */
         public float scaleX(float horizontal) {
-            return horizontal * mOverlay.mWidthScaleFactor;
+            return OverlayTransform.scale(horizontal, mOverlay.mWidthScaleFactor);
         }
 
         /**
          * Adjusts a vertical value of the supplied value from the preview scale to the view scale.
          */
         public float scaleY(float vertical) {
-            return vertical * mOverlay.mHeightScaleFactor;
+            return OverlayTransform.scale(vertical, mOverlay.mHeightScaleFactor);
         }
 
         /**
@@ -100,11 +118,8 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
          * system.
          */
         public float translateX(float x) {
-            if (mOverlay.mFacing == CameraSource.CAMERA_FACING_FRONT) {
-                return mOverlay.getWidth() - scaleX(x);
-            } else {
-                return scaleX(x);
-            }
+            return OverlayTransform.translateX(x, mOverlay.mWidthScaleFactor, mOverlay.getWidth(),
+                    mOverlay.mFacing == CameraSource.CAMERA_FACING_FRONT);
         }
 
         /**
@@ -122,6 +137,18 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
 
     public GraphicOverlay(Context context, AttributeSet attrs) {
         super(context, attrs);
+
+        mReticlePaint = new Paint();
+        mReticlePaint.setColor(Color.WHITE);
+        mReticlePaint.setStyle(Paint.Style.STROKE);
+        mReticlePaint.setStrokeWidth(6.0f);
+
+        mDebugTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mDebugTextPaint.setColor(Color.WHITE);
+        mDebugTextPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 12.0f,
+                context.getResources().getDisplayMetrics()));
+        mDebugBackgroundPaint = new Paint();
+        mDebugBackgroundPaint.setColor(Color.argb(160, 0, 0, 0));
     }
 
     /**
@@ -138,10 +165,14 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
      * Adds a graphic to the overlay.
      */
     public void add(T graphic) {
+        boolean added;
         synchronized (mLock) {
-            mGraphics.add(graphic);
+            added = mGraphics.add(graphic);
+        }
+        // Trackers add their graphic on every update; only redraw when it is new.
+        if (added) {
+            postInvalidate();
         }
-        postInvalidate();
     }
 
     /**
@@ -191,6 +222,39 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
         postInvalidate();
     }
 
+    /**
+     * Sets the region of the preview that is searched for items, as fractions of the upright
+     * preview, so that it can be drawn as a reticle.  Pass null to remove the reticle.
+     */
+    public void setScanWindow(RectF window) {
+        synchronized (mLock) {
+            mScanWindow = (window != null) ? new RectF(window) : null;
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Sets the metrics of the camera source whose results are drawn here, so that the time from
+     * detection to drawing can be measured.  Pass null to stop reporting.
+     */
+    void setPipelineMetrics(PipelineMetrics metrics) {
+        synchronized (mLock) {
+            mMetrics = metrics;
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Shows the camera source's frame counts and stage latencies over the preview, refreshed
+     * twice a second.  See {@code getPipelineStats()} on this package's camera source.
+     */
+    public void setDebugOverlayEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mDebugOverlayEnabled = enabled;
+        }
+        postInvalidate();
+    }
+
     /**
      * Draws the overlay with its associated graphic objects.
      */
@@ -200,13 +264,72 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
 
         synchronized (mLock) {
             if ((mPreviewWidth != 0) && (mPreviewHeight != 0)) {
-                mWidthScaleFactor = (float) canvas.getWidth() / (float) mPreviewWidth;
-                mHeightScaleFactor = (float) canvas.getHeight() / (float) mPreviewHeight;
+                mWidthScaleFactor =
+                        OverlayTransform.scaleFactor(canvas.getWidth(), mPreviewWidth);
+                mHeightScaleFactor =
+                        OverlayTransform.scaleFactor(canvas.getHeight(), mPreviewHeight);
+            }
+
+            if (mScanWindow != null) {
+                drawReticle(canvas);
             }
 
             for (Graphic graphic : mGraphics) {
                 graphic.draw(canvas);
             }
+
+            if (mMetrics != null) {
+                mMetrics.onDraw(System.nanoTime());
+                if (mDebugOverlayEnabled) {
+                    drawDebugText(canvas, mMetrics.snapshot().toString().split("\n"));
+                    postInvalidateDelayed(DEBUG_REFRESH_MILLIS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws lines of text in the top left corner, over a translucent background.
+     */
+    private void drawDebugText(Canvas canvas, String[] lines) {
+        float lineHeight = mDebugTextPaint.getFontSpacing();
+        float padding = lineHeight / 2;
+        float width = 0;
+        for (String line : lines) {
+            width = Math.max(width, mDebugTextPaint.measureText(line));
+        }
+        canvas.drawRect(0, 0, width + 2 * padding, lines.length * lineHeight + 2 * padding,
+                mDebugBackgroundPaint);
+        for (int i = 0; i < lines.length; ++i) {
+            canvas.drawText(lines[i], padding, padding + (i + 1) * lineHeight
+                    - mDebugTextPaint.descent(), mDebugTextPaint);
         }
     }
+
+    /**
+     * Draws the corners of the scan window, mirrored for the front-facing camera in the same way
+     * as the graphics.
+     */
+    private void drawReticle(Canvas canvas) {
+        float width = canvas.getWidth();
+        float height = canvas.getHeight();
+        if (mFacing == CameraSource.CAMERA_FACING_FRONT) {
+            mReticleRect.set((1 - mScanWindow.right) * width, mScanWindow.top * height,
+                    (1 - mScanWindow.left) * width, mScanWindow.bottom * height);
+        } else {
+            mReticleRect.set(mScanWindow.left * width, mScanWindow.top * height,
+                    mScanWindow.right * width, mScanWindow.bottom * height);
+        }
+
+        float arm = Math.min(mReticleRect.width(), mReticleRect.height()) / 6.0f;
+        RectF r = mReticleRect;
+        canvas.drawLine(r.left, r.top, r.left + arm, r.top, mReticlePaint);
+        canvas.drawLine(r.left, r.top, r.left, r.top + arm, mReticlePaint);
+        canvas.drawLine(r.right, r.top, r.right - arm, r.top, mReticlePaint);
+        canvas.drawLine(r.right, r.top, r.right, r.top + arm, mReticlePaint);
+        canvas.drawLine(r.left, r.bottom, r.left + arm, r.bottom, mReticlePaint);
+        canvas.drawLine(r.left, r.bottom, r.left, r.bottom - arm, mReticlePaint);
+        canvas.drawLine(r.right, r.bottom, r.right - arm, r.bottom, mReticlePaint);
+        canvas.drawLine(r.right, r.bottom, r.right, r.bottom - arm, mReticlePaint);
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of a latency histogram for one stage of the frame pipeline.  Percentiles are accurate
+ * to within 12.5% of the true value, and are reported as the upper end of that range.
+ * <p/>
+ * Durations are counted in log-linear buckets: buckets 0 to 7 count 0 to 7 nanoseconds, and after
+ * that each power of two is split into 8 equal buckets, so bucket {@code 8 * k + j} (for
+ * {@code k >= 1}) counts from {@code (8 + j) * 2^(k-1)} up to {@code (9 + j) * 2^(k-1)}
+ * nanoseconds.
+ */
+public class LatencyStats {
+    private final long[] mCounts;
+    private final long mCount;
+    private final long mTotalNanos;
+    private final long mMaxNanos;
+
+    LatencyStats(long[] counts, long count, long totalNanos, long maxNanos) {
+        mCounts = counts;
+        mCount = count;
+        mTotalNanos = totalNanos;
+        mMaxNanos = maxNanos;
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the mean duration, or 0 if none were recorded.
+     */
+    public long getMeanNanos() {
+        return (mCount > 0) ? mTotalNanos / mCount : 0;
+    }
+
+    /**
+     * Returns the longest duration recorded.
+     */
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    /**
+     * Returns the duration that the given percentage (0 to 100) of recorded durations were at or
+     * below, or 0 if none were recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        if ((percentile < 0) || (percentile > 100)) {
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        }
+        long total = 0;
+        for (long count : mCounts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int bucket = 0; bucket < mCounts.length; ++bucket) {
+            seen += mCounts[bucket];
+            if (seen >= target) {
+                return Math.min(LatencyHistogram.highestValueOf(bucket), mMaxNanos);
+            }
+        }
+        return mMaxNanos;
+    }
+
+    /**
+     * Returns the raw bucket counts.  See {@link LatencyStats} for the bucket layout.
+     */
+    public long[] getCounts() {
+        return mCounts.clone();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms", mCount,
+                millis(getPercentileNanos(50)), millis(getPercentileNanos(90)),
+                millis(getPercentileNanos(99)), millis(mMaxNanos));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for working directly on NV21 preview images: a full resolution Y (luma) plane followed
+ * by a half resolution plane of interleaved V and U samples.
+ */
+final class Nv21 {
+    private Nv21() {
+    }
+
+    /**
+     * Returns the number of bytes in an NV21 image of the given size.
+     */
+    static int bufferSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Copies a rectangular region of an NV21 image into {@code dst} as a tightly packed NV21 image
+     * of size {@code cropWidth} x {@code cropHeight}.  The region must lie within the source image
+     * and its origin and size must be even, so that it lines up with the chroma samples.
+     */
+    static void crop(byte[] src, int srcWidth, int srcHeight,
+                     int cropX, int cropY, int cropWidth, int cropHeight, byte[] dst) {
+        // Luma rows.
+        int srcOffset = cropY * srcWidth + cropX;
+        int dstOffset = 0;
+        for (int row = 0; row < cropHeight; ++row) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, cropWidth);
+            srcOffset += srcWidth;
+            dstOffset += cropWidth;
+        }
+
+        // Interleaved VU rows; each row of pairs covers two luma rows, and each pair two columns.
+        srcOffset = srcWidth * srcHeight + (cropY / 2) * srcWidth + cropX;
+        for (int row = 0; row < cropHeight / 2; ++row) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, cropWidth);
+            srcOffset += srcWidth;
+            dstOffset += cropWidth;
+        }
+    }
+
+    /**
+     * Writes a grayscale NV21 image into {@code dst} that is a {@code factor} times smaller
+     * version of a region of the source image's luma plane, averaging each block of
+     * {@code factor} x {@code factor} pixels.  The destination is {@code regionWidth / factor} x
+     * {@code regionHeight / factor}, rounded down to even values, and only its luma plane is
+     * written; the caller is expected to have filled its chroma plane with neutral values.
+     */
+    static void downsampleLuma(byte[] src, int srcWidth, int regionX, int regionY,
+                               int regionWidth, int regionHeight, int factor, byte[] dst) {
+        int dstWidth = (regionWidth / factor) & ~1;
+        int dstHeight = (regionHeight / factor) & ~1;
+        int area = factor * factor;
+
+        int dstOffset = 0;
+        for (int dy = 0; dy < dstHeight; ++dy) {
+            int rowStart = (regionY + dy * factor) * srcWidth + regionX;
+            for (int dx = 0; dx < dstWidth; ++dx) {
+                int blockStart = rowStart + dx * factor;
+                int sum = 0;
+                for (int by = 0; by < factor; ++by) {
+                    int offset = blockStart + by * srcWidth;
+                    for (int bx = 0; bx < factor; ++bx) {
+                        sum += src[offset + bx] & 0xFF;
+                    }
+                }
+                dst[dstOffset++] = (byte) (sum / area);
+            }
+        }
+    }
+
+    /**
+     * Sets the chroma plane of a {@code width} x {@code height} NV21 image to neutral values, so
+     * that the image is purely grayscale.
+     */
+    static void fillNeutralChroma(byte[] dst, int width, int height) {
+        Arrays.fill(dst, width * height, bufferSize(width, height), (byte) 128);
+    }
+}
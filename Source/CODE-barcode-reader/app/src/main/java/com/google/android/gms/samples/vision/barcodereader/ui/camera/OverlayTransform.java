@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+/**
+ * The arithmetic behind {@link GraphicOverlay.Graphic}'s mapping from the preview's coordinate
+ * system to the view's.  Values are scaled by the ratio of the view size to the preview size, and
+ * x coordinates are mirrored for the front facing camera.
+ */
+final class OverlayTransform {
+    private OverlayTransform() {
+    }
+
+    /**
+     * Returns the factor that scales a preview dimension to the matching view dimension.
+     */
+    static float scaleFactor(int viewSize, int previewSize) {
+        return (float) viewSize / (float) previewSize;
+    }
+
+    /**
+     * Adjusts a value from the preview scale to the view scale.
+     */
+    static float scale(float value, float scaleFactor) {
+        return value * scaleFactor;
+    }
+
+    /**
+     * Adjusts an x coordinate from the preview's coordinate system to the view's, mirroring it
+     * across a view of the given width if {@code mirrored} is true.
+     */
+    static float translateX(float x, float scaleFactor, int viewWidth, boolean mirrored) {
+        float scaled = x * scaleFactor;
+        return mirrored ? viewWidth - scaled : scaled;
+    }
+}
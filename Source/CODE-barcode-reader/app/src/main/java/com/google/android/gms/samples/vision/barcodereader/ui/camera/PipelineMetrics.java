@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing of frames through the camera source, from the camera callback to the overlay drawing
+ * the results.  Each stage reports a {@link System#nanoTime()} timestamp, from which three
+ * latencies are recorded:
+ * <ul>
+ * <li>capture to detect: from the camera handing over a frame to detection starting on it,
+ * which is time spent pending or waiting for a detection worker.</li>
+ * <li>detect: how long detection itself took.  When no processor is set on the camera source
+ * builder, this includes the detector's own processor.</li>
+ * <li>detect to draw: from results with items in them reaching the processor to the overlay next
+ * drawing.  Results without items don't change the overlay, so they are not timed, and neither
+ * are results that leave every graphic as it was, such as those handed over again for a
+ * duplicate frame, unless the overlay happens to redraw for some other reason.</li>
+ * </ul>
+ * The time to the first decode is also kept: from when scanning was asked for, by default when
+ * the camera source was built, to the first results with items in them.  So are the number of
+ * times continuous focus started moving the lens, and how long each move took to settle, and how
+ * long each scan took: from the camera source starting, or from items last being lost, to results
+ * with items in them, split by whether the torch was on at the time.
+ * Everything here is lock-free so that it can be called on every frame from any thread.
+ */
+class PipelineMetrics {
+    private final LatencyHistogram mCaptureToDetect = new LatencyHistogram();
+    private final LatencyHistogram mDetect = new LatencyHistogram();
+    private final LatencyHistogram mDetectToDraw = new LatencyHistogram();
+
+    private final AtomicLong mFramesReceived = new AtomicLong();
+    private final AtomicLong mFramesReplaced = new AtomicLong();
+    private final AtomicLong mFramesUnknownBuffer = new AtomicLong();
+    private final AtomicLong mFramesDetected = new AtomicLong();
+
+    // When results with items were last delivered, and which delivery the overlay last drew.
+    private final AtomicLong mLastDeliveredNanos = new AtomicLong();
+    private final AtomicLong mLastDrawnNanos = new AtomicLong();
+
+    private final LatencyHistogram mFocusMove = new LatencyHistogram();
+    private final AtomicLong mFocusMoves = new AtomicLong();
+    private final AtomicLong mFocusMoveStartNanos = new AtomicLong();
+
+    private final LatencyHistogram mScanWithTorch = new LatencyHistogram();
+    private final LatencyHistogram mScanWithoutTorch = new LatencyHistogram();
+    private final AtomicLong mScanStartNanos = new AtomicLong();
+
+    private volatile long mOriginNanos = System.nanoTime();
+    private final AtomicLong mFirstDeliveredNanos = new AtomicLong();
+
+    /**
+     * Sets when scanning was asked for, as a {@link System#nanoTime()} timestamp, which the time
+     * to the first decode is measured from.
+     */
+    void setOrigin(long originNanos) {
+        mOriginNanos = originNanos;
+    }
+
+    /**
+     * Called for every frame the camera hands over.
+     */
+    void onFrameReceived() {
+        mFramesReceived.incrementAndGet();
+    }
+
+    /**
+     * Called when a pending frame is replaced by a newer one before detection got to it.
+     */
+    void onFrameReplaced() {
+        mFramesReplaced.incrementAndGet();
+    }
+
+    /**
+     * Called when the camera hands over a buffer that is not one of the preview buffers.
+     */
+    void onUnknownBuffer() {
+        mFramesUnknownBuffer.incrementAndGet();
+    }
+
+    /**
+     * Called when detection on a frame has finished, with when the frame arrived and when
+     * detection started and finished.
+     */
+    void onDetectionFinished(long receivedNanos, long startNanos, long endNanos) {
+        mFramesDetected.incrementAndGet();
+        mCaptureToDetect.record(startNanos - receivedNanos);
+        mDetect.record(endNanos - startNanos);
+    }
+
+    /**
+     * Called when results with at least one item in them are handed to the processor.  Returns
+     * true the first time, i.e. for the first decode.
+     */
+    boolean onItemsDelivered(long nowNanos) {
+        mLastDeliveredNanos.set(nowNanos);
+        return (mFirstDeliveredNanos.get() == 0) && mFirstDeliveredNanos.compareAndSet(0, nowNanos);
+    }
+
+    /**
+     * Returns the time from the origin to the first decode, or -1 if nothing was decoded yet.
+     */
+    long getTimeToFirstDecodeNanos() {
+        long first = mFirstDeliveredNanos.get();
+        return (first != 0) ? first - mOriginNanos : -1;
+    }
+
+    /**
+     * Called when continuous focus starts or stops moving the lens.
+     */
+    void onFocusMoving(boolean moving, long nowNanos) {
+        if (moving) {
+            mFocusMoves.incrementAndGet();
+            mFocusMoveStartNanos.set(nowNanos);
+            return;
+        }
+        long start = mFocusMoveStartNanos.getAndSet(0);
+        if (start != 0) {
+            mFocusMove.record(nowNanos - start);
+        }
+    }
+
+    /**
+     * Called when the camera source starts, which starts a scan.
+     */
+    void onScanStarted(long nowNanos) {
+        mScanStartNanos.set(nowNanos);
+    }
+
+    /**
+     * Called for every result handed to the processor, with whether it had items in it and
+     * whether the torch was on.  Results without items start a scan, unless one is under way,
+     * and results with items finish it.
+     */
+    void onScanResult(boolean found, boolean torch, long nowNanos) {
+        if (!found) {
+            mScanStartNanos.compareAndSet(0, nowNanos);
+            return;
+        }
+        long start = mScanStartNanos.getAndSet(0);
+        if (start != 0) {
+            (torch ? mScanWithTorch : mScanWithoutTorch).record(nowNanos - start);
+        }
+    }
+
+    /**
+     * Called when the overlay draws.  Times the first draw after each delivery of items.
+     */
+    void onDraw(long nowNanos) {
+        long delivered = mLastDeliveredNanos.get();
+        long drawn = mLastDrawnNanos.get();
+        if ((delivered != 0) && (delivered != drawn) &&
+                mLastDrawnNanos.compareAndSet(drawn, delivered)) {
+            mDetectToDraw.record(nowNanos - delivered);
+        }
+    }
+
+    /**
+     * Returns a copy of the counters and histograms.
+     */
+    PipelineStats snapshot() {
+        return new PipelineStats(mFramesReceived.get(), mFramesReplaced.get(),
+                mFramesUnknownBuffer.get(), mFramesDetected.get(), mCaptureToDetect.snapshot(),
+                mDetect.snapshot(), mDetectToDraw.snapshot(), getTimeToFirstDecodeNanos(),
+                mFocusMoves.get(), mFocusMove.snapshot(), mScanWithTorch.snapshot(),
+                mScanWithoutTorch.snapshot());
+    }
+}
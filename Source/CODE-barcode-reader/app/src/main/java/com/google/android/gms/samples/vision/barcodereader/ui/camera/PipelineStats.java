@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of how frames have moved through a camera source since it was built: how many the
+ * camera handed over, how many were dropped along the way, and how long each stage took.  See
+ * {@link CameraSource#getPipelineStats()}.
+ */
+public class PipelineStats {
+    private final long mFramesReceived;
+    private final long mFramesReplaced;
+    private final long mFramesUnknownBuffer;
+    private final long mFramesDetected;
+    private final LatencyStats mCaptureToDetect;
+    private final LatencyStats mDetect;
+    private final LatencyStats mDetectToDraw;
+    private final long mTimeToFirstDecodeNanos;
+    private final long mFocusMoves;
+    private final LatencyStats mFocusMove;
+    private final LatencyStats mScanWithTorch;
+    private final LatencyStats mScanWithoutTorch;
+
+    PipelineStats(long framesReceived, long framesReplaced, long framesUnknownBuffer,
+                  long framesDetected, LatencyStats captureToDetect, LatencyStats detect,
+                  LatencyStats detectToDraw, long timeToFirstDecodeNanos, long focusMoves,
+                  LatencyStats focusMove, LatencyStats scanWithTorch,
+                  LatencyStats scanWithoutTorch) {
+        mFramesReceived = framesReceived;
+        mFramesReplaced = framesReplaced;
+        mFramesUnknownBuffer = framesUnknownBuffer;
+        mFramesDetected = framesDetected;
+        mCaptureToDetect = captureToDetect;
+        mDetect = detect;
+        mDetectToDraw = detectToDraw;
+        mTimeToFirstDecodeNanos = timeToFirstDecodeNanos;
+        mFocusMoves = focusMoves;
+        mFocusMove = focusMove;
+        mScanWithTorch = scanWithTorch;
+        mScanWithoutTorch = scanWithoutTorch;
+    }
+
+    /**
+     * Returns the number of frames the camera handed over.
+     */
+    public long getFramesReceived() {
+        return mFramesReceived;
+    }
+
+    /**
+     * Returns the number of frames replaced by a newer frame before detection got to them.
+     */
+    public long getFramesReplaced() {
+        return mFramesReplaced;
+    }
+
+    /**
+     * Returns the number of frames skipped because the camera handed over a buffer that was not
+     * one of the preview buffers.
+     */
+    public long getFramesUnknownBuffer() {
+        return mFramesUnknownBuffer;
+    }
+
+    /**
+     * Returns the number of frames that detection was run on.
+     */
+    public long getFramesDetected() {
+        return mFramesDetected;
+    }
+
+    /**
+     * Returns the time from the camera handing over a frame to detection starting on it.
+     */
+    public LatencyStats getCaptureToDetect() {
+        return mCaptureToDetect;
+    }
+
+    /**
+     * Returns the time detection took per frame.
+     */
+    public LatencyStats getDetect() {
+        return mDetect;
+    }
+
+    /**
+     * Returns the time from detected items reaching the processor to the overlay drawing them.
+     */
+    public LatencyStats getDetectToDraw() {
+        return mDetectToDraw;
+    }
+
+    /**
+     * Returns the time from scanning being asked for to the first decode, or -1 if nothing was
+     * decoded yet.  See {@link CameraSource.Builder#setScanRequestTime(long)}.
+     */
+    public long getTimeToFirstDecodeNanos() {
+        return mTimeToFirstDecodeNanos;
+    }
+
+    /**
+     * Returns the number of times continuous focus started moving the lens, e.g. after the
+     * camera source moved the focus area onto an item.
+     */
+    public long getFocusMoves() {
+        return mFocusMoves;
+    }
+
+    /**
+     * Returns the time from continuous focus starting to move the lens to it settling.
+     */
+    public LatencyStats getFocusMove() {
+        return mFocusMove;
+    }
+
+    /**
+     * Returns the time scans took while the torch was on: from the camera source starting, or
+     * from the items last found being lost, to items being found again.
+     */
+    public LatencyStats getScanWithTorch() {
+        return mScanWithTorch;
+    }
+
+    /**
+     * Returns the time scans took while the torch was off.  See {@link #getScanWithTorch()}.
+     */
+    public LatencyStats getScanWithoutTorch() {
+        return mScanWithoutTorch;
+    }
+
+    @Override
+    public String toString() {
+        String firstDecode = (mTimeToFirstDecodeNanos >= 0) ?
+                String.format(Locale.US, "%.1fms", mTimeToFirstDecodeNanos / 1e6) : "-";
+        return "received=" + mFramesReceived + " replaced=" + mFramesReplaced +
+                " unknown=" + mFramesUnknownBuffer + " detected=" + mFramesDetected +
+                "\nfirst decode " + firstDecode +
+                "\ncapture->detect " + mCaptureToDetect +
+                "\ndetect " + mDetect +
+                "\ndetect->draw " + mDetectToDraw +
+                "\nfocus moves=" + mFocusMoves + " " + mFocusMove +
+                "\nscan with torch " + mScanWithTorch +
+                "\nscan without torch " + mScanWithoutTorch;
+    }
+}
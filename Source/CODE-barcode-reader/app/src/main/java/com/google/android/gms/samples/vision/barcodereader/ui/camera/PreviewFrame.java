@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A preview image held in one of the {@link FrameBufferRing} slots, along with the metadata that
+ * goes with it.  Instances are handed from the processing thread to whichever thread runs
+ * detection on the image.
+ */
+final class PreviewFrame {
+    final ByteBuffer data;
+    final int slot;
+    final int width;
+    final int height;
+    final int id;
+    final long timestampMillis;
+    final int rotation;
+
+    // System.nanoTime() when the camera handed over the frame.
+    final long receivedNanos;
+
+    PreviewFrame(ByteBuffer data, int slot, int width, int height, int id, long timestampMillis,
+                 int rotation, long receivedNanos) {
+        this.data = data;
+        this.slot = slot;
+        this.width = width;
+        this.height = height;
+        this.id = id;
+        this.timestampMillis = timestampMillis;
+        this.rotation = rotation;
+        this.receivedNanos = receivedNanos;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+/**
+ * Steps scan quality down as the device heats up or its battery runs low, and back up once it
+ * recovers, along a fixed ladder of levels.  Each level lowers some of the preview resolution,
+ * the frame rate, the number of detection workers and whether the torch may be on, relative to
+ * what the camera source was built with.
+ * <p/>
+ * Every evaluation reads the device state and works out the level it calls for: the worse of the
+ * one for the thermal headroom and the one for the battery level, which doesn't count while
+ * charging.  Quality goes down by one level per evaluation while it is above that, but only comes
+ * back up by one after {@link #RECOVERY_EVALUATIONS} evaluations in a row call for less, so that
+ * a reading near a boundary does not make it flap.
+ */
+class QualityController {
+    static final int RECOVERY_EVALUATIONS = 3;
+
+    /**
+     * One step of the ladder.  Scales are relative to what the camera source was built with.
+     */
+    static final class Level {
+        final int index;
+        final String name;
+        final float previewScale;
+        final float fpsScale;
+        final int maxWorkers;
+        final boolean torchAllowed;
+
+        Level(int index, String name, float previewScale, float fpsScale, int maxWorkers,
+              boolean torchAllowed) {
+            this.index = index;
+            this.name = name;
+            this.previewScale = previewScale;
+            this.fpsScale = fpsScale;
+            this.maxWorkers = maxWorkers;
+            this.torchAllowed = torchAllowed;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static final Level[] LADDER = {
+            new Level(0, "full", 1.0f, 1.0f, Integer.MAX_VALUE, true),
+            new Level(1, "reduced frame rate", 1.0f, 0.67f, Integer.MAX_VALUE, true),
+            new Level(2, "single worker", 1.0f, 0.5f, 1, true),
+            new Level(3, "reduced resolution, no torch", 0.75f, 0.5f, 1, false),
+            new Level(4, "minimum", 0.5f, 0.33f, 1, false),
+    };
+
+    private final DeviceStateProvider mProvider;
+
+    private Level mLevel = LADDER[0];
+    private DeviceState mLastState;
+    private int mEvaluationsBelow;
+
+    QualityController(DeviceStateProvider provider) {
+        if (provider == null) {
+            throw new IllegalArgumentException("No device state provider supplied.");
+        }
+        mProvider = provider;
+    }
+
+    /**
+     * Reads the device state and moves at most one level towards what it calls for.  Returns the
+     * level to run at.
+     */
+    synchronized Level evaluate() {
+        mLastState = mProvider.getDeviceState();
+        int target = targetLevel(mLastState);
+        if (target > mLevel.index) {
+            mEvaluationsBelow = 0;
+            mLevel = LADDER[mLevel.index + 1];
+        } else if (target < mLevel.index) {
+            if (++mEvaluationsBelow >= RECOVERY_EVALUATIONS) {
+                mEvaluationsBelow = 0;
+                mLevel = LADDER[mLevel.index - 1];
+            }
+        } else {
+            mEvaluationsBelow = 0;
+        }
+        return mLevel;
+    }
+
+    synchronized Level getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Returns the device state read by the last evaluation, or null if there was none yet.
+     */
+    synchronized DeviceState getLastState() {
+        return mLastState;
+    }
+
+    /**
+     * Returns the index of the level that the given state calls for.
+     */
+    static int targetLevel(DeviceState state) {
+        int thermal;
+        float headroom = state.getThermalHeadroom();
+        if (headroom >= 0.5f) {
+            thermal = 0;
+        } else if (headroom >= 0.25f) {
+            thermal = 1;
+        } else if (headroom >= 0.1f) {
+            thermal = 2;
+        } else if (headroom > 0) {
+            thermal = 3;
+        } else {
+            thermal = 4;
+        }
+
+        int battery = 0;
+        int percent = state.getBatteryPercent();
+        if (!state.isCharging() && (percent != DeviceState.BATTERY_UNKNOWN)) {
+            if (percent < 5) {
+                battery = 4;
+            } else if (percent < 15) {
+                battery = 3;
+            } else if (percent < 30) {
+                battery = 1;
+            }
+        }
+        return Math.max(thermal, battery);
+    }
+}
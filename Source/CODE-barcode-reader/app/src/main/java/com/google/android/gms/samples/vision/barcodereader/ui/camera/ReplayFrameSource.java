@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams frames from a {@link FrameRecording} file in place of the camera, so that the frame
+ * pipeline can be measured reproducibly.  The file is memory-mapped, and each frame is copied
+ * straight from the mapping into a free preview buffer, just as the camera would fill it.
+ * <p/>
+ * Frames are either paced at a fixed rate, in which case a frame is dropped when there is no
+ * free buffer for it (as the camera would), or sent as fast as possible, in which case the source
+ * waits for a free buffer instead.  Frame ids and timestamps are taken from the recording.  When
+ * looping, each later pass is shifted so that ids and timestamps keep increasing.
+ * <p/>
+ * Frames are delivered on a dedicated thread.
+ */
+class ReplayFrameSource {
+    /**
+     * Rate at which frames are sent as fast as the pipeline takes them.
+     */
+    static final float AS_FAST_AS_POSSIBLE = 0;
+
+    /**
+     * Receives each replayed frame, as a preview buffer from the ring.
+     */
+    interface FrameCallback {
+        void onFrame(byte[] data, int frameId, long timestampMillis);
+    }
+
+    private final File mFile;
+    private final float mFps;
+    private final boolean mLoop;
+    private final FrameBufferRing mBufferRing;
+    private final FrameCallback mCallback;
+
+    private MappedByteBuffer mMapping;
+    private int mWidth;
+    private int mHeight;
+    private int mRotation;
+    private int mFrameCount;
+    private Thread mThread;
+
+    // This lock guards the free buffers and the running flag.
+    private final Object mLock = new Object();
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<>();
+    private boolean mRunning;
+
+    ReplayFrameSource(File file, float fps, boolean loop, FrameBufferRing ring,
+                      FrameCallback callback) {
+        if (fps < 0) {
+            throw new IllegalArgumentException("Invalid fps: " + fps);
+        }
+        mFile = file;
+        mFps = fps;
+        mLoop = loop;
+        mBufferRing = ring;
+        mCallback = callback;
+    }
+
+    /**
+     * Maps the recording, checks its header, and allocates preview buffers in the ring for its
+     * frame size.
+     *
+     * @throws IOException if the file cannot be read or is not a valid recording
+     */
+    void open() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Recording too large to map: " + length + " bytes");
+            }
+            if (length < FrameRecording.HEADER_SIZE) {
+                throw new IOException("Not a frame recording: " + mFile);
+            }
+            // The mapping stays valid after the channel is closed.
+            mMapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            file.close();
+        }
+
+        if ((mMapping.getInt() != FrameRecording.MAGIC) ||
+                (mMapping.getInt() != FrameRecording.VERSION)) {
+            throw new IOException("Not a frame recording: " + mFile);
+        }
+        mWidth = mMapping.getInt();
+        mHeight = mMapping.getInt();
+        mRotation = mMapping.getInt();
+        mFrameCount = mMapping.getInt();
+        long expected = FrameRecording.HEADER_SIZE +
+                (long) mFrameCount * FrameRecording.recordSize(mWidth, mHeight);
+        if ((mWidth <= 0) || (mHeight <= 0) || (mFrameCount <= 0) ||
+                (mMapping.capacity() < expected)) {
+            throw new IOException("Truncated or empty frame recording: " + mFile);
+        }
+
+        synchronized (mLock) {
+            mFreeBuffers.clear();
+        }
+        mBufferRing.allocate(mWidth, mHeight);
+        mBufferRing.attach(new FreeBufferQueue());
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the {@link com.google.android.gms.vision.Frame} rotation the frames were recorded
+     * with.
+     */
+    int getRotation() {
+        return mRotation;
+    }
+
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Starts sending frames on the replay thread.
+     */
+    void start() {
+        synchronized (mLock) {
+            mRunning = true;
+        }
+        mThread = new Thread(new ReplayRunnable(), "ReplayFrameSource");
+        mThread.start();
+    }
+
+    /**
+     * Stops sending frames.  Once this returns no more frames are delivered.
+     */
+    void stop() {
+        synchronized (mLock) {
+            mRunning = false;
+            mFreeBuffers.clear();
+            mLock.notifyAll();
+        }
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                // Not expected; the replay thread never blocks for long.
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    /**
+     * Keeps the buffers that the rest of the pipeline is done with, for the next frames.
+     */
+    private class FreeBufferQueue implements FrameBufferRing.BufferQueue {
+        @Override
+        public void queueBuffer(int slot, byte[] buffer) {
+            synchronized (mLock) {
+                mFreeBuffers.add(buffer);
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private class ReplayRunnable implements Runnable {
+        @Override
+        public void run() {
+            int recordSize = FrameRecording.recordSize(mWidth, mHeight);
+            int frameSize = Nv21.bufferSize(mWidth, mHeight);
+            long intervalNanos = (mFps > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / mFps) : 0;
+            long nextNanos = System.nanoTime();
+
+            // Added to ids and timestamps on each later pass, so that they keep increasing.
+            int idOffset = 0;
+            long timeOffset = 0;
+
+            ByteBuffer mapping = mMapping.duplicate();
+            while (true) {
+                int lastId = 0;
+                long lastTimestamp = 0;
+                for (int i = 0; i < mFrameCount; ++i) {
+                    if (intervalNanos > 0) {
+                        long delay = nextNanos - System.nanoTime();
+                        if (delay > 0) {
+                            sleepNanos(delay);
+                        }
+                        nextNanos += intervalNanos;
+                    }
+
+                    byte[] buffer = nextFreeBuffer(intervalNanos == 0);
+                    if (!isRunning()) {
+                        return;
+                    }
+
+                    mapping.position(FrameRecording.HEADER_SIZE + i * recordSize);
+                    lastId = mapping.getInt();
+                    lastTimestamp = mapping.getLong();
+                    if (buffer == null) {
+                        // No free buffer at a fixed rate; the frame is dropped.
+                        mBufferRing.onFrameDropped(System.nanoTime());
+                        continue;
+                    }
+                    mapping.get(buffer, 0, frameSize);
+                    mCallback.onFrame(buffer, lastId + idOffset, lastTimestamp + timeOffset);
+                }
+
+                if (!mLoop) {
+                    return;
+                }
+                idOffset += lastId;
+                timeOffset += lastTimestamp + ((intervalNanos > 0) ?
+                        TimeUnit.NANOSECONDS.toMillis(intervalNanos) : 1);
+            }
+        }
+
+        /**
+         * Returns a free buffer, waiting for one if {@code wait} is true, or null if there is
+         * none or the source was stopped.
+         */
+        private byte[] nextFreeBuffer(boolean wait) {
+            synchronized (mLock) {
+                while (wait && mRunning && mFreeBuffers.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+                return mRunning ? mFreeBuffers.poll() : null;
+            }
+        }
+
+        private boolean isRunning() {
+            synchronized (mLock) {
+                return mRunning;
+            }
+        }
+
+        private void sleepNanos(long nanos) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
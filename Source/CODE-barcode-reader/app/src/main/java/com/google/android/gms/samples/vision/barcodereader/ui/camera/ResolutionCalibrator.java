@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the preview size that the detector handles best on this device, by running the camera at
+ * each of a few candidate sizes in turn and measuring how long detection takes and how often it
+ * finds something.
+ * <p/>
+ * Each candidate gets a warm-up period, during which results are ignored while the camera settles
+ * exposure and focus, followed by a measurement period.  A candidate keeps up if 90% of its
+ * detections finish within the time the detection workers have per frame at the requested frame
+ * rate.  Of those that keep up, the one that found items in the largest share of frames wins, and
+ * among equally good ones the largest.  If none keep up, the fastest wins.  The frame rate stored
+ * with the winner is the requested rate, capped at what its mean detection time sustains.
+ */
+class ResolutionCalibrator {
+    static final long DEFAULT_WARM_UP_MILLIS = 1000;
+    static final long DEFAULT_MEASURE_MILLIS = 3000;
+
+    /**
+     * At most this many sizes are tried, spread evenly by area over the supported sizes between
+     * {@link #MIN_AREA} and {@link #MAX_AREA}.
+     */
+    static final int MAX_CANDIDATES = 5;
+    static final int MIN_AREA = 320 * 240;
+    static final int MAX_AREA = 1920 * 1080;
+
+    /**
+     * Candidates with fewer measured detections than this are treated as not keeping up.
+     */
+    static final int MIN_SAMPLES = 10;
+
+    /**
+     * Success rates within this of each other count as equally good.
+     */
+    private static final float SUCCESS_RATE_TOLERANCE = 0.05f;
+
+    /**
+     * The size and frame rate chosen by calibration.
+     */
+    static final class Result {
+        final int width;
+        final int height;
+        final float fps;
+
+        Result(int width, int height, float fps) {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + fps;
+        }
+    }
+
+    private static final class Candidate {
+        final int width;
+        final int height;
+        final LatencyHistogram detect = new LatencyHistogram();
+        long framesWithItems;
+
+        Candidate(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        int area() {
+            return width * height;
+        }
+
+        float successRate() {
+            long frames = detect.snapshot().getCount();
+            return (frames > 0) ? (float) framesWithItems / frames : 0;
+        }
+    }
+
+    private final float mRequestedFps;
+    private final int mWorkers;
+    private final long mWarmUpNanos;
+    private final long mMeasureNanos;
+
+    // Guarded by this.
+    private final List<Candidate> mCandidates = new ArrayList<>();
+    private int mCurrent;
+    private long mMeasureFromNanos;
+
+    ResolutionCalibrator(float requestedFps, int workers, long warmUpMillis, long measureMillis) {
+        if ((requestedFps <= 0) || (workers < 1) || (warmUpMillis < 0) || (measureMillis <= 0)) {
+            throw new IllegalArgumentException("Invalid calibration settings.");
+        }
+        mRequestedFps = requestedFps;
+        mWorkers = workers;
+        mWarmUpNanos = TimeUnit.MILLISECONDS.toNanos(warmUpMillis);
+        mMeasureNanos = TimeUnit.MILLISECONDS.toNanos(measureMillis);
+    }
+
+    /**
+     * Returns how long each candidate runs for, warm-up included.
+     */
+    long getCandidateMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mWarmUpNanos + mMeasureNanos);
+    }
+
+    /**
+     * Returns whether the candidates have been chosen yet.
+     */
+    synchronized boolean hasCandidates() {
+        return !mCandidates.isEmpty();
+    }
+
+    /**
+     * Chooses the candidates from the sizes the camera supports, given as parallel arrays.  Sizes
+     * outside of {@link #MIN_AREA} to {@link #MAX_AREA} are left out unless that would leave none.
+     */
+    synchronized void setSupportedSizes(int[] widths, int[] heights) {
+        List<Candidate> all = new ArrayList<>();
+        List<Candidate> inRange = new ArrayList<>();
+        for (int i = 0; i < widths.length; ++i) {
+            Candidate candidate = new Candidate(widths[i], heights[i]);
+            all.add(candidate);
+            if ((candidate.area() >= MIN_AREA) && (candidate.area() <= MAX_AREA)) {
+                inRange.add(candidate);
+            }
+        }
+        List<Candidate> sizes = inRange.isEmpty() ? all : inRange;
+        Collections.sort(sizes, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return (a.area() < b.area()) ? -1 : ((a.area() == b.area()) ? 0 : 1);
+            }
+        });
+
+        mCandidates.clear();
+        int count = Math.min(MAX_CANDIDATES, sizes.size());
+        for (int i = 0; i < count; ++i) {
+            int index = (count == 1) ? sizes.size() - 1 : i * (sizes.size() - 1) / (count - 1);
+            Candidate candidate = sizes.get(index);
+            if (mCandidates.isEmpty() ||
+                    (mCandidates.get(mCandidates.size() - 1) != candidate)) {
+                mCandidates.add(candidate);
+            }
+        }
+        mCurrent = 0;
+    }
+
+    /**
+     * Returns the width of the candidate being measured.
+     */
+    synchronized int getCurrentWidth() {
+        return mCandidates.get(mCurrent).width;
+    }
+
+    /**
+     * Returns the height of the candidate being measured.
+     */
+    synchronized int getCurrentHeight() {
+        return mCandidates.get(mCurrent).height;
+    }
+
+    /**
+     * Called when the camera has started at the current candidate's size.  Starts its warm-up
+     * over, discarding anything measured for it before.
+     */
+    synchronized void onCandidateStarted(long nowNanos) {
+        Candidate current = mCandidates.get(mCurrent);
+        mCandidates.set(mCurrent, new Candidate(current.width, current.height));
+        mMeasureFromNanos = nowNanos + mWarmUpNanos;
+    }
+
+    /**
+     * Called when detection on a frame of the current candidate has finished.
+     */
+    synchronized void onDetectionFinished(long startNanos, long endNanos, boolean foundItems) {
+        if (mCandidates.isEmpty() || (startNanos < mMeasureFromNanos)) {
+            return;
+        }
+        Candidate current = mCandidates.get(mCurrent);
+        current.detect.record(endNanos - startNanos);
+        if (foundItems) {
+            current.framesWithItems++;
+        }
+    }
+
+    /**
+     * Moves on to the next candidate.  Returns false if the current one was the last.
+     */
+    synchronized boolean nextCandidate() {
+        if (mCurrent + 1 >= mCandidates.size()) {
+            return false;
+        }
+        mCurrent++;
+        return true;
+    }
+
+    /**
+     * Returns the winning size and frame rate, once every candidate has been measured.
+     */
+    synchronized Result getResult() {
+        long budgetNanos = (long) (mWorkers * TimeUnit.SECONDS.toNanos(1) / mRequestedFps);
+        List<Candidate> keepingUp = new ArrayList<>();
+        Candidate fastest = null;
+        long fastestNanos = Long.MAX_VALUE;
+        float bestSuccessRate = 0;
+        for (Candidate candidate : mCandidates) {
+            LatencyStats stats = candidate.detect.snapshot();
+            if (stats.getCount() < MIN_SAMPLES) {
+                continue;
+            }
+            long p90 = stats.getPercentileNanos(90);
+            if (p90 < fastestNanos) {
+                fastest = candidate;
+                fastestNanos = p90;
+            }
+            if (p90 <= budgetNanos) {
+                keepingUp.add(candidate);
+                bestSuccessRate = Math.max(bestSuccessRate, candidate.successRate());
+            }
+        }
+
+        // Candidates are in increasing size, so this ends on the largest of the best ones.
+        Candidate best = fastest;
+        for (Candidate candidate : keepingUp) {
+            if (candidate.successRate() >= bestSuccessRate - SUCCESS_RATE_TOLERANCE) {
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            // Nothing was measured; keep whatever would have been used anyway.
+            return null;
+        }
+
+        long meanNanos = Math.max(1, best.detect.snapshot().getMeanNanos());
+        float sustainableFps = mWorkers * TimeUnit.SECONDS.toNanos(1) / (float) meanNanos;
+        return new Result(best.width, best.height,
+                Math.max(1, Math.min(mRequestedFps, sustainableFps)));
+    }
+}
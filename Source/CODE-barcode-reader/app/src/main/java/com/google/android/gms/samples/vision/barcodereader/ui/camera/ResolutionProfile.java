@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Stores the preview size and frame rate that resolution calibration chose for each camera facing
+ * in shared preferences.  Entries are keyed by the build fingerprint as well, so that a system
+ * update, which may bring a different camera HAL or detector, calibrates again.
+ */
+final class ResolutionProfile {
+    private static final String PREFERENCES = "camera_source_resolution_profile";
+
+    private ResolutionProfile() {
+    }
+
+    /**
+     * Returns the stored calibration result for the given camera facing, or null if there is
+     * none for this build.
+     */
+    static ResolutionCalibrator.Result load(Context context, int facing) {
+        SharedPreferences preferences = getPreferences(context);
+        String key = keyFor(facing);
+        int width = preferences.getInt(key + ".width", 0);
+        int height = preferences.getInt(key + ".height", 0);
+        float fps = preferences.getFloat(key + ".fps", 0);
+        if ((width <= 0) || (height <= 0) || (fps <= 0)) {
+            return null;
+        }
+        return new ResolutionCalibrator.Result(width, height, fps);
+    }
+
+    /**
+     * Stores a calibration result for the given camera facing.  Results stored for other builds
+     * are dropped.
+     */
+    static void save(Context context, int facing, ResolutionCalibrator.Result result) {
+        SharedPreferences preferences = getPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        for (String key : preferences.getAll().keySet()) {
+            if (!key.startsWith(Build.FINGERPRINT + "/")) {
+                editor.remove(key);
+            }
+        }
+        String key = keyFor(facing);
+        editor.putInt(key + ".width", result.width)
+                .putInt(key + ".height", result.height)
+                .putFloat(key + ".fps", result.fps)
+                .apply();
+    }
+
+    /**
+     * Drops every stored result, so that the next camera source with calibration enabled
+     * calibrates again.
+     */
+    static void clear(Context context) {
+        getPreferences(context).edit().clear().apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static String keyFor(int facing) {
+        return Build.FINGERPRINT + "/" + facing;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+/**
+ * The part of the preview that is searched for items, expressed as fractions of the upright
+ * (display oriented) image so that it can be drawn directly over the preview.  Preview buffers
+ * arrive in the sensor's orientation, so {@link #computeCrop(int, int, int)} works out which part
+ * of the sensor image that corresponds to for the current rotation.
+ */
+final class ScanWindow {
+    final float left;
+    final float top;
+    final float right;
+    final float bottom;
+
+    /**
+     * A region of a sensor image to crop, along with where that region starts in the upright
+     * image.  All values are in pixels; the crop origin and size are always even.
+     */
+    static final class Crop {
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        final int uprightX;
+        final int uprightY;
+
+        Crop(int x, int y, int width, int height, int uprightX, int uprightY) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.uprightX = uprightX;
+            this.uprightY = uprightY;
+        }
+    }
+
+    ScanWindow(float left, float top, float right, float bottom) {
+        if ((left < 0) || (top < 0) || (right > 1) || (bottom > 1) ||
+                (left >= right) || (top >= bottom)) {
+            throw new IllegalArgumentException("Invalid scan window: [" + left + ", " + top +
+                    ", " + right + ", " + bottom + "]");
+        }
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    /**
+     * Returns the region of a {@code width} x {@code height} sensor image covered by this window
+     * when the image is displayed with the given {@link com.google.android.gms.vision.Frame}
+     * rotation constant.
+     */
+    Crop computeCrop(int width, int height, int rotation) {
+        float[] sensor = toSensor(rotation);
+        float x0 = sensor[0];
+        float y0 = sensor[1];
+        float x1 = sensor[2];
+        float y1 = sensor[3];
+
+        // Snap to even pixels so that the region lines up with the NV21 chroma samples.
+        int cropX = evenFloor(x0 * width);
+        int cropY = evenFloor(y0 * height);
+        int cropRight = Math.max(cropX + 2, Math.min(width & ~1, evenFloor(x1 * width + 1)));
+        int cropBottom = Math.max(cropY + 2, Math.min(height & ~1, evenFloor(y1 * height + 1)));
+
+        // Where the cropped region starts once rotated upright, used to map results back.
+        int uprightX;
+        int uprightY;
+        switch (rotation) {
+            case 1:
+                uprightX = height - cropBottom;
+                uprightY = cropX;
+                break;
+            case 2:
+                uprightX = width - cropRight;
+                uprightY = height - cropBottom;
+                break;
+            case 3:
+                uprightX = cropY;
+                uprightY = width - cropRight;
+                break;
+            default:
+                uprightX = cropX;
+                uprightY = cropY;
+                break;
+        }
+
+        return new Crop(cropX, cropY, cropRight - cropX, cropBottom - cropY, uprightX, uprightY);
+    }
+
+    /**
+     * Returns this window in normalized sensor coordinates, as {@code {left, top, right, bottom}},
+     * for an image displayed with the given {@link com.google.android.gms.vision.Frame} rotation
+     * constant.
+     */
+    float[] toSensor(int rotation) {
+        // A rotation of 90 means that the sensor image is turned 90 degrees clockwise to become
+        // upright.
+        switch (rotation) {
+            case 1:
+                return new float[]{top, 1 - right, bottom, 1 - left};
+            case 2:
+                return new float[]{1 - right, 1 - bottom, 1 - left, 1 - top};
+            case 3:
+                return new float[]{1 - bottom, left, 1 - top, right};
+            default:
+                return new float[]{left, top, right, bottom};
+        }
+    }
+
+    private static int evenFloor(float value) {
+        return ((int) value) & ~1;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to fall back on a full resolution still picture, because preview frames that
+ * were worth detecting have kept coming up empty.  A capture is asked for once the given number
+ * of detected frames in a row have found nothing, but only one at a time, and no more often than
+ * every {@link #MIN_INTERVAL_MILLIS}, as each one stops the preview for a moment.
+ * <p/>
+ * Frames are reported by the thread that hands results to the processor, and captures are
+ * finished from whichever thread decoded them, so all methods are synchronized.
+ */
+class StillCaptureTrigger {
+    static final long MIN_INTERVAL_MILLIS = 3000;
+
+    private final int mFailedFrames;
+    private int mMissingFrames;
+    private boolean mCapturing;
+    private long mLastCaptureNanos;
+
+    /**
+     * Creates a trigger that asks for a capture after the given number of empty frames in a row.
+     */
+    StillCaptureTrigger(int failedFrames) {
+        if (failedFrames < 1) {
+            throw new IllegalArgumentException("Invalid number of failed frames: " + failedFrames);
+        }
+        mFailedFrames = failedFrames;
+    }
+
+    /**
+     * Starts counting from scratch, e.g. when the camera has been reopened, forgetting any
+     * capture that was still under way.
+     */
+    synchronized void reset() {
+        mMissingFrames = 0;
+        mCapturing = false;
+        mLastCaptureNanos = 0;
+    }
+
+    /**
+     * Updates the count for a frame that was detected, and returns whether a still capture
+     * should be taken now.  If so, no other capture is asked for until
+     * {@link #onCaptureFinished()} is called.
+     */
+    synchronized boolean onFrameDetected(boolean found, long nowNanos) {
+        if (found) {
+            mMissingFrames = 0;
+            return false;
+        }
+        if (mCapturing || (++mMissingFrames < mFailedFrames)) {
+            return false;
+        }
+        if ((mLastCaptureNanos != 0) && (nowNanos - mLastCaptureNanos <
+                TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL_MILLIS))) {
+            return false;
+        }
+        mMissingFrames = 0;
+        mCapturing = true;
+        mLastCaptureNanos = nowNanos;
+        return true;
+    }
+
+    /**
+     * Allows the next capture, once the last one has been decoded or given up on.
+     */
+    synchronized void onCaptureFinished() {
+        mCapturing = false;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader;
+
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the consensus processor frames of barcode reads and checks what it passes on: only
+ * values enough recent reads agree on, under an id that follows the barcode by position.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BarcodeConsensusProcessorTest {
+    private static final String EAN_13 = "9780306406157";
+    private static final String OTHER_EAN_13 = "4006381333931";
+    private static final int STILL_CAPTURE_FRAME_ID = -1;
+
+    private final RecordingProcessor mDelegate = new RecordingProcessor();
+    private int mNextFrameId;
+
+    @Test
+    public void passesBarcodeOnOnceEnoughReadsAgree() {
+        BarcodeConsensusProcessor processor = new BarcodeConsensusProcessor(mDelegate, 3, 5);
+
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+        assertEquals(0, mDelegate.mLast.getDetectedItems().size());
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+        assertEquals(0, mDelegate.mLast.getDetectedItems().size());
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+
+        ConsensusBarcode barcode = onlyBarcode();
+        assertEquals(EAN_13, barcode.rawValue);
+        assertEquals(3, barcode.votes);
+        assertEquals(1.0f, barcode.confidence, 0);
+    }
+
+    @Test
+    public void misreadIsOutvoted() {
+        BarcodeConsensusProcessor processor = new BarcodeConsensusProcessor(mDelegate, 2, 5);
+
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+        processor.receiveDetections(createDetections(createBarcode(OTHER_EAN_13, 102, 101)));
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 104, 102)));
+        int id = mDelegate.mLast.getDetectedItems().keyAt(0);
+        assertEquals(EAN_13, onlyBarcode().rawValue);
+
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 106, 103)));
+        processor.receiveDetections(createDetections(createBarcode(OTHER_EAN_13, 108, 104)));
+        ConsensusBarcode barcode = onlyBarcode();
+        assertEquals(EAN_13, barcode.rawValue);
+        assertEquals(3, barcode.votes);
+        assertEquals(0.6f, barcode.confidence, 0.001f);
+        assertEquals(id, mDelegate.mLast.getDetectedItems().keyAt(0));
+    }
+
+    @Test
+    public void tieGoesToMostRecentValue() {
+        BarcodeConsensusProcessor processor = new BarcodeConsensusProcessor(mDelegate, 2, 4);
+
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+        processor.receiveDetections(createDetections(createBarcode(OTHER_EAN_13, 100, 100)));
+        assertEquals(EAN_13, onlyBarcode().rawValue);
+        processor.receiveDetections(createDetections(createBarcode(OTHER_EAN_13, 100, 100)));
+        assertEquals(OTHER_EAN_13, onlyBarcode().rawValue);
+    }
+
+    @Test
+    public void readsWithWrongCheckDigitAreNotCounted() {
+        BarcodeConsensusProcessor processor = new BarcodeConsensusProcessor(mDelegate, 2, 5);
+
+        for (int i = 0; i < 5; ++i) {
+            processor.receiveDetections(createDetections(createBarcode("9780306406158", 100, 100)));
+            assertEquals(0, mDelegate.mLast.getDetectedItems().size());
+        }
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+        assertEquals(EAN_13, onlyBarcode().rawValue);
+    }
+
+    @Test
+    public void stillCaptureReadCountsAsEnoughReads() {
+        BarcodeConsensusProcessor processor = new BarcodeConsensusProcessor(mDelegate, 3, 5);
+
+        processor.receiveDetections(
+                createDetections(STILL_CAPTURE_FRAME_ID, createBarcode(EAN_13, 100, 100)));
+        assertEquals(EAN_13, onlyBarcode().rawValue);
+        assertEquals(3, onlyBarcode().votes);
+    }
+
+    @Test
+    public void redeliveredDetectionsAreNotAnotherRead() {
+        BarcodeConsensusProcessor processor = new BarcodeConsensusProcessor(mDelegate, 2, 5);
+
+        Detector.Detections<Barcode> detections =
+                createDetections(createBarcode(EAN_13, 100, 100));
+        processor.receiveDetections(detections);
+        processor.receiveDetections(detections);
+        assertEquals(2, mDelegate.mCalls);
+        assertEquals(0, mDelegate.mLast.getDetectedItems().size());
+    }
+
+    @Test
+    public void sameBarcodeIsPassedOnWhileNothingChanged() {
+        BarcodeConsensusProcessor processor = new BarcodeConsensusProcessor(mDelegate, 2, 3);
+
+        for (int i = 0; i < 3; ++i) {
+            processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+        }
+        ConsensusBarcode first = onlyBarcode();
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100)));
+        assertSame(first, onlyBarcode());
+
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 110, 100)));
+        assertNotSame(first, onlyBarcode());
+        assertEquals(110, onlyBarcode().cornerPoints[0].x);
+    }
+
+    @Test
+    public void barcodesAreFollowedByPosition() {
+        BarcodeConsensusProcessor processor = new BarcodeConsensusProcessor(mDelegate, 1, 3);
+
+        processor.receiveDetections(createDetections(createBarcode(EAN_13, 100, 100),
+                createBarcode(OTHER_EAN_13, 400, 100)));
+        SparseArray<Barcode> items = mDelegate.mLast.getDetectedItems();
+        assertEquals(2, items.size());
+        int firstId = idOf(items, EAN_13);
+        int secondId = idOf(items, OTHER_EAN_13);
+        assertNotEquals(firstId, secondId);
+
+        // Both move a little, and come in the other order.
+        processor.receiveDetections(createDetections(createBarcode(OTHER_EAN_13, 420, 110),
+                createBarcode(EAN_13, 90, 95)));
+        items = mDelegate.mLast.getDetectedItems();
+        assertEquals(firstId, idOf(items, EAN_13));
+        assertEquals(secondId, idOf(items, OTHER_EAN_13));
+    }
+
+    @Test
+    public void checkDigits() {
+        assertTrue(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.EAN_13, EAN_13)));
+        assertFalse(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.EAN_13, "9780306406156")));
+        assertFalse(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.EAN_13, "978030640615")));
+        assertFalse(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.EAN_13, "97803064O6157")));
+        assertTrue(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.EAN_8, "96385074")));
+        assertFalse(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.EAN_8, "96385075")));
+        assertTrue(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.UPC_A, "036000291452")));
+        assertFalse(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.UPC_A, "036000291453")));
+        assertFalse(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.UPC_A, null)));
+        // Formats without a check digit always pass.
+        assertTrue(BarcodeConsensusProcessor.hasValidCheckDigit(
+                createBarcode(Barcode.TEXT, "anything")));
+    }
+
+    private ConsensusBarcode onlyBarcode() {
+        SparseArray<Barcode> items = mDelegate.mLast.getDetectedItems();
+        assertEquals(1, items.size());
+        return (ConsensusBarcode) items.valueAt(0);
+    }
+
+    private static int idOf(SparseArray<Barcode> items, String value) {
+        for (int i = 0; i < items.size(); ++i) {
+            if (value.equals(items.valueAt(i).rawValue)) {
+                return items.keyAt(i);
+            }
+        }
+        throw new AssertionError("No barcode with value " + value);
+    }
+
+    private static Barcode createBarcode(int format, String value) {
+        Barcode barcode = new Barcode();
+        barcode.format = format;
+        barcode.rawValue = value;
+        barcode.displayValue = value;
+        return barcode;
+    }
+
+    /**
+     * Creates an EAN-13 read 100 by 50 pixels, with its top left corner at the given position.
+     */
+    private static Barcode createBarcode(String value, int left, int top) {
+        Barcode barcode = createBarcode(Barcode.EAN_13, value);
+        barcode.cornerPoints = new Point[] {
+                new Point(left, top),
+                new Point(left + 100, top),
+                new Point(left + 100, top + 50),
+                new Point(left, top + 50),
+        };
+        return barcode;
+    }
+
+    private Detector.Detections<Barcode> createDetections(Barcode... barcodes) {
+        return createDetections(mNextFrameId++, barcodes);
+    }
+
+    private static Detector.Detections<Barcode> createDetections(int frameId,
+                                                                 Barcode... barcodes) {
+        Frame frame = new Frame.Builder()
+                .setImageData(ByteBuffer.allocate(16 * 16 * 3 / 2), 16, 16, ImageFormat.NV21)
+                .setId(frameId)
+                .build();
+        SparseArray<Barcode> items = new SparseArray<>();
+        for (int i = 0; i < barcodes.length; ++i) {
+            items.put(i, barcodes[i]);
+        }
+        return new Detector.Detections<>(items, frame.getMetadata(), true);
+    }
+
+    private static class RecordingProcessor implements Detector.Processor<Barcode> {
+        private Detector.Detections<Barcode> mLast;
+        private int mCalls;
+
+        @Override
+        public void receiveDetections(Detector.Detections<Barcode> detections) {
+            mLast = detections;
+            ++mCalls;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
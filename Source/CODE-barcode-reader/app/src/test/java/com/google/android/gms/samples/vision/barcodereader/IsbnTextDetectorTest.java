@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks which printed ISBNs are taken, and the EAN-13 value each one is reported as.
+ */
+public class IsbnTextDetectorTest {
+    private static final String EAN = "9780306406157";
+
+    @Test
+    public void readsIsbn13() {
+        assertEquals(EAN, IsbnTextDetector.parseIsbn("ISBN 978-0-306-40615-7"));
+        assertEquals(EAN, IsbnTextDetector.parseIsbn("9780306406157"));
+        assertEquals(EAN, IsbnTextDetector.parseIsbn("978 0 306 40615 7"));
+        assertEquals(EAN, IsbnTextDetector.parseIsbn("Printed in 2001. 978-0306406157 $12"));
+    }
+
+    @Test
+    public void rejectsIsbn13WithWrongCheckDigit() {
+        assertNull(IsbnTextDetector.parseIsbn("ISBN 978-0-306-40615-8"));
+    }
+
+    @Test
+    public void rejectsIsbn13WithinLongerNumber() {
+        assertNull(IsbnTextDetector.parseIsbn("19780306406157"));
+    }
+
+    @Test
+    public void convertsLabelledIsbn10() {
+        assertEquals(EAN, IsbnTextDetector.parseIsbn("ISBN 0-306-40615-2"));
+        assertEquals(EAN, IsbnTextDetector.parseIsbn("ISBN-10: 0306406152"));
+        assertEquals("9780804429573", IsbnTextDetector.parseIsbn("isbn 080442957x"));
+    }
+
+    @Test
+    public void rejectsIsbn10WithWrongCheckDigit() {
+        assertNull(IsbnTextDetector.parseIsbn("ISBN 0-306-40615-3"));
+    }
+
+    @Test
+    public void rejectsUnlabelledIsbn10() {
+        assertNull(IsbnTextDetector.parseIsbn("0306406152"));
+    }
+
+    @Test
+    public void skipsInvalidCandidates() {
+        assertEquals(EAN,
+                IsbnTextDetector.parseIsbn("978-0-306-40615-8 or ISBN 0-306-40615-2"));
+    }
+
+    @Test
+    public void rejectsNoText() {
+        assertNull(IsbnTextDetector.parseIsbn(null));
+        assertNull(IsbnTextDetector.parseIsbn(""));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import android.graphics.ImageFormat;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that results from several detection workers reach the processor in the order their
+ * frames were submitted, however long each frame takes, and that the workers and the dispatching
+ * thread are not held up while the processor runs.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DetectorWorkerPoolTest {
+    private static final int WORKERS = 3;
+    private static final int FRAMES = 60;
+    private static final int SIZE = 16;
+
+    @Test(timeout = 20000)
+    public void resultsAreDeliveredInSubmissionOrder() throws InterruptedException {
+        RecordingProcessor processor = new RecordingProcessor(null);
+        RecordingListener listener = new RecordingListener();
+        DetectorWorkerPool pool = new DetectorWorkerPool(createPasses(), processor, listener);
+
+        pool.start();
+        for (int id = 0; id < FRAMES; ++id) {
+            assertTrue(pool.awaitIdleWorker());
+            pool.submit(createFrame(id), null);
+        }
+        awaitDelivered(processor, FRAMES);
+        pool.stop();
+
+        List<Integer> expected = new ArrayList<>();
+        for (int id = 0; id < FRAMES; ++id) {
+            expected.add(id);
+        }
+        assertEquals(expected, processor.getFrameIds());
+        assertEquals(FRAMES, listener.mReleased.get());
+        assertEquals(FRAMES, listener.mDelivered.get());
+    }
+
+    @Test(timeout = 20000)
+    public void workersCarryOnWhileTheProcessorRuns() throws InterruptedException {
+        CountDownLatch unblock = new CountDownLatch(1);
+        RecordingProcessor processor = new RecordingProcessor(unblock);
+        RecordingListener listener = new RecordingListener();
+        DetectorWorkerPool pool = new DetectorWorkerPool(createPasses(), processor, listener);
+
+        pool.start();
+        assertTrue(pool.awaitIdleWorker());
+        pool.submit(createFrame(0), null);
+        assertTrue(processor.mEntered.await(5, TimeUnit.SECONDS));
+
+        // The processor is still busy with the first frame; the next ones are detected anyway.
+        for (int id = 1; id < WORKERS; ++id) {
+            assertTrue(pool.awaitIdleWorker());
+            pool.submit(createFrame(id), null);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((listener.mFinished.get() < WORKERS) && (System.nanoTime() < deadline)) {
+            Thread.sleep(1);
+        }
+        assertEquals(WORKERS, listener.mFinished.get());
+        assertTrue(processor.getFrameIds().isEmpty());
+
+        unblock.countDown();
+        awaitDelivered(processor, WORKERS);
+        pool.stop();
+        assertEquals(Arrays.asList(0, 1, 2), processor.getFrameIds());
+    }
+
+    @Test(timeout = 20000)
+    public void extraResultsAreDeliveredBetweenFrames() throws InterruptedException {
+        RecordingProcessor processor = new RecordingProcessor(null);
+        DetectorWorkerPool pool =
+                new DetectorWorkerPool(createPasses(), processor, new RecordingListener());
+
+        pool.start();
+        assertTrue(pool.awaitIdleWorker());
+        pool.submit(createFrame(0), null);
+        awaitDelivered(processor, 1);
+        assertTrue(pool.deliverExtra(createDetections(-1)));
+        assertTrue(pool.redeliverLast());
+        pool.stop();
+
+        // Extra results are not what a duplicate frame stands in for.
+        assertEquals(Arrays.asList(0, -1, 0), processor.getFrameIds());
+    }
+
+    private static DetectionPass[] createPasses() {
+        DetectionPass[] passes = new DetectionPass[WORKERS];
+        for (int i = 0; i < WORKERS; ++i) {
+            passes[i] = new DetectionPass(new SlowDetector(), null, null, null);
+        }
+        return passes;
+    }
+
+    private static PreviewFrame createFrame(int id) {
+        ByteBuffer data = ByteBuffer.wrap(new byte[Nv21.bufferSize(SIZE, SIZE) + 1]);
+        return new PreviewFrame(data, id % WORKERS, SIZE, SIZE, id, id, Frame.ROTATION_0,
+                System.nanoTime());
+    }
+
+    private static Detector.Detections<Integer> createDetections(int id) {
+        Frame frame = new Frame.Builder()
+                .setImageData(ByteBuffer.allocate(Nv21.bufferSize(SIZE, SIZE)), SIZE, SIZE,
+                        ImageFormat.NV21)
+                .setId(id)
+                .build();
+        SparseArray<Integer> items = new SparseArray<>();
+        items.put(0, id);
+        return new Detector.Detections<>(items, frame.getMetadata(), true);
+    }
+
+    private static void awaitDelivered(RecordingProcessor processor, int count)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((processor.getFrameIds().size() < count) && (System.nanoTime() < deadline)) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Finds one item, its frame's id, taking longer for some frames than for others so that later
+     * frames often finish first.
+     */
+    private static class SlowDetector extends Detector<Integer> {
+        @Override
+        public SparseArray<Integer> detect(Frame frame) {
+            int id = frame.getMetadata().getId();
+            try {
+                Thread.sleep((id % WORKERS == 0) ? 6 : (id % 2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            SparseArray<Integer> items = new SparseArray<>();
+            items.put(0, id);
+            return items;
+        }
+    }
+
+    /**
+     * Records the frame id of each result, optionally holding up the first one until released.
+     */
+    private static class RecordingProcessor implements Detector.Processor<Integer> {
+        private final CountDownLatch mUnblock;
+        private final CountDownLatch mEntered = new CountDownLatch(1);
+        private final List<Integer> mFrameIds = new ArrayList<>();
+
+        RecordingProcessor(CountDownLatch unblock) {
+            mUnblock = unblock;
+        }
+
+        @Override
+        public void receiveDetections(Detector.Detections<Integer> detections) {
+            mEntered.countDown();
+            if (mUnblock != null) {
+                try {
+                    mUnblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                mFrameIds.add(detections.getFrameMetadata().getId());
+            }
+        }
+
+        synchronized List<Integer> getFrameIds() {
+            return new ArrayList<>(mFrameIds);
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static class RecordingListener implements DetectorWorkerPool.FrameListener {
+        private final AtomicInteger mReleased = new AtomicInteger();
+        private final AtomicInteger mFinished = new AtomicInteger();
+        private final AtomicInteger mDelivered = new AtomicInteger();
+
+        @Override
+        public void releaseFrame(int slot) {
+            mReleased.incrementAndGet();
+        }
+
+        @Override
+        public void onDetectionFinished(PreviewFrame frame, long startNanos, long endNanos,
+                                        int itemCount) {
+            mFinished.incrementAndGet();
+        }
+
+        @Override
+        public void onItemsDelivered(long nowNanos) {
+        }
+
+        @Override
+        public void onDetectionsDelivered(Detector.Detections<?> detections) {
+            mDelivered.incrementAndGet();
+        }
+    }
+}
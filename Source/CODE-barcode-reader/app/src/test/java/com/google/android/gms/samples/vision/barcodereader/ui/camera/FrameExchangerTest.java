@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the exchanger hands every slot to exactly one owner at a time, and that what was
+ * written to a slot before it was offered is seen by whoever takes it, with several producers
+ * racing one consumer.
+ */
+public class FrameExchangerTest {
+    private static final int SLOTS = 16;
+    private static final int PRODUCERS = 4;
+    private static final int OFFERS_PER_PRODUCER = 200000;
+
+    @Test
+    public void takeReturnsTheNewestSlotOffered() {
+        FrameExchanger exchanger = new FrameExchanger();
+        assertEquals(FrameBufferRing.NO_SLOT, exchanger.offer(1));
+        assertEquals(1, exchanger.offer(2));
+        assertEquals(2, exchanger.take());
+    }
+
+    @Test
+    public void closeReturnsThePendingSlotAndRefusesOffers() {
+        FrameExchanger exchanger = new FrameExchanger();
+        exchanger.offer(3);
+        assertEquals(3, exchanger.close());
+        assertEquals(5, exchanger.offer(5));
+        assertEquals(FrameExchanger.CLOSED, exchanger.take());
+
+        exchanger.open();
+        assertEquals(FrameBufferRing.NO_SLOT, exchanger.offer(6));
+        assertEquals(6, exchanger.take());
+    }
+
+    @Test
+    public void closeWakesAWaitingConsumer() throws InterruptedException {
+        final FrameExchanger exchanger = new FrameExchanger();
+        final AtomicLong taken = new AtomicLong();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken.set(exchanger.take());
+            }
+        });
+        consumer.start();
+        // Give the consumer a moment to park; closing before then is fine too.
+        Thread.sleep(50);
+        exchanger.close();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertEquals(FrameExchanger.CLOSED, taken.get());
+    }
+
+    @Test
+    public void slotsAreNeverSharedUnderContention() throws InterruptedException {
+        final FrameExchanger exchanger = new FrameExchanger();
+        final ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<>();
+        for (int slot = 0; slot < SLOTS; ++slot) {
+            free.add(slot);
+        }
+        // 1 while a producer or the consumer holds the slot, 0 while it is free or pending.
+        final AtomicIntegerArray held = new AtomicIntegerArray(SLOTS);
+        // Written plainly before each offer; the exchanger has to make it visible on take.  The
+        // expected stamps are published atomically, so they can be trusted to compare against.
+        final long[] stamps = new long[SLOTS];
+        final AtomicLongArray expected = new AtomicLongArray(SLOTS);
+        final AtomicLong nextStamp = new AtomicLong(1);
+        final AtomicLong taken = new AtomicLong();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    int slot = exchanger.take();
+                    if (slot == FrameExchanger.CLOSED) {
+                        return;
+                    }
+                    if (!held.compareAndSet(slot, 0, 1)) {
+                        failure.compareAndSet(null, "Consumer took slot " + slot + " while held");
+                    }
+                    if (stamps[slot] != expected.get(slot)) {
+                        failure.compareAndSet(null, "Consumer saw a stale write to slot " + slot);
+                    }
+                    taken.incrementAndGet();
+                    held.set(slot, 0);
+                    free.add(slot);
+                }
+            }
+        });
+
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; ++i) {
+            producers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int offers = 0;
+                    while (offers < OFFERS_PER_PRODUCER) {
+                        Integer slot = free.poll();
+                        if (slot == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        if (!held.compareAndSet(slot, 0, 1)) {
+                            failure.compareAndSet(null,
+                                    "Producer got slot " + slot + " while held");
+                        }
+                        long stamp = nextStamp.getAndIncrement();
+                        stamps[slot] = stamp;
+                        expected.set(slot, stamp);
+                        held.set(slot, 0);
+
+                        int returned = exchanger.offer(slot);
+                        ++offers;
+                        if (returned != FrameBufferRing.NO_SLOT) {
+                            if (!held.compareAndSet(returned, 0, 1)) {
+                                failure.compareAndSet(null,
+                                        "Producer got back slot " + returned + " while held");
+                            }
+                            held.set(returned, 0);
+                            free.add(returned);
+                        }
+                    }
+                }
+            }));
+        }
+
+        consumer.start();
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        int pending = exchanger.close();
+        if (pending != FrameBufferRing.NO_SLOT) {
+            free.add(pending);
+        }
+        consumer.join(5000);
+
+        assertNull(failure.get(), failure.get());
+        assertFalse(consumer.isAlive());
+        assertTrue(taken.get() > 0);
+        // Every slot came back exactly once: none was lost or handed out twice.
+        Set<Integer> slots = new HashSet<>(free);
+        assertEquals(SLOTS, free.size());
+        assertEquals(SLOTS, slots.size());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Steps the quality controller through its levels with a fake device state, checking that it
+ * goes down one level per evaluation and comes back up only after several evaluations in a row
+ * call for less.
+ */
+public class QualityControllerTest {
+    private static final DeviceState COOL = new DeviceState(1.0f, 80, false);
+    private static final DeviceState THROTTLING = new DeviceState(0.0f, 80, false);
+
+    @Test
+    public void stepsDownOneLevelPerEvaluation() {
+        FakeDeviceStateProvider provider = new FakeDeviceStateProvider(THROTTLING);
+        QualityController controller = new QualityController(provider);
+        assertNull(controller.getLastState());
+
+        for (int i = 1; i < QualityController.LADDER.length; ++i) {
+            assertSame(QualityController.LADDER[i], controller.evaluate());
+        }
+        assertSame(QualityController.LADDER[QualityController.LADDER.length - 1],
+                controller.evaluate());
+        assertSame(THROTTLING, controller.getLastState());
+    }
+
+    @Test
+    public void recoversOneLevelAfterSeveralEvaluations() {
+        FakeDeviceStateProvider provider = new FakeDeviceStateProvider(THROTTLING);
+        QualityController controller = new QualityController(provider);
+        controller.evaluate();
+        controller.evaluate();
+        assertEquals(2, controller.getLevel().index);
+
+        provider.mState = COOL;
+        for (int i = 1; i < QualityController.RECOVERY_EVALUATIONS; ++i) {
+            assertEquals(2, controller.evaluate().index);
+        }
+        assertEquals(1, controller.evaluate().index);
+        for (int i = 1; i < QualityController.RECOVERY_EVALUATIONS; ++i) {
+            assertEquals(1, controller.evaluate().index);
+        }
+        assertEquals(0, controller.evaluate().index);
+        assertEquals(0, controller.evaluate().index);
+    }
+
+    @Test
+    public void readingAtTheCurrentLevelRestartsRecovery() {
+        FakeDeviceStateProvider provider = new FakeDeviceStateProvider(THROTTLING);
+        QualityController controller = new QualityController(provider);
+        controller.evaluate();
+        controller.evaluate();
+
+        provider.mState = COOL;
+        for (int i = 1; i < QualityController.RECOVERY_EVALUATIONS; ++i) {
+            controller.evaluate();
+        }
+        // Headroom calling for level 2 again, where the controller already is.
+        provider.mState = new DeviceState(0.2f, 80, false);
+        assertEquals(2, controller.evaluate().index);
+
+        provider.mState = COOL;
+        for (int i = 1; i < QualityController.RECOVERY_EVALUATIONS; ++i) {
+            assertEquals(2, controller.evaluate().index);
+        }
+        assertEquals(1, controller.evaluate().index);
+    }
+
+    @Test
+    public void thermalHeadroomThresholds() {
+        assertEquals(0, QualityController.targetLevel(new DeviceState(0.5f, 80, false)));
+        assertEquals(1, QualityController.targetLevel(new DeviceState(0.49f, 80, false)));
+        assertEquals(1, QualityController.targetLevel(new DeviceState(0.25f, 80, false)));
+        assertEquals(2, QualityController.targetLevel(new DeviceState(0.24f, 80, false)));
+        assertEquals(2, QualityController.targetLevel(new DeviceState(0.1f, 80, false)));
+        assertEquals(3, QualityController.targetLevel(new DeviceState(0.09f, 80, false)));
+        assertEquals(4, QualityController.targetLevel(new DeviceState(0.0f, 80, false)));
+    }
+
+    @Test
+    public void batteryThresholds() {
+        assertEquals(0, QualityController.targetLevel(new DeviceState(1.0f, 30, false)));
+        assertEquals(1, QualityController.targetLevel(new DeviceState(1.0f, 29, false)));
+        assertEquals(1, QualityController.targetLevel(new DeviceState(1.0f, 15, false)));
+        assertEquals(3, QualityController.targetLevel(new DeviceState(1.0f, 14, false)));
+        assertEquals(3, QualityController.targetLevel(new DeviceState(1.0f, 5, false)));
+        assertEquals(4, QualityController.targetLevel(new DeviceState(1.0f, 4, false)));
+        assertEquals(0, QualityController.targetLevel(
+                new DeviceState(1.0f, DeviceState.BATTERY_UNKNOWN, false)));
+    }
+
+    @Test
+    public void batteryDoesNotCountWhileCharging() {
+        assertEquals(0, QualityController.targetLevel(new DeviceState(1.0f, 2, true)));
+        assertEquals(2, QualityController.targetLevel(new DeviceState(0.2f, 2, true)));
+    }
+
+    @Test
+    public void worseOfThermalAndBatteryWins() {
+        assertEquals(3, QualityController.targetLevel(new DeviceState(0.4f, 10, false)));
+        assertEquals(3, QualityController.targetLevel(new DeviceState(0.05f, 20, false)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresProvider() {
+        new QualityController(null);
+    }
+
+    private static class FakeDeviceStateProvider implements DeviceStateProvider {
+        private DeviceState mState;
+
+        FakeDeviceStateProvider(DeviceState state) {
+            mState = state;
+        }
+
+        @Override
+        public DeviceState getDeviceState() {
+            return mState;
+        }
+    }
+}
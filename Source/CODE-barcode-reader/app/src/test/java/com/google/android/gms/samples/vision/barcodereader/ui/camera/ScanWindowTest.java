@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the part of a sensor image that a scan window covers for every display rotation, and
+ * where that part lands once the image is turned upright.
+ */
+public class ScanWindowTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Test
+    public void cropsCentreWithoutRotation() {
+        ScanWindow.Crop crop = new ScanWindow(0.25f, 0.25f, 0.75f, 0.75f)
+                .computeCrop(WIDTH, HEIGHT, 0);
+        assertCrop(crop, 160, 120, 320, 240, 160, 120);
+    }
+
+    @Test
+    public void cropsRotatedWindow() {
+        // Turned 90 degrees clockwise, the 640x480 sensor image is shown 480 wide by 640 high.
+        ScanWindow.Crop crop = new ScanWindow(0.1f, 0.2f, 0.5f, 0.6f)
+                .computeCrop(WIDTH, HEIGHT, 1);
+        assertCrop(crop, 128, 240, 256, 192, 48, 128);
+    }
+
+    @Test
+    public void cropsWholeImage() {
+        ScanWindow window = new ScanWindow(0, 0, 1, 1);
+        for (int rotation = 0; rotation < 4; ++rotation) {
+            assertCrop(window.computeCrop(WIDTH, HEIGHT, rotation), 0, 0, WIDTH, HEIGHT, 0, 0);
+        }
+    }
+
+    @Test
+    public void cropCoversWindowForEveryRotation() {
+        ScanWindow window = new ScanWindow(0.13f, 0.27f, 0.61f, 0.9f);
+        for (int rotation = 0; rotation < 4; ++rotation) {
+            ScanWindow.Crop crop = window.computeCrop(WIDTH, HEIGHT, rotation);
+            assertEquals(0, crop.x % 2);
+            assertEquals(0, crop.y % 2);
+            assertEquals(0, crop.width % 2);
+            assertEquals(0, crop.height % 2);
+            assertTrue((crop.x >= 0) && (crop.x + crop.width <= WIDTH));
+            assertTrue((crop.y >= 0) && (crop.y + crop.height <= HEIGHT));
+
+            boolean sideways = (rotation % 2) != 0;
+            int uprightWidth = sideways ? HEIGHT : WIDTH;
+            int uprightHeight = sideways ? WIDTH : HEIGHT;
+            int[] upright = toUpright(crop, rotation);
+            assertEquals(crop.uprightX, upright[0]);
+            assertEquals(crop.uprightY, upright[1]);
+
+            // Snapping to even pixels moves each edge by less than two pixels.
+            assertEquals(window.left * uprightWidth, upright[0], 2);
+            assertEquals(window.top * uprightHeight, upright[1], 2);
+            assertEquals(window.right * uprightWidth, upright[2], 2);
+            assertEquals(window.bottom * uprightHeight, upright[3], 2);
+        }
+    }
+
+    @Test
+    public void tinyWindowStillCropsSomething() {
+        ScanWindow.Crop crop = new ScanWindow(0.5f, 0.5f, 0.5001f, 0.5001f)
+                .computeCrop(WIDTH, HEIGHT, 0);
+        assertEquals(2, crop.width);
+        assertEquals(2, crop.height);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWindow() {
+        new ScanWindow(0.5f, 0.2f, 0.5f, 0.6f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWindowOutsideImage() {
+        new ScanWindow(-0.1f, 0.2f, 0.5f, 0.6f);
+    }
+
+    /**
+     * Returns the crop as {@code {left, top, right, bottom}} in the upright image, turning the
+     * sensor image clockwise by the given number of quarter turns.
+     */
+    private static int[] toUpright(ScanWindow.Crop crop, int rotation) {
+        int right = crop.x + crop.width;
+        int bottom = crop.y + crop.height;
+        switch (rotation) {
+            case 1:
+                return new int[]{HEIGHT - bottom, crop.x, HEIGHT - crop.y, right};
+            case 2:
+                return new int[]{WIDTH - right, HEIGHT - bottom, WIDTH - crop.x, HEIGHT - crop.y};
+            case 3:
+                return new int[]{crop.y, WIDTH - right, bottom, WIDTH - crop.x};
+            default:
+                return new int[]{crop.x, crop.y, right, bottom};
+        }
+    }
+
+    private static void assertCrop(ScanWindow.Crop crop, int x, int y, int width, int height,
+                                   int uprightX, int uprightY) {
+        assertEquals(x, crop.x);
+        assertEquals(y, crop.y);
+        assertEquals(width, crop.width);
+        assertEquals(height, crop.height);
+        assertEquals(uprightX, crop.uprightX);
+        assertEquals(uprightY, crop.uprightY);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a book data response, as the main activity does for each scanned ISBN.  Responses are
+ * synthetic, with a short and a long review, and a few extra members the parser has to skip.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BookDataBenchmark {
+    @Param({"64", "4096"})
+    public int reviewLength;
+
+    private String mResponse;
+
+    @Setup
+    public void setUp() throws JSONException {
+        Random random = new Random(42);
+        StringBuilder review = new StringBuilder(reviewLength);
+        while (review.length() < reviewLength) {
+            review.append((random.nextInt(8) == 0) ? ' ' : (char) ('a' + random.nextInt(26)));
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("isbn", "9780441172719");
+        json.put("title", "Dune");
+        json.put("author", "Frank Herbert");
+        json.put("rating", 4.25);
+        json.put("review", review.toString());
+        mResponse = json.toString();
+    }
+
+    @Benchmark
+    public BookData parse() throws JSONException {
+        return BookData.parse(mResponse);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preview buffer handling as done by the camera source: allocating the buffer ring and reusing
+ * its pooled buffers on restart, handing a frame from the camera callback to the processing
+ * thread and back, duplicate frame fingerprinting, and the NV21 crop and downsample applied
+ * before detection.  Frames are synthetic noise at common preview sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBufferBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String previewSize;
+
+    private int mWidth;
+    private int mHeight;
+    private FrameBufferRing mRing;
+    private FrameBufferRing mRestartRing;
+    private FrameExchanger mExchanger;
+    private CameraQueue mCamera;
+    private byte[] mCropped;
+    private byte[] mDownsampled;
+    private FrameDeduplicator mDeduplicator;
+
+    /**
+     * Stands in for the camera1 callback buffer queue.
+     */
+    private static class CameraQueue implements FrameBufferRing.BufferQueue {
+        final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+
+        @Override
+        public void queueBuffer(int slot, byte[] buffer) {
+            buffers.add(buffer);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        String[] size = previewSize.split("x");
+        mWidth = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+
+        mCamera = new CameraQueue();
+        mRing = new FrameBufferRing(FrameBufferRing.DEFAULT_DEPTH);
+        mRing.allocate(mWidth, mHeight);
+        mRing.attach(mCamera);
+
+        // Fill the image data, leaving the slot tag in each buffer's last byte alone.
+        Random random = new Random(42);
+        byte[] image = new byte[Nv21.bufferSize(mWidth, mHeight)];
+        random.nextBytes(image);
+        for (byte[] buffer : mCamera.buffers) {
+            System.arraycopy(image, 0, buffer, 0, image.length);
+        }
+
+        mRestartRing = new FrameBufferRing(FrameBufferRing.DEFAULT_DEPTH,
+                new FrameBufferPool(FrameBufferPool.DEFAULT_MAX_BYTES));
+        mRestartRing.allocate(mWidth, mHeight);
+
+        mExchanger = new FrameExchanger();
+        mExchanger.open();
+        mCropped = new byte[Nv21.bufferSize(mWidth / 2, mHeight / 2)];
+        mDownsampled = new byte[Nv21.bufferSize(mWidth / 2, mHeight / 2)];
+        mDeduplicator = new FrameDeduplicator(2.0f);
+    }
+
+    /**
+     * Allocating and wrapping one buffer per slot, as on the first camera start.
+     */
+    @Benchmark
+    public FrameBufferRing allocateRing() {
+        // A pool that holds nothing, so that every buffer is newly allocated.
+        FrameBufferRing ring = new FrameBufferRing(FrameBufferRing.DEFAULT_DEPTH,
+                new FrameBufferPool(0));
+        ring.allocate(mWidth, mHeight);
+        return ring;
+    }
+
+    /**
+     * Stopping and restarting the camera at the same preview size, with the ring's buffers going
+     * back to the pool and being taken out again.
+     */
+    @Benchmark
+    public FrameBufferRing restartRing() {
+        mRestartRing.clear();
+        mRestartRing.allocate(mWidth, mHeight);
+        return mRestartRing;
+    }
+
+    /**
+     * One frame through the camera callback, the exchanger and the processing loop, with the
+     * buffer going back to the camera at the end.
+     */
+    @Benchmark
+    public int handOffFrame() {
+        byte[] data = mCamera.buffers.poll();
+        int slot = mRing.slotOf(data);
+        mRing.onFrameReceived(slot, System.nanoTime());
+        int replaced = mExchanger.offer(slot);
+        if (replaced >= 0) {
+            mRing.recycle(replaced);
+        }
+
+        int taken = mExchanger.take();
+        mRing.recycle(taken);
+        return taken;
+    }
+
+    /**
+     * Cropping the middle quarter of the frame, as for a scan window.
+     */
+    @Benchmark
+    public byte[] cropCenter() {
+        byte[] data = mCamera.buffers.peek();
+        int cropWidth = (mWidth / 2) & ~1;
+        int cropHeight = (mHeight / 2) & ~1;
+        Nv21.crop(data, mWidth, mHeight, (mWidth / 4) & ~1, (mHeight / 4) & ~1,
+                cropWidth, cropHeight, mCropped);
+        return mCropped;
+    }
+
+    /**
+     * Fingerprinting the whole frame and comparing it with the last, as for duplicate frame
+     * suppression.
+     */
+    @Benchmark
+    public boolean fingerprintFrame() {
+        byte[] data = mCamera.buffers.peek();
+        return mDeduplicator.isDuplicate(data, mWidth, 0, 0, mWidth, mHeight);
+    }
+
+    /**
+     * Halving the whole frame's luma, as for a coarse detection pass.
+     */
+    @Benchmark
+    public byte[] downsampleLuma() {
+        byte[] data = mCamera.buffers.peek();
+        Nv21.downsampleLuma(data, mWidth, 0, 0, mWidth, mHeight, 2, mDownsampled);
+        return mDownsampled;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.barcodereader.ui.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping detected bounding boxes from preview to view coordinates, as each barcode graphic does
+ * on every draw.  Boxes are synthetic, spread over a 1280x720 preview shown in a 1920x1080 view.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OverlayTransformBenchmark {
+    private static final int PREVIEW_WIDTH = 1280;
+    private static final int PREVIEW_HEIGHT = 720;
+    private static final int VIEW_WIDTH = 1920;
+    private static final int VIEW_HEIGHT = 1080;
+
+    @Param({"1", "16"})
+    public int boxCount;
+
+    @Param({"false", "true"})
+    public boolean frontFacing;
+
+    // left, top, right, bottom for each box.
+    private float[] mBoxes;
+    private float[] mTransformed;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mBoxes = new float[boxCount * 4];
+        for (int i = 0; i < mBoxes.length; i += 4) {
+            float left = random.nextInt(PREVIEW_WIDTH / 2);
+            float top = random.nextInt(PREVIEW_HEIGHT / 2);
+            mBoxes[i] = left;
+            mBoxes[i + 1] = top;
+            mBoxes[i + 2] = left + 50 + random.nextInt(PREVIEW_WIDTH / 2 - 50);
+            mBoxes[i + 3] = top + 20 + random.nextInt(PREVIEW_HEIGHT / 2 - 20);
+        }
+        mTransformed = new float[mBoxes.length];
+    }
+
+    @Benchmark
+    public float[] transformBoxes() {
+        float widthScale = OverlayTransform.scaleFactor(VIEW_WIDTH, PREVIEW_WIDTH);
+        float heightScale = OverlayTransform.scaleFactor(VIEW_HEIGHT, PREVIEW_HEIGHT);
+        for (int i = 0; i < mBoxes.length; i += 4) {
+            mTransformed[i] =
+                    OverlayTransform.translateX(mBoxes[i], widthScale, VIEW_WIDTH, frontFacing);
+            mTransformed[i + 1] = OverlayTransform.scale(mBoxes[i + 1], heightScale);
+            mTransformed[i + 2] =
+                    OverlayTransform.translateX(mBoxes[i + 2], widthScale, VIEW_WIDTH, frontFacing);
+            mTransformed[i + 3] = OverlayTransform.scale(mBoxes[i + 3], heightScale);
+        }
+        return mTransformed;
+    }
+}